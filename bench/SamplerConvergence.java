@@ -0,0 +1,133 @@
+import cc.mallet.topics.MetricsSink;
+import cc.mallet.topics.PAM4L;
+import cc.mallet.topics.SamplerMetrics;
+import cc.mallet.types.FlatCorpus;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PAM の dense, sparse, alias の各サンプラーを同じデータ, 同じ種で推定し,
+ * イテレーションごとの対数尤度/トークンを並べて出力する. サンプラーの収束の速さの比較に使う.
+ * <p>
+ * 引数は 上位トピック数, 下位トピック数, イテレーション数, [データ, 遺伝子]
+ * (省略すると data/sample の data.txt と genes.txt). Estimate と同じ --seed, --threads, --run-length, --shared-counts を使える.
+ * --synthetic=細胞数,遺伝子数,スパース率 を指定すると, データの代わりに {@link SyntheticExpression} で
+ * 下位トピック数の遺伝子プログラムを持つ行列を作る (同じ引数なら同じ行列になる).
+ * 出力はタブ区切りで, 最後に各サンプラーのサンプリング時間の合計を出す.
+ * <pre>
+ * make bench-main MAIN='SamplerConvergence 5 20 300'
+ * make bench-main MAIN='SamplerConvergence --synthetic=300,60,0.5 5 20 300'
+ * </pre>
+ */
+public class SamplerConvergence {
+
+	/**
+	 * 各イテレーションの対数尤度/トークンとサンプリング時間を記録する
+	 */
+	static class LikelihoodSink implements MetricsSink {
+		List<Double> logLikelihoods = new ArrayList<>();
+		double sampleMillis = 0;
+
+		public void record(SamplerMetrics metrics) {
+			logLikelihoods.add(metrics.getLogLikelihoodPerToken());
+			sampleMillis += metrics.getSampleMillis();
+		}
+
+		public void close() {
+		}
+	}
+
+	public static void main(String[] rawArgs) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		String[] args = Estimate.parseOptions(rawArgs, options);
+		if (args.length != 3 && args.length != 5) {
+			System.err.println("Args: superTopics subTopics iterations [data genes]");
+			System.exit(1);
+		}
+		int numSuperTopics = Integer.parseInt(args[0]);
+		int numSubTopics = Integer.parseInt(args[1]);
+		int numIterations = Integer.parseInt(args[2]);
+		File dataFile = new File(args.length == 5 ? args[3] : "data/sample/data.txt");
+		File genesFile = new File(args.length == 5 ? args[4] : "data/sample/genes.txt");
+		int seed = Estimate.seed(options);
+		int numThreads = Integer.parseInt(options.getOrDefault("threads", "1"));
+
+		File outputDir = Files.createTempDirectory("convergence").toFile();
+		if (options.containsKey("synthetic")) {
+			String[] shape = options.get("synthetic").split(",");
+			SyntheticExpression synthetic = new SyntheticExpression(Integer.parseInt(shape[0]),
+				Integer.parseInt(shape[1]), Double.parseDouble(shape[2]), numSubTopics, 1);
+			dataFile = new File(outputDir, "data.txt");
+			genesFile = new File(outputDir, "genes.txt");
+			synthetic.writeDense(dataFile);
+			synthetic.writeGenes(genesFile);
+		}
+
+		ExpData expData = new ExpData(dataFile, genesFile);
+		FlatCorpus corpus = ExpTopicModel.createCorpus(expData, Estimate.isRunLength(options));
+		System.out.println("# " + options.getOrDefault("synthetic", dataFile.toString()) + ": " +
+			corpus.getNumDocs() + " cells, " + corpus.getDataAlphabet().size() + " genes, " +
+			corpus.getNumTokens() + " tokens");
+		System.out.println("# superTopics " + numSuperTopics + ", subTopics " + numSubTopics +
+			", seed " + seed + ", threads " + numThreads +
+			(Estimate.isSharedCounts(options) ? ", shared counts" : ""));
+
+		PAM4L.Sampler[] samplers = PAM4L.Sampler.values();
+		LikelihoodSink[] sinks = new LikelihoodSink[samplers.length];
+		PrintStream out = System.out;
+		try {
+			for (int i = 0; i < samplers.length; i++) {
+				PAM4L model = new PAM4L(numSuperTopics, numSubTopics,
+					new File(outputDir, "super"), new File(outputDir, "sub"),
+					new File(outputDir, "model"), new File(outputDir, "words"));
+				model.setNumThreads(numThreads);
+				model.setSharedCounts(Estimate.isSharedCounts(options));
+				model.setSampler(samplers[i]);
+				// 収束では止めず, 対数尤度だけを毎イテレーション計算する
+				model.setConvergence(0, 10, 1);
+				sinks[i] = new LikelihoodSink();
+				model.addMetricsSink(sinks[i]);
+
+				// 推定中の進捗表示は出さない
+				System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+				model.estimate(corpus, numIterations, 0, 100, 0, new FastRandoms(seed), expData.getGenes());
+				System.setOut(out);
+			}
+		} finally {
+			System.setOut(out);
+			for (File file : outputDir.listFiles()) {
+				file.delete();
+			}
+			outputDir.delete();
+		}
+
+		StringBuilder header = new StringBuilder("iteration");
+		for (PAM4L.Sampler sampler : samplers) {
+			header.append('\t').append(sampler.name().toLowerCase());
+		}
+		System.out.println(header);
+		for (int iteration = 0; iteration < numIterations; iteration++) {
+			StringBuilder line = new StringBuilder().append(iteration + 1);
+			for (LikelihoodSink sink : sinks) {
+				line.append('\t').append(String.format("%.5f", sink.logLikelihoods.get(iteration)));
+			}
+			System.out.println(line);
+		}
+
+		StringBuilder times = new StringBuilder("# sampling ms");
+		for (LikelihoodSink sink : sinks) {
+			times.append('\t').append(Math.round(sink.sampleMillis));
+		}
+		System.out.println(times);
+	}
+}
@@ -0,0 +1,89 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * The {@link ParallelTopicModel} sampler: one {@link WorkerRunnable} over the
+ *  whole corpus, sampling a single document, cycling through the corpus, and
+ *  a full sweep.
+ * <p>
+ * The state starts from the random assignments of
+ *  {@link ParallelTopicModel#addInstances}, followed by one sweep.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LDASamplerBenchmark {
+
+	@Param({"2000"})
+	int cells;
+
+	@Param({"2000"})
+	int genes;
+
+	@Param({"0.9"})
+	double sparsity;
+
+	@Param({"20", "100"})
+	int topics;
+
+	@Param({"false", "true"})
+	boolean runLength;
+
+	@Param({"HEAP", "OFF_HEAP"})
+	CountTable.Storage storage;
+
+	ParallelTopicModel model;
+	WorkerRunnable worker;
+	int doc = 0;
+
+	@Setup(Level.Trial)
+	public void setUp () {
+		InstanceList instances = new SyntheticExpression(cells, genes, sparsity, topics, 1).toInstances(runLength);
+
+		model = new ParallelTopicModel(topics, 50.0, 0.001);
+		model.setRandomSeed(1);
+		model.setCountStorage(storage);
+		model.addInstances(instances);
+
+		worker = new WorkerRunnable(topics,
+									model.alpha, model.alphaSum, model.beta,
+									new FastRandoms(1), model.data,
+									model.typeTopicCounts, model.tokensPerTopic,
+									0, cells);
+		worker.makeOnlyThread();
+		worker.run();
+	}
+
+	@Benchmark
+	public void sampleOneDoc () {
+		TopicAssignment document = model.data.get(doc);
+		worker.sampleTopicsForOneDoc((FeatureSequence) document.instance.getData(),
+									 document.topicSequence, true);
+		doc = (doc + 1) % cells;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void sweep () {
+		worker.run();
+	}
+
+}
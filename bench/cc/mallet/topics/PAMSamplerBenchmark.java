@@ -0,0 +1,132 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * The {@link PAM4L} samplers on one worker, with the type/sub-topic counts on
+ *  or off the heap: a single document, cycling
+ *  through the corpus, and a full sweep.
+ * <p>
+ * The state starts from random assignments, as in {@link PAM4L#estimate},
+ *  followed by one sweep so the sparse and alias caches are built.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PAMSamplerBenchmark {
+
+	@Param({"2000"})
+	int cells;
+
+	@Param({"2000"})
+	int genes;
+
+	@Param({"0.9"})
+	double sparsity;
+
+	@Param({"5"})
+	int superTopics;
+
+	@Param({"50"})
+	int subTopics;
+
+	@Param({"DENSE", "SPARSE", "ALIAS"})
+	PAM4L.Sampler sampler;
+
+	@Param({"false", "true"})
+	boolean runLength;
+
+	@Param({"HEAP", "OFF_HEAP"})
+	CountTable.Storage storage;
+
+	FlatCorpus corpus;
+	TopicAssignments assignments;
+	PAMWorkerRunnable worker;
+	FastRandoms random;
+	int doc = 0;
+
+	@Setup(Level.Trial)
+	public void setUp () {
+		corpus = FlatCorpus.fromInstances(new SyntheticExpression(cells, genes, sparsity, subTopics, 1).toInstances(runLength));
+		random = new FastRandoms(1);
+
+		int numTypes = corpus.getDataAlphabet().size();
+		double beta = 0.001;
+		double[] alpha = new double[superTopics];
+		Arrays.fill(alpha, 50.0 / superTopics);
+		double[][] subAlphas = new double[superTopics][subTopics];
+		double[] subAlphaSums = new double[superTopics];
+		for (int superTopic = 0; superTopic < superTopics; superTopic++) {
+			Arrays.fill(subAlphas[superTopic], 1.0);
+			subAlphaSums[superTopic] = subTopics;
+		}
+
+		CountTable typeSubTopicCounts = storage.create(numTypes, subTopics);
+		int[] tokensPerSubTopic = new int[subTopics];
+		int[] tokensPerSuperTopic = new int[superTopics];
+		int[][] tokensPerSuperSubTopic = new int[superTopics][subTopics];
+
+		assignments = new TopicAssignments(corpus, superTopics, subTopics);
+		for (int di = 0; di < cells; di++) {
+			int offset = corpus.getOffset(di);
+			for (int index = offset; index < offset + corpus.getLength(di); index++) {
+				int count = corpus.getCount(index);
+				int superTopic = random.nextInt(superTopics);
+				int subTopic = random.nextInt(subTopics);
+				assignments.set(index, superTopic, subTopic);
+				typeSubTopicCounts.add(corpus.getFeature(index), subTopic, count);
+				tokensPerSuperTopic[superTopic] += count;
+				tokensPerSubTopic[subTopic] += count;
+				tokensPerSuperSubTopic[superTopic][subTopic] += count;
+			}
+		}
+
+		worker = new PAMWorkerRunnable(superTopics, subTopics,
+				alpha, subAlphas, subAlphaSums, beta, beta * numTypes, random.split(),
+				corpus, assignments,
+				typeSubTopicCounts, tokensPerSubTopic,
+				tokensPerSuperTopic, tokensPerSuperSubTopic,
+				0, cells);
+		worker.setSampler(sampler);
+		worker.run();
+	}
+
+	@Benchmark
+	public void sampleOneDoc () {
+		if (sampler == PAM4L.Sampler.SPARSE) {
+			worker.sampleTopicsForOneDocSparse(doc, worker.getRandom());
+		}
+		else if (sampler == PAM4L.Sampler.ALIAS) {
+			worker.sampleTopicsForOneDocAlias(doc, worker.getRandom());
+		}
+		else {
+			worker.sampleTopicsForOneDoc(doc, worker.getRandom());
+		}
+		doc = (doc + 1) % cells;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void sweep () {
+		worker.run();
+	}
+
+}
@@ -0,0 +1,177 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * Checks that the sparse and alias {@link PAM4L} samplers draw from the same
+ *  distribution as the dense one. Every sampler starts from the same state and
+ *  resamples a few probe documents over and over, with all other documents
+ *  fixed, and the frequencies of the (super-topic, sub-topic) pairs of the
+ *  probes' tokens are compared with those of the dense sampler by total variation
+ *  distance. A second dense run with another seed gives the distance that
+ *  sampling noise alone accounts for.
+ * <p>
+ * The seeds are fixed, so the output is repeatable. Exits with status 1 if
+ *  a sampler is further from the dense one than 3 times the noise. With
+ *  assertions enabled the sparse sampler also compares its normalizing
+ *  constant with the dense one for every token; the rows are sparse enough
+ *  that its list of non-zero sub-topics has to grow during a sweep.
+ * <pre>
+ * make bench-main MAIN='cc.mallet.topics.PAMSamplerCheck [draws] [runLength]'
+ * </pre>
+ */
+
+public class PAMSamplerCheck {
+
+	static final int CELLS = 200, GENES = 200, SUPER_TOPICS = 3, SUB_TOPICS = 12;
+	static final double SPARSITY = 0.95;
+	static final int BURN_IN = 50;
+	static final int PROBE_DOCS = 5;
+
+	FlatCorpus corpus;
+	int numTypes;
+	double beta;
+	double[] alpha;
+	double[][] subAlphas;
+	double[] subAlphaSums;
+
+	// The state every sampler starts from
+	TopicAssignments assignments;
+	CountTable typeSubTopicCounts;
+	int[] tokensPerSubTopic;
+	int[] tokensPerSuperTopic;
+	int[][] tokensPerSuperSubTopic;
+
+	public PAMSamplerCheck (boolean runLength) {
+		corpus = FlatCorpus.fromInstances(new SyntheticExpression(CELLS, GENES, SPARSITY, SUB_TOPICS, 1).toInstances(runLength));
+		numTypes = corpus.getDataAlphabet().size();
+
+		// Large enough that the smoothing and document buckets of the sparse
+		//  sampler carry much of the weight, not only the type bucket
+		beta = 1.0;
+		alpha = new double[SUPER_TOPICS];
+		Arrays.fill(alpha, 1.0);
+		subAlphas = new double[SUPER_TOPICS][SUB_TOPICS];
+		subAlphaSums = new double[SUPER_TOPICS];
+		for (int superTopic = 0; superTopic < SUPER_TOPICS; superTopic++) {
+			for (int subTopic = 0; subTopic < SUB_TOPICS; subTopic++) {
+				// Unequal, so a mistake in the pair term shows
+				subAlphas[superTopic][subTopic] = 0.1 + 0.1 * ((superTopic + subTopic) % 4);
+				subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
+			}
+		}
+
+		FastRandoms random = new FastRandoms(1);
+		assignments = new TopicAssignments(corpus, SUPER_TOPICS, SUB_TOPICS);
+		typeSubTopicCounts = CountTable.Storage.HEAP.create(numTypes, SUB_TOPICS);
+		tokensPerSubTopic = new int[SUB_TOPICS];
+		tokensPerSuperTopic = new int[SUPER_TOPICS];
+		tokensPerSuperSubTopic = new int[SUPER_TOPICS][SUB_TOPICS];
+		for (int index = 0; index < corpus.size(); index++) {
+			int count = corpus.getCount(index);
+			int superTopic = random.nextInt(SUPER_TOPICS);
+			int subTopic = random.nextInt(SUB_TOPICS);
+			assignments.set(index, superTopic, subTopic);
+			typeSubTopicCounts.add(corpus.getFeature(index), subTopic, count);
+			tokensPerSuperTopic[superTopic] += count;
+			tokensPerSubTopic[subTopic] += count;
+			tokensPerSuperSubTopic[superTopic][subTopic] += count;
+		}
+
+		// Sweep the whole corpus so the counts are far from uniform
+		PAMWorkerRunnable worker = new PAMWorkerRunnable(SUPER_TOPICS, SUB_TOPICS,
+				alpha, subAlphas, subAlphaSums, beta, beta * numTypes, random.split(),
+				corpus, assignments,
+				typeSubTopicCounts, tokensPerSubTopic,
+				tokensPerSuperTopic, tokensPerSuperSubTopic,
+				0, corpus.getNumDocs());
+		for (int iteration = 0; iteration < BURN_IN; iteration++) {
+			worker.run();
+		}
+	}
+
+	/**
+	 * Resample the first <code>PROBE_DOCS</code> documents <code>draws</code> times with a copy of the
+	 *  state and return the frequency of each pair, indexed by
+	 *  <code>superTopic * SUB_TOPICS + subTopic</code>.
+	 */
+	double[] pairFrequencies (PAM4L.Sampler sampler, long seed, int draws) {
+		TopicAssignments probeAssignments = new TopicAssignments(corpus, SUPER_TOPICS, SUB_TOPICS);
+		probeAssignments.copyFrom(assignments);
+		int[][] probeTokensPerSuperSubTopic = new int[SUPER_TOPICS][];
+		for (int superTopic = 0; superTopic < SUPER_TOPICS; superTopic++) {
+			probeTokensPerSuperSubTopic[superTopic] = tokensPerSuperSubTopic[superTopic].clone();
+		}
+
+		PAMWorkerRunnable worker = new PAMWorkerRunnable(SUPER_TOPICS, SUB_TOPICS,
+				alpha, subAlphas, subAlphaSums, beta, beta * numTypes, new FastRandoms(seed),
+				corpus, probeAssignments,
+				typeSubTopicCounts.copy(), tokensPerSubTopic.clone(),
+				tokensPerSuperTopic.clone(), probeTokensPerSuperSubTopic,
+				0, PROBE_DOCS);
+		worker.setSampler(sampler);
+
+		double[] frequencies = new double[SUPER_TOPICS * SUB_TOPICS];
+		double total = 0.0;
+		for (int draw = 0; draw < draws; draw++) {
+			worker.run();
+			for (int index = 0; index < corpus.getOffset(PROBE_DOCS); index++) {
+				int packed = probeAssignments.get(index);
+				int count = corpus.getCount(index);
+				frequencies[probeAssignments.superTopic(packed) * SUB_TOPICS + probeAssignments.subTopic(packed)] += count;
+				total += count;
+			}
+		}
+		for (int pair = 0; pair < frequencies.length; pair++) {
+			frequencies[pair] /= total;
+		}
+		return frequencies;
+	}
+
+	static double totalVariation (double[] p, double[] q) {
+		double distance = 0.0;
+		for (int i = 0; i < p.length; i++) {
+			distance += Math.abs(p[i] - q[i]);
+		}
+		return distance / 2;
+	}
+
+	public static void main (String[] args) {
+		int draws = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		boolean runLength = args.length > 1 && Boolean.parseBoolean(args[1]);
+
+		PAMSamplerCheck check = new PAMSamplerCheck(runLength);
+		System.out.println(PROBE_DOCS + " probe documents, " + check.corpus.getOffset(PROBE_DOCS) + " positions, " +
+						   draws + " draws");
+
+		double[] dense = check.pairFrequencies(PAM4L.Sampler.DENSE, 2, draws);
+		double noise = totalVariation(dense, check.pairFrequencies(PAM4L.Sampler.DENSE, 3, draws));
+		System.out.println("DENSE  total variation from dense " + noise + " (noise)");
+
+		boolean failed = false;
+		long seed = 4;
+		for (PAM4L.Sampler sampler: new PAM4L.Sampler[] { PAM4L.Sampler.SPARSE, PAM4L.Sampler.ALIAS }) {
+			double distance = totalVariation(dense, check.pairFrequencies(sampler, seed++, draws));
+			boolean ok = distance <= 3 * noise;
+			System.out.println(String.format("%-6s total variation from dense %s%s", sampler, distance,
+											 ok ? "" : " FAILED"));
+			failed |= ! ok;
+		}
+
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+}
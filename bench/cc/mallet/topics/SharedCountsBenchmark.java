@@ -0,0 +1,79 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * {@link ParallelTopicModel#estimate} on several threads, with each worker
+ *  sampling against its own copy of the type/topic counts that is merged
+ *  after every sweep, or with all workers sharing the global counts under
+ *  striped locks (see {@link ParallelTopicModel#setSharedCounts}).
+ * <p>
+ * Each operation is a run of a few iterations, so it includes the copies
+ *  made once per run as well as the merges made once per sweep. The model
+ *  keeps its state between operations. Only meaningful with at least as many
+ *  cores as threads.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SharedCountsBenchmark {
+
+	@Param({"20000"})
+	int cells;
+
+	@Param({"2000", "20000"})
+	int genes;
+
+	@Param({"0.9"})
+	double sparsity;
+
+	@Param({"100"})
+	int topics;
+
+	@Param({"4", "8", "16", "32", "64"})
+	int threads;
+
+	@Param({"false", "true"})
+	boolean shared;
+
+	@Param({"5"})
+	int iterations;
+
+	ParallelTopicModel model;
+
+	@Setup(Level.Trial)
+	public void setUp () {
+		InstanceList instances = new SyntheticExpression(cells, genes, sparsity, topics, 1).toInstances(true);
+
+		model = new ParallelTopicModel(topics, 50.0, 0.001);
+		model.setRandomSeed(1);
+		model.setNumThreads(threads);
+		model.setSharedCounts(shared);
+		model.setNumIterations(iterations);
+		model.printLogLikelihood = false;
+		model.addInstances(instances);
+	}
+
+	@Benchmark
+	public void estimate () throws IOException {
+		model.estimate();
+	}
+
+}
@@ -0,0 +1,87 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * {@link ParallelTopicModel#sumTypeTopicCounts}: summing the local type/topic
+ *  counts of several workers into the global counts, as after every sweep.
+ * <p>
+ * The workers are set up as in {@link ParallelTopicModel#estimate}, with
+ *  copies of the counts, and each runs one sweep over its documents so that
+ *  its local counts cover only those documents.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TypeTopicMergeBenchmark {
+
+	@Param({"2000"})
+	int cells;
+
+	@Param({"2000", "20000"})
+	int genes;
+
+	@Param({"0.9"})
+	double sparsity;
+
+	@Param({"20", "100"})
+	int topics;
+
+	@Param({"4"})
+	int threads;
+
+	ParallelTopicModel model;
+	WorkerRunnable[] runnables;
+
+	@Setup(Level.Trial)
+	public void setUp () {
+		InstanceList instances = new SyntheticExpression(cells, genes, sparsity, topics, 1).toInstances(false);
+
+		model = new ParallelTopicModel(topics, 50.0, 0.001);
+		model.setRandomSeed(1);
+		model.setNumThreads(threads);
+		model.addInstances(instances);
+
+		FastRandoms streams = new FastRandoms(1);
+		runnables = new WorkerRunnable[threads];
+		int docsPerThread = cells / threads;
+		int offset = 0;
+		for (int thread = 0; thread < threads; thread++) {
+			CountTable runnableCounts = model.typeTopicCounts.copy();
+			if (thread == threads - 1) {
+				docsPerThread = cells - offset;
+			}
+
+			runnables[thread] = new WorkerRunnable(topics,
+												   model.alpha, model.alphaSum, model.beta,
+												   streams.split(), model.data,
+												   runnableCounts, model.tokensPerTopic.clone(),
+												   offset, docsPerThread);
+			runnables[thread].run();
+			offset += docsPerThread;
+		}
+	}
+
+	@Benchmark
+	public void sumTypeTopicCounts () {
+		model.sumTypeTopicCounts(runnables);
+	}
+
+}
@@ -0,0 +1,157 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.FastRandoms;
+import cc.mallet.util.SyntheticExpression;
+
+/**
+ * Writing the model output files once, from a snapshot taken in the setup:
+ *  the {@link PAMStateWriter} files of PAM4L and the {@link ThetaPhiWriter}
+ *  files of ParallelTopicModel. The files go to a temporary directory.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+
+	@State(Scope.Thread)
+	public static class PAMState {
+
+		@Param({"2000"})
+		int cells;
+
+		@Param({"2000"})
+		int genes;
+
+		@Param({"0.9"})
+		double sparsity;
+
+		@Param({"5"})
+		int superTopics;
+
+		@Param({"50"})
+		int subTopics;
+
+		@Param({"TEXT", "BINARY"})
+		OutputFormat format;
+
+		File directory;
+		PAMStateWriter writer;
+
+		@Setup(Level.Trial)
+		public void setUp () throws IOException {
+			FlatCorpus corpus = FlatCorpus.fromInstances(new SyntheticExpression(cells, genes, sparsity, subTopics, 1).toInstances(true));
+			FastRandoms random = new FastRandoms(1);
+
+			TopicAssignments assignments = new TopicAssignments(corpus, superTopics, subTopics);
+			CountTable typeSubTopicCounts = new HeapCountTable(genes, subTopics);
+			for (int di = 0; di < cells; di++) {
+				int offset = corpus.getOffset(di);
+				for (int index = offset; index < offset + corpus.getLength(di); index++) {
+					int superTopic = random.nextInt(superTopics);
+					int subTopic = random.nextInt(subTopics);
+					assignments.set(index, superTopic, subTopic);
+					typeSubTopicCounts.add(corpus.getFeature(index), subTopic, corpus.getCount(index));
+				}
+			}
+			double[][] subAlphas = new double[superTopics][subTopics];
+			for (double[] row : subAlphas) {
+				for (int subTopic = 0; subTopic < subTopics; subTopic++) {
+					row[subTopic] = random.nextUniform(0.1, 2.0);
+				}
+			}
+
+			directory = Files.createTempDirectory("pam-writer").toFile();
+			writer = new PAMStateWriter(new File(directory, "super.txt"), new File(directory, "sub.txt"),
+										new File(directory, "weights.txt"), new File(directory, "words.txt"),
+										format, corpus, superTopics, subTopics);
+			writer.snapshotAndWait(assignments, typeSubTopicCounts, subAlphas, 0);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () throws IOException {
+			writer.close();
+			deleteDirectory(directory);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class LDAState {
+
+		@Param({"2000"})
+		int cells;
+
+		@Param({"2000"})
+		int genes;
+
+		@Param({"0.9"})
+		double sparsity;
+
+		@Param({"20"})
+		int topics;
+
+		@Param({"TEXT", "BINARY"})
+		OutputFormat format;
+
+		File directory;
+		ThetaPhiWriter writer;
+
+		@Setup(Level.Trial)
+		public void setUp () throws IOException {
+			SyntheticExpression data = new SyntheticExpression(cells, genes, sparsity, topics, 1);
+
+			ParallelTopicModel model = new ParallelTopicModel(topics, 50.0, 0.001);
+			model.setRandomSeed(1);
+			model.addInstances(data.toInstances(true));
+
+			directory = Files.createTempDirectory("lda-writer").toFile();
+			writer = new ThetaPhiWriter(new File(directory, "theta.txt"), new File(directory, "phi.txt"),
+										format, data.genes, cells, topics);
+			writer.snapshot(model.data, model.typeTopicCounts, model.topicMask, model.topicBits, model.alpha, 0);
+			writer.finish();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () throws IOException {
+			writer.close();
+			deleteDirectory(directory);
+		}
+	}
+
+	@Benchmark
+	public void writePAMState (PAMState state) throws IOException {
+		state.writer.write();
+	}
+
+	@Benchmark
+	public void writeThetaPhi (LDAState state) throws IOException {
+		state.writer.write();
+	}
+
+	static void deleteDirectory (File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+}
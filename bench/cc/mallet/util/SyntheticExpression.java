@@ -0,0 +1,194 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.types.*;
+
+/**
+ *	A random cell x gene count matrix for the benchmarks, held in the same
+ *	 CSR layout as <code>ExpData</code>.
+ *
+ *	The genes are split into <code>numPrograms</code> programs of co-expressed
+ *	 genes. Every cell has one dominant program, whose genes get five times the
+ *	 mean count of the others, so the topic models have some structure to find.
+ *	Each cell expresses <code>(1 - sparsity) * numGenes</code> genes, chosen
+ *	 uniformly, with geometrically distributed counts of at least 1.
+ *	The same arguments always give the same matrix.
+ */
+
+public class SyntheticExpression {
+
+	public static final double MEAN_COUNT = 2.0;
+	public static final double PROGRAM_MEAN_COUNT = 10.0;
+
+	public final int numCells, numGenes;
+	public final String[] genes;
+	// Cell i has the genes geneIndices[cellOffsets[i] .. cellOffsets[i + 1] - 1], in increasing order
+	public final int[] cellOffsets;
+	public final int[] geneIndices;
+	public final int[] counts;
+
+	/**
+	 *	@param sparsity The fraction of zero entries in every cell, in [0, 1)
+	 *	@param numPrograms The number of gene programs, e.g. the number of topics
+	 */
+	public SyntheticExpression (int numCells, int numGenes, double sparsity, int numPrograms, long seed) {
+		if (sparsity < 0 || sparsity >= 1) {
+			throw new IllegalArgumentException("sparsity must be in [0, 1): " + sparsity);
+		}
+
+		this.numCells = numCells;
+		this.numGenes = numGenes;
+
+		genes = new String[numGenes];
+		for (int gene = 0; gene < numGenes; gene++) {
+			genes[gene] = "g" + gene;
+		}
+
+		int genesPerCell = Math.max(1, (int) Math.round((1 - sparsity) * numGenes));
+
+		cellOffsets = new int[numCells + 1];
+		geneIndices = new int[numCells * genesPerCell];
+		counts = new int[numCells * genesPerCell];
+
+		Random random = new Random(seed);
+		int[] permutation = new int[numGenes];
+		for (int gene = 0; gene < numGenes; gene++) {
+			permutation[gene] = gene;
+		}
+
+		int offset = 0;
+		for (int cell = 0; cell < numCells; cell++) {
+			int program = random.nextInt(numPrograms);
+
+			// A partial Fisher-Yates shuffle picks the expressed genes
+			for (int i = 0; i < genesPerCell; i++) {
+				int j = i + random.nextInt(numGenes - i);
+				int swap = permutation[i];
+				permutation[i] = permutation[j];
+				permutation[j] = swap;
+			}
+			System.arraycopy(permutation, 0, geneIndices, offset, genesPerCell);
+			Arrays.sort(geneIndices, offset, offset + genesPerCell);
+
+			for (int i = offset; i < offset + genesPerCell; i++) {
+				double mean = (geneIndices[i] % numPrograms == program) ? PROGRAM_MEAN_COUNT : MEAN_COUNT;
+				counts[i] = geometric(random, mean);
+			}
+
+			offset += genesPerCell;
+			cellOffsets[cell + 1] = offset;
+		}
+	}
+
+	/** A count of at least 1 with the given mean. */
+	static int geometric (Random random, double mean) {
+		if (mean <= 1) {
+			return 1;
+		}
+		return 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / mean));
+	}
+
+	public int getNumTokens () {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 *	One instance per cell, as <code>ExpData2FeatureSequence</code> would
+	 *	 make them: a {@link FeatureSequence} with one position per token, or
+	 *	 with <code>runLength</code> a {@link FeatureCountSequence} with one
+	 *	 position per expressed gene. Every gene is in the alphabet.
+	 */
+	public InstanceList toInstances (boolean runLength) {
+		Alphabet alphabet = new Alphabet();
+		for (String gene : genes) {
+			alphabet.lookupIndex(gene);
+		}
+
+		InstanceList instances = new InstanceList(alphabet, null);
+		for (int cell = 0; cell < numCells; cell++) {
+			int start = cellOffsets[cell];
+			int end = cellOffsets[cell + 1];
+
+			FeatureSequence sequence;
+			if (runLength) {
+				sequence = new FeatureCountSequence(alphabet, end - start);
+				for (int i = start; i < end; i++) {
+					((FeatureCountSequence) sequence).add(geneIndices[i], counts[i]);
+				}
+			}
+			else {
+				int length = 0;
+				for (int i = start; i < end; i++) {
+					length += counts[i];
+				}
+				sequence = new FeatureSequence(alphabet, length);
+				for (int i = start; i < end; i++) {
+					for (int j = 0; j < counts[i]; j++) {
+						sequence.add(geneIndices[i]);
+					}
+				}
+			}
+			instances.add(new Instance(sequence, null, "cell" + cell, null));
+		}
+		return instances;
+	}
+
+	/** The gene names as a single comma separated line. */
+	public void writeGenes (File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			out.println(String.join(",", genes));
+		}
+	}
+
+	/** The dense comma separated matrix, one row per cell. */
+	public void writeDense (File file) throws IOException {
+		int[] row = new int[numGenes];
+		StringBuilder line = new StringBuilder();
+		try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+			for (int cell = 0; cell < numCells; cell++) {
+				Arrays.fill(row, 0);
+				for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+					row[ geneIndices[i] ] = counts[i];
+				}
+
+				line.setLength(0);
+				for (int gene = 0; gene < numGenes; gene++) {
+					if (gene > 0) {
+						line.append(',');
+					}
+					line.append(row[gene]);
+				}
+				line.append('\n');
+				out.write(line.toString());
+			}
+		}
+	}
+
+	/** A Matrix Market coordinate file, genes x cells as in 10x Genomics' matrix.mtx. */
+	public void writeMatrixMarket (File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16))) {
+			out.println("%%MatrixMarket matrix coordinate integer general");
+			out.println(numGenes + " " + numCells + " " + counts.length);
+			for (int cell = 0; cell < numCells; cell++) {
+				for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+					out.println((geneIndices[i] + 1) + " " + (cell + 1) + " " + counts[i]);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package genepam;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.Instance;
+import cc.mallet.util.SyntheticExpression;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 発現プロファイルの読み込み (ExpData) と, 細胞を Mallet の instance にする
+ * ExpData2FeatureSequence#pipe, 全細胞を 1 つの FlatCorpus にする ExpTopicModel#createCorpus のベンチマーク.
+ * 入力は {@link SyntheticExpression} で作った行列で, 読み込みでは一時ディレクトリに書き出したファイルを使う.
+ * <p>
+ * JMH はデフォルトパッケージのクラスをベンチマークにできず, 名前のあるパッケージからは
+ * デフォルトパッケージの ExpData などを参照できないので, コンストラクタとメソッドは
+ * セットアップでリフレクションで取り出しておく. 1 回の呼び出しで行列全体を処理するので,
+ * リフレクションのコストは計測に影響しない.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpDataBenchmark {
+
+	static final Constructor<?> READ_EXP_DATA;
+	static final Constructor<?> NEW_EXP_DATA;
+	static final Constructor<?> NEW_PIPE;
+	static final Method CREATE_CORPUS;
+	static final Method GET_CELL;
+	static final Method GET_NUM_CELLS;
+	static final Method WRITE_CSR;
+
+	static {
+		try {
+			Class<?> expData = Class.forName("ExpData");
+			READ_EXP_DATA = expData.getConstructor(File.class, File.class, int.class);
+			NEW_EXP_DATA = expData.getDeclaredConstructor(String[].class, int[].class, int[].class, int[].class);
+			NEW_EXP_DATA.setAccessible(true);
+			GET_CELL = expData.getMethod("getCell", int.class);
+			GET_NUM_CELLS = expData.getMethod("getNumCells");
+			WRITE_CSR = expData.getMethod("writeCsr", File.class);
+
+			NEW_PIPE = Class.forName("ExpData2FeatureSequence").getDeclaredConstructor(String[].class, boolean.class);
+			NEW_PIPE.setAccessible(true);
+			CREATE_CORPUS = Class.forName("ExpTopicModel").getMethod("createCorpus", expData, boolean.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * CSR の配列から ExpData を作る.
+	 */
+	static Object newExpData(SyntheticExpression matrix) throws ReflectiveOperationException {
+		return NEW_EXP_DATA.newInstance(matrix.genes, matrix.cellOffsets, matrix.geneIndices, matrix.counts);
+	}
+
+	@State(Scope.Benchmark)
+	public static class DataFile {
+		@Param({"2000"})
+		int cells;
+
+		@Param({"2000"})
+		int genes;
+
+		@Param({"0.9"})
+		double sparsity;
+
+		// csv: カンマ区切りの密な行列, mtx: Matrix Market, csr: バイナリの CSR
+		@Param({"csv", "mtx", "csr"})
+		String format;
+
+		// カンマ区切りのデータを読み込むスレッド数 (csv 以外では使わない)
+		@Param({"1", "4"})
+		int threads;
+
+		File directory;
+		File data;
+		File genesFile;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, ReflectiveOperationException {
+			SyntheticExpression matrix = new SyntheticExpression(cells, genes, sparsity, 10, 1);
+			directory = Files.createTempDirectory("expdata").toFile();
+			genesFile = new File(directory, "genes.txt");
+			matrix.writeGenes(genesFile);
+
+			data = new File(directory, "data." + format);
+			switch (format) {
+				case "csv":
+					matrix.writeDense(data);
+					break;
+				case "mtx":
+					matrix.writeMatrixMarket(data);
+					break;
+				case "csr":
+					WRITE_CSR.invoke(newExpData(matrix), data);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown format: " + format);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			data.delete();
+			genesFile.delete();
+			directory.delete();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Cells {
+		@Param({"2000"})
+		int cells;
+
+		@Param({"2000"})
+		int genes;
+
+		@Param({"0.9"})
+		double sparsity;
+
+		@Param({"false", "true"})
+		boolean runLength;
+
+		String[] geneNames;
+		Object expData;
+		int numCells;
+
+		@Setup(Level.Trial)
+		public void setUp() throws ReflectiveOperationException {
+			SyntheticExpression matrix = new SyntheticExpression(cells, genes, sparsity, 10, 1);
+			geneNames = matrix.genes;
+			expData = newExpData(matrix);
+			numCells = (Integer) GET_NUM_CELLS.invoke(expData);
+		}
+	}
+
+	@Benchmark
+	public Object read(DataFile file) throws ReflectiveOperationException {
+		return READ_EXP_DATA.newInstance(file.data, file.genesFile, file.threads);
+	}
+
+	/**
+	 * 全細胞を新しい pipe に通す. Alphabet への遺伝子の登録も含む.
+	 */
+	@Benchmark
+	public void pipe(Cells cells, Blackhole blackhole) throws ReflectiveOperationException {
+		Pipe pipe = (Pipe) NEW_PIPE.newInstance(cells.geneNames, cells.runLength);
+		for (int cell = 0; cell < cells.numCells; cell++) {
+			blackhole.consume(pipe.pipe(new Instance(GET_CELL.invoke(cells.expData, cell), null, null, null)));
+		}
+	}
+
+	/**
+	 * pipe と同じ変換で, 全細胞のトークンを 1 つの配列にまとめる.
+	 */
+	@Benchmark
+	public Object corpus(Cells cells) throws ReflectiveOperationException {
+		return CREATE_CORPUS.invoke(null, cells.expData, cells.runLength);
+	}
+}
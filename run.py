@@ -5,6 +5,13 @@ import yaml
 CONFIG_FILE = './config.yaml'
 
 
+def checkpoint_options(conf, checkpointfile):
+    if conf.get('checkpoint_interval', 0) <= 0:
+        return []
+    return ['--checkpoint=' + checkpointfile,
+            '--checkpoint-interval={0:d}'.format(conf['checkpoint_interval'])]
+
+
 def run(is_pam=True):
     with open(CONFIG_FILE) as f:
         conf = yaml.load(f)
@@ -21,8 +28,8 @@ def run(is_pam=True):
     n_iter = conf['num_iterations']
 
     datadir = './data/' + conf['dataset']
-    datafile = datadir + '/data.txt'
-    genefile = datadir + '/genes.txt'
+    datafile = datadir + '/' + conf.get('data_file', 'data.txt')
+    genefile = datadir + '/' + conf.get('genes_file', 'genes.txt')
 
     if is_pam:
         outputfile_fmt = conf['output_dir'] +  '/{0}-{1}-{2}-{3}'
@@ -32,43 +39,66 @@ def run(is_pam=True):
     jarfile = conf['jar']
     mem_limit = conf['mem_limit']
 
-    procs = []
+    options = []
+    if conf.get('run_length', False):
+        options.append('--run-length')
+    options.append('--format={0}'.format(conf.get('output_format', 'text')))
+    if conf.get('shared_counts', False):
+        options.append('--shared-counts')
+    if conf.get('off_heap', False):
+        options.append('--off-heap')
+    if conf.get('convergence_tolerance', 0) > 0:
+        options.append('--converge-tolerance={0}'.format(conf['convergence_tolerance']))
+        options.append('--converge-window={0:d}'.format(conf.get('convergence_window', 10)))
     if is_pam:
-        for super_, sub in topics:
-            cmd = ['java',
-                   '-Xmx{0:d}g'.format(mem_limit) if mem_limit != -1 else '',
-                   '-jar',
-                   jarfile,
-                   str(super_),
-                   str(sub),
-                   str(n_iter),
-                   datafile,
-                   genefile,
-                   outputfile_fmt.format(super_, sub, n_iter, 'super.txt'),
-                   outputfile_fmt.format(super_, sub, n_iter, 'sub.txt'),
-                   outputfile_fmt.format(super_, sub, n_iter, 'model.txt'),
-                   outputfile_fmt.format(super_, sub, n_iter, 'words.txt')]
-            print(' '.join(cmd))
-            procs.append(subprocess.Popen(' '.join(cmd), shell=True))
+        options.append('--threads={0:d}'.format(conf.get('n_thread', 1)))
+        options.append('--sampler={0}'.format(conf.get('sampler', 'dense')))
+        options.append('--alias-interval={0:d}'.format(conf.get('alias_interval', 100)))
+        options.append('--mh-steps={0:d}'.format(conf.get('mh_steps', 2)))
 
-    else:
-        for i, t in enumerate(topics):
-            cmd = ['java',
-                   '-Xmx{0:d}g'.format(mem_limit) if mem_limit != -1 else '',
-                   '-jar',
-                   jarfile,
-                   str(t),
-                   datafile,
-                   genefile,
-                   outputfile_fmt.format(t, 'theta.txt'),
-                   outputfile_fmt.format(t, 'phi.txt'),
-                   str(conf['n_thread']),
-                   str(conf['n_burnin'][i])]
-            print(' '.join(cmd))
-            procs.append(subprocess.Popen(' '.join(cmd), shell=True))
-
-    for p in procs:
-        p.wait()
+    # 全ての組み合わせを 1 つの設定ファイルに書き, 1 つの JVM でデータを共有して実行する
+    sweepfile = conf['output_dir'] + ('/sweep-pam.txt' if is_pam else '/sweep-lda.txt')
+    with open(sweepfile, 'w') as f:
+        f.write('data {0} {1}\n'.format(datafile, genefile))
+        if is_pam:
+            for super_, sub in topics:
+                # PAM では burn-in 期間は使われないので 0 とする
+                f.write(' '.join(['pam', str(super_), str(sub), str(n_iter), '0',
+                                  outputfile_fmt.format(super_, sub, n_iter, 'super.txt'),
+                                  outputfile_fmt.format(super_, sub, n_iter, 'sub.txt'),
+                                  outputfile_fmt.format(super_, sub, n_iter, 'model.txt'),
+                                  outputfile_fmt.format(super_, sub, n_iter, 'words.txt')]
+                                 + checkpoint_options(conf, outputfile_fmt.format(super_, sub, n_iter, 'checkpoint.bin')))
+                        + '\n')
+        else:
+            for i, t in enumerate(topics):
+                f.write(' '.join(['lda', str(t),
+                                  outputfile_fmt.format(t, 'theta.txt'),
+                                  outputfile_fmt.format(t, 'phi.txt'),
+                                  str(conf['n_thread']),
+                                  str(n_iter),
+                                  str(conf['n_burnin'][i])]
+                                 + checkpoint_options(conf, outputfile_fmt.format(t, 'checkpoint.bin')))
+                        + '\n')
+
+    if 'seed' in conf:
+        options.append('--seed={0:d}'.format(conf['seed']))
+    if conf.get('resume', False):
+        options.append('--resume')
+    if 'parallel_runs' in conf:
+        options.append('--parallel={0:d}'.format(conf['parallel_runs']))
+    if conf.get('metrics_interval', 0) > 0:
+        options.append('--metrics=' + conf['output_dir'] + ('/metrics-pam.jsonl' if is_pam else '/metrics-lda.jsonl'))
+        options.append('--metrics-interval={0:d}'.format(conf['metrics_interval']))
+    if conf.get('jmx', False):
+        options.append('--jmx')
+
+    cmd = ['java',
+           '-Xmx{0:d}g'.format(mem_limit) if mem_limit != -1 else '',
+           '-jar',
+           jarfile] + options + ['--sweep=' + sweepfile]
+    print(' '.join(cmd))
+    subprocess.call(' '.join(cmd), shell=True)
 
 
 if __name__ == '__main__':
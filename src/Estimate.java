@@ -1,51 +1,240 @@
-import com.sun.deploy.util.StringUtils;
+import cc.mallet.topics.CountTable;
+import cc.mallet.topics.JmxMetricsSink;
+import cc.mallet.topics.JsonMetricsSink;
+import cc.mallet.topics.MetricsSink;
+import cc.mallet.topics.OutputFormat;
+import cc.mallet.topics.PAM4L;
+import cc.mallet.types.FlatCorpus;
+import cc.mallet.types.InstanceList;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Estimate {
-	public static void main(String[] args) throws IOException {
+	/**
+	 * "--name=value" (または "--name") 形式のオプションを取り除き, options に格納する.
+	 * 残りの位置引数を返す.
+	 */
+	static String[] parseOptions(String[] args, Map<String, String> options) {
+		List<String> positional = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq == -1) {
+					options.put(arg.substring(2), "true");
+				} else {
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				}
+			} else {
+				positional.add(arg);
+			}
+		}
+		return positional.toArray(new String[0]);
+	}
+
+	public static void main(String[] rawArgs) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		String[] args = parseOptions(rawArgs, options);
+
+		if (options.containsKey("sweep")) {
+			// 1 つの JVM でデータを 1 回だけ読み込み, 設定ファイルに並べた複数の推定を実行する
+			if (!Sweep.run(new File(options.get("sweep")), options)) {
+				System.exit(1);
+			}
+			return;
+		}
+
 		if (args.length == 8) {
 			// LDA
-			int numOfTopics = Integer.parseInt(args[0]);
-			File data = new File(args[1]);
-			File genes = new File(args[2]);
-			File thetaOutput = new File(args[3]);
-			File phiOutput = new File(args[4]);
-			int numOfThreads = Integer.parseInt(args[5]);
-			ExpData expData = new ExpData(data, genes);
-			LDA model = new LDA(expData, numOfTopics, thetaOutput, phiOutput);
-			model.tm.setNumThreads(numOfThreads);
-			int numIterations = Integer.parseInt(args[6]);
-			model.tm.setNumIterations(numIterations);
-			model.tm.setWriteFileInterval(numIterations / 50);
-			model.tm.setBurninPeriod(Integer.parseInt(args[7]));
-			model.tm.estimate();
+			ExpData expData = new ExpData(new File(args[1]), new File(args[2]));
+			InstanceList instances = ExpTopicModel.createInstances(expData, isRunLength(options));
+			estimateLda(expData, instances, new String[]{args[0], args[3], args[4], args[5], args[6], args[7]},
+				options);
 		} else if (args.length == 10){
-			int numSuperTopics = Integer.parseInt(args[0]);
-			int numSubTopics = Integer.parseInt(args[1]);
-			int numIterations = Integer.parseInt(args[2]);
-			int burninPeriod = Integer.parseInt(args[3]);
+			ExpData expData = new ExpData(new File(args[4]), new File(args[5]));
+			FlatCorpus corpus = ExpTopicModel.createCorpus(expData, isRunLength(options));
+			estimatePam(expData, corpus, new String[]{args[0], args[1], args[2], args[3],
+				args[6], args[7], args[8], args[9]}, options);
+		} else {
+			System.err.println("Args number is invalid.");
+			System.exit(1);
+		}
+
 
-			File data = new File(args[4]);
-			File genes = new File(args[5]);
+	}
 
-			File superTopicOutput = new File(args[6]);
-			File subTopicOutput = new File(args[7]);
+	/**
+	 * 各細胞を UMI ごとに展開せず, (遺伝子, カウント) のランとして扱うか.
+	 * ランの全てのカウントは同じトピックを取り, その条件付き確率 (上昇階乗の積) からまとめてサンプリングされる
+	 */
+	static boolean isRunLength(Map<String, String> options) {
+		return Boolean.parseBoolean(options.getOrDefault("run-length", "false"));
+	}
 
-			File superSubWeightsOutput = new File(args[8]);
-			File wordOutput = new File(args[9]);
+	/**
+	 * @param args トピック数, theta の出力先, phi の出力先, スレッド数, イテレーション数, burn-in 期間
+	 */
+	static void estimateLda(ExpData expData, InstanceList instances, String[] args, Map<String, String> options)
+		throws IOException {
+		int numOfTopics = Integer.parseInt(args[0]);
+		File thetaOutput = new File(args[1]);
+		File phiOutput = new File(args[2]);
+		int numOfThreads = Integer.parseInt(args[3]);
+		int numIterations = Integer.parseInt(args[4]);
+		int seed = seed(options);
+		System.out.println("Random seed " + seed + " for " + thetaOutput);
+		LDA model = new LDA(expData, instances, numOfTopics, thetaOutput, phiOutput, seed);
+		model.tm.setNumThreads(numOfThreads);
+		model.tm.setNumIterations(numIterations);
+		// 50 回未満の反復では 0 となり, 最後の状態だけが書き出される
+		model.tm.setWriteFileInterval(numIterations / 50);
+		model.tm.setBurninPeriod(Integer.parseInt(args[5]));
+		model.tm.setOutputFormat(outputFormat(options));
+		model.tm.setSharedCounts(isSharedCounts(options));
+		model.tm.setCountStorage(countStorage(options));
+		if (options.containsKey("checkpoint")) {
+			model.tm.setCheckpoint(new File(options.get("checkpoint")), checkpointInterval(options),
+				isResume(options));
+		}
+		model.tm.setConvergence(convergenceTolerance(options), convergenceWindow(options),
+			convergenceInterval(options));
+		for (MetricsSink sink : metricsSinks(options)) {
+			model.tm.addMetricsSink(sink);
+		}
+		model.tm.estimate();
+	}
 
+	/**
+	 * @param args 上位トピック数, 下位トピック数, イテレーション数, burn-in 期間,
+	 *             上位トピック, 下位トピック, 上位下位の重み, 遺伝子の出力先
+	 */
+	static void estimatePam(ExpData expData, FlatCorpus corpus, String[] args, Map<String, String> options)
+		throws IOException {
+		int numSuperTopics = Integer.parseInt(args[0]);
+		int numSubTopics = Integer.parseInt(args[1]);
+		int numIterations = Integer.parseInt(args[2]);
+		int burninPeriod = Integer.parseInt(args[3]);
 
-			ExpData expData = new ExpData(data, genes);
-			PAM model = new PAM(expData, numSuperTopics, numSubTopics, superTopicOutput, subTopicOutput, superSubWeightsOutput, wordOutput);
+		File superTopicOutput = new File(args[4]);
+		File subTopicOutput = new File(args[5]);
 
-			model.estimate(numIterations, burninPeriod, expData.getGenes());
-		} else {
-			System.err.println("Args number is invalid.");
-			System.exit(1);
+		File superSubWeightsOutput = new File(args[6]);
+		File wordOutput = new File(args[7]);
+
+		PAM model = new PAM(expData, corpus, numSuperTopics, numSubTopics, superTopicOutput, subTopicOutput,
+			superSubWeightsOutput, wordOutput);
+		model.pam4L.setNumThreads(Integer.parseInt(options.getOrDefault("threads", "1")));
+		model.pam4L.setSampler(PAM4L.Sampler.valueOf(options.getOrDefault("sampler", "dense").toUpperCase()));
+		model.pam4L.setAliasParameters(Integer.parseInt(options.getOrDefault("alias-interval", "100")),
+			Integer.parseInt(options.getOrDefault("mh-steps", "2")));
+		model.pam4L.setOutputFormat(outputFormat(options));
+		model.pam4L.setCountStorage(countStorage(options));
+		model.pam4L.setSharedCounts(isSharedCounts(options));
+		if (options.containsKey("checkpoint")) {
+			model.pam4L.setCheckpoint(new File(options.get("checkpoint")), checkpointInterval(options),
+				isResume(options));
+		}
+
+		model.pam4L.setConvergence(convergenceTolerance(options), convergenceWindow(options),
+			convergenceInterval(options));
+		for (MetricsSink sink : metricsSinks(options)) {
+			model.pam4L.addMetricsSink(sink);
 		}
 
+		int seed = seed(options);
+		System.out.println("Random seed " + seed + " for " + superTopicOutput);
+		model.estimate(numIterations, burninPeriod, expData.getGenes(), seed);
+	}
+
+	/**
+	 * 乱数の種. 同じ種とスレッド数なら同じ結果になる.
+	 * 指定しなければ時刻から決める (使った種は出力されるので, 後から同じ結果を再現できる)
+	 */
+	static int seed(Map<String, String> options) {
+		if (options.containsKey("seed")) {
+			return Integer.parseInt(options.get("seed"));
+		}
+		// 負にならないので, ParallelTopicModel で種なしを意味する -1 にはならない
+		return (int) (System.nanoTime() & Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 対数尤度/トークンの変化率がこの値を下回ったら, イテレーション数に達する前に推定を終える. 0 なら終えない
+	 */
+	static double convergenceTolerance(Map<String, String> options) {
+		return Double.parseDouble(options.getOrDefault("converge-tolerance", "0"));
+	}
+
+	/**
+	 * 収束の判定に使う対数尤度の個数. 古い半分と新しい半分の平均を比べる
+	 */
+	static int convergenceWindow(Map<String, String> options) {
+		return Integer.parseInt(options.getOrDefault("converge-window", "10"));
+	}
+
+	/**
+	 * 何イテレーションごとに対数尤度を計算して収束を判定するか. PAM ではメトリクスにも出力される
+	 */
+	static int convergenceInterval(Map<String, String> options) {
+		return Integer.parseInt(options.getOrDefault("converge-interval", "10"));
+	}
+
+	/**
+	 * --checkpoint で指定したファイルに, 何イテレーションごとにサンプリングの状態を保存するか
+	 */
+	static int checkpointInterval(Map<String, String> options) {
+		return Integer.parseInt(options.getOrDefault("checkpoint-interval", "100"));
+	}
+
+	/**
+	 * --checkpoint のファイルがあれば, そこに保存された状態から推定を再開する
+	 */
+	static boolean isResume(Map<String, String> options) {
+		return Boolean.parseBoolean(options.getOrDefault("resume", "false"));
+	}
+
+	/**
+	 * イテレーションごとの速度 (トークン/秒), 時間の内訳, メモリ使用量の出力先.
+	 * --metrics=FILE なら --metrics-interval (既定 1) イテレーションごとに FILE に JSON を 1 行ずつ追記し,
+	 * --jmx なら JMX の MXBean として公開する
+	 */
+	static List<MetricsSink> metricsSinks(Map<String, String> options) throws IOException {
+		List<MetricsSink> sinks = new ArrayList<>();
+		if (options.containsKey("metrics")) {
+			sinks.add(new JsonMetricsSink(new File(options.get("metrics")),
+				Integer.parseInt(options.getOrDefault("metrics-interval", "1"))));
+		}
+		if (Boolean.parseBoolean(options.getOrDefault("jmx", "false"))) {
+			sinks.add(new JmxMetricsSink());
+		}
+		return sinks;
+	}
+
+	/**
+	 * 遺伝子 × (下位) トピックのカウント表の置き場所. --off-heap ならヒープ外のメモリに置き,
+	 * GC の対象から外す. その分は -Xmx ではなく -XX:MaxDirectMemorySize で制限される
+	 */
+	static CountTable.Storage countStorage(Map<String, String> options) {
+		return Boolean.parseBoolean(options.getOrDefault("off-heap", "false")) ?
+			CountTable.Storage.OFF_HEAP : CountTable.Storage.HEAP;
+	}
+
+	/**
+	 * 複数スレッドで 1 つのカウント表を共有するか. PAM ではアトミックに, LDA では遺伝子ごとのロックを取って更新する.
+	 * スレッドごとのコピーとイテレーションごとのマージが不要になるが, シードを固定しても結果は再現しない
+	 */
+	static boolean isSharedCounts(Map<String, String> options) {
+		return Boolean.parseBoolean(options.getOrDefault("shared-counts", "false"));
+	}
 
+	/**
+	 * 出力形式: text (カンマ区切り), binary (リトルエンディアンのバイナリ行列), both
+	 */
+	static OutputFormat outputFormat(Map<String, String> options) {
+		return OutputFormat.valueOf(options.getOrDefault("format", "text").toUpperCase());
 	}
-}
\ No newline at end of file
+}
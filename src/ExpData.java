@@ -1,40 +1,339 @@
-import cc.mallet.util.FileUtils;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * 発現プロファイル (細胞 × 遺伝子のカウント行列).
+ * 細胞ごとに発現している遺伝子だけを CSR (compressed sparse row) 形式で保持するので,
+ * メモリ使用量は 0 でない値の数に比例する.
+ * <p>
+ * データファイルの形式は拡張子で判定する.
+ * <ul>
+ * <li>.mtx : Matrix Market 形式 ({@link SparseExpReader#readMatrixMarket})</li>
+ * <li>.csr : バイナリの CSR 形式 ({@link SparseExpReader#readCsr})</li>
+ * <li>それ以外 : カンマ区切りの密な行列 (行が細胞, 列が遺伝子)</li>
+ * </ul>
+ */
 public class ExpData {
+	// 1 チャンクの目安のバイト数. MappedByteBuffer は 2GB 未満でなければならない.
+	private static final long CHUNK_SIZE = 64L << 20;
+
 	// Use array rather than List for faster processing
 	final private String[] genes;
-	final private List<int[]> data;
+	// 細胞 i の遺伝子は geneIndices[cellOffsets[i]] から geneIndices[cellOffsets[i + 1] - 1] まで (昇順)
+	final private int[] cellOffsets;
+	final private int[] geneIndices;
+	final private int[] counts;
 
 	public ExpData(File data, File genesFile) throws IOException {
-		final BufferedReader genesBr = new BufferedReader(new FileReader(genesFile));
-		this.genes = genesBr.readLine().split(",");
+		this(data, genesFile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param numThreads カンマ区切りのデータを読み込むスレッド数
+	 */
+	public ExpData(File data, File genesFile, int numThreads) throws IOException {
+		this.genes = readGenes(genesFile);
+
+		String name = data.getName();
+		ExpData loaded;
+		if (name.endsWith(".mtx")) {
+			loaded = SparseExpReader.readMatrixMarket(data, this.genes);
+		} else if (name.endsWith(".csr")) {
+			loaded = SparseExpReader.readCsr(data, this.genes);
+		} else {
+			loaded = readDense(data, this.genes, numThreads);
+		}
+		this.cellOffsets = loaded.cellOffsets;
+		this.geneIndices = loaded.geneIndices;
+		this.counts = loaded.counts;
+	}
+
+	ExpData(String[] genes, int[] cellOffsets, int[] geneIndices, int[] counts) {
+		this.genes = genes;
+		this.cellOffsets = cellOffsets;
+		this.geneIndices = geneIndices;
+		this.counts = counts;
+	}
+
+	/**
+	 * 遺伝子一覧を読み込む. カンマ区切りの 1 行, または 1 行に 1 遺伝子
+	 * (10x Genomics の features.tsv のようなタブ区切りなら最初の列) のどちらでもよい.
+	 */
+	static String[] readGenes(File genesFile) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader genesBr = new BufferedReader(new FileReader(genesFile))) {
+			String line;
+			while ((line = genesBr.readLine()) != null) {
+				if (!line.isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+		if (lines.isEmpty()) {
+			throw new IOException("No genes in " + genesFile);
+		}
+		if (lines.size() == 1) {
+			return lines.get(0).split(",");
+		}
+		String[] genes = new String[lines.size()];
+		for (int i = 0; i < genes.length; i++) {
+			String line = lines.get(i);
+			int tab = line.indexOf('\t');
+			genes[i] = (tab == -1) ? line : line.substring(0, tab);
+		}
+		return genes;
+	}
+
+	/**
+	 * カンマ区切りの密な行列をメモリマップし, 行の境界で区切ったチャンクを numThreads 個のスレッドで並列に読み込む.
+	 * 数値は String を作らずにバイト列から直接パースし, 0 でない値だけを残す.
+	 */
+	private static ExpData readDense(File data, String[] genes, int numThreads) throws IOException {
+		try (FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+			long[] bounds = findChunkBounds(channel, Math.max(1, numThreads) * 4);
+
+			List<Callable<SparseRows>> tasks = new ArrayList<>(bounds.length - 1);
+			for (int c = 0; c + 1 < bounds.length; c++) {
+				final long start = bounds[c];
+				final long end = bounds[c + 1];
+				tasks.add(() -> parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start),
+						start, genes.length));
+			}
+
+			List<SparseRows> chunks = new ArrayList<>(tasks.size());
+			if (numThreads <= 1) {
+				for (Callable<SparseRows> task : tasks) {
+					chunks.add(task.call());
+				}
+			} else {
+				ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+				try {
+					for (Future<SparseRows> future : executor.invokeAll(tasks)) {
+						chunks.add(future.get());
+					}
+				} finally {
+					executor.shutdownNow();
+				}
+			}
+
+			// チャンクは行の順に並んでいるので, そのまま連結すれば元の行順になる
+			int nCells = 0;
+			long nonZero = 0;
+			for (SparseRows chunk : chunks) {
+				nCells += chunk.numRows;
+				nonZero += chunk.size;
+			}
+			if (nonZero > Integer.MAX_VALUE) {
+				throw new IOException("Too many non-zero values in " + data + ": " + nonZero);
+			}
+
+			int[] cellOffsets = new int[nCells + 1];
+			int[] geneIndices = new int[(int) nonZero];
+			int[] counts = new int[(int) nonZero];
+			int cell = 0;
+			int offset = 0;
+			for (SparseRows chunk : chunks) {
+				for (int row = 0; row < chunk.numRows; row++) {
+					cellOffsets[++cell] = offset + chunk.offsets[row + 1];
+				}
+				System.arraycopy(chunk.genes, 0, geneIndices, offset, chunk.size);
+				System.arraycopy(chunk.counts, 0, counts, offset, chunk.size);
+				offset += chunk.size;
+			}
+			return new ExpData(genes, cellOffsets, geneIndices, counts);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + data, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to read " + data, e.getCause());
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to read " + data, e);
+		}
+	}
+
+	/**
+	 * ファイルを行の境界で区切る. 各チャンクは CHUNK_SIZE 程度で, 少なくとも minChunks 個に分ける.
+	 * 返り値は各チャンクの開始位置と, 最後にファイルサイズを並べたもの.
+	 */
+	private static long[] findChunkBounds(FileChannel channel, int minChunks) throws IOException {
+		long size = channel.size();
+		int nChunks = (int) Math.max(Math.min(minChunks, size), (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		nChunks = Math.max(nChunks, 1);
 
-		String[] rows = FileUtils.readFile(data);
-		final int n_cells = rows.length;
+		List<Long> bounds = new ArrayList<>(nChunks + 1);
+		bounds.add(0L);
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		for (int c = 1; c < nChunks; c++) {
+			long position = Math.max(size * c / nChunks, bounds.get(bounds.size() - 1));
+			// position の次の改行の直後を境界にする
+			long boundary = -1;
+			while (boundary == -1 && position < size) {
+				window.clear();
+				int read = channel.read(window, position);
+				if (read <= 0) {
+					break;
+				}
+				for (int i = 0; i < read; i++) {
+					if (window.get(i) == '\n') {
+						boundary = position + i + 1;
+						break;
+					}
+				}
+				position += read;
+			}
+			if (boundary == -1 || boundary >= size) {
+				break;
+			}
+			if (boundary > bounds.get(bounds.size() - 1)) {
+				bounds.add(boundary);
+			}
+		}
+		bounds.add(size);
 
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
 
-		this.data = new ArrayList<>(n_cells);
-		for (int i = 0; i < n_cells; i++) {
-			String[] rowSplitted = rows[i].split(",");
-			this.data.add(new int[genes.length]);
-			for (int j = 0; j < genes.length; j++) {
-				this.data.get(i)[j] = Integer.parseInt(rowSplitted[j]);
+	/**
+	 * 1 チャンク分の行をパースする. 各行は遺伝子数と同じ個数の, カンマ区切りの非負整数でなければならない.
+	 * 空行は読み飛ばす.
+	 */
+	private static SparseRows parseChunk(MappedByteBuffer buffer, long offset, int nGenes) throws IOException {
+		SparseRows rows = new SparseRows();
+		final int limit = buffer.limit();
+
+		int pos = 0;
+		while (pos < limit) {
+			int lineStart = pos;
+			int column = 0;
+			int value = 0;
+			boolean inValue = false;
+
+			while (pos < limit) {
+				byte b = buffer.get(pos++);
+				if (b >= '0' && b <= '9') {
+					if (value > (Integer.MAX_VALUE - (b - '0')) / 10) {
+						throw parseError("value too large", offset + lineStart);
+					}
+					value = value * 10 + (b - '0');
+					inValue = true;
+				} else if (b == ',' || b == '\n') {
+					if (b == '\n' && !inValue && (column == 0 || column == nGenes)) {
+						break; // 空行, または行末のカンマ
+					}
+					if (!inValue) {
+						throw parseError("empty value", offset + lineStart);
+					}
+					if (column >= nGenes) {
+						throw parseError("more than " + nGenes + " values", offset + lineStart);
+					}
+					rows.add(column++, value);
+					value = 0;
+					inValue = false;
+					if (b == '\n') {
+						break;
+					}
+				} else if (b == '\r' || b == ' ') {
+					// Windows の改行や空白は無視する
+				} else {
+					throw parseError("unexpected character '" + (char) b + "'", offset + lineStart);
+				}
+			}
+
+			// ファイル末尾に改行がない場合の最後の値
+			if (inValue) {
+				if (column >= nGenes) {
+					throw parseError("more than " + nGenes + " values", offset + lineStart);
+				}
+				rows.add(column++, value);
+			}
+
+			if (column > 0) {
+				if (column != nGenes) {
+					throw parseError(column + " values, expected " + nGenes, offset + lineStart);
+				}
+				rows.endRow();
 			}
 		}
+		return rows;
+	}
+
+	private static IOException parseError(String message, long lineOffset) {
+		return new IOException("Invalid row at byte " + lineOffset + " of the data file: " + message);
+	}
+
+	/**
+	 * 1 チャンク分の行の, 0 でない値だけを CSR 形式で溜める.
+	 */
+	private static class SparseRows {
+		int numRows = 0;
+		int size = 0;
+		int[] offsets = new int[256];
+		int[] genes = new int[1024];
+		int[] counts = new int[1024];
+
+		void add(int gene, int count) {
+			if (count == 0) {
+				return;
+			}
+			if (size == genes.length) {
+				genes = Arrays.copyOf(genes, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			genes[size] = gene;
+			counts[size] = count;
+			size++;
+		}
+
+		void endRow() {
+			if (numRows + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[++numRows] = size;
+		}
 	}
 
 	public String[] getGenes() {
 		return genes;
 	}
 
-	public List<int[]> getData() {
-		return data;
+	public int getNumCells() {
+		return cellOffsets.length - 1;
+	}
+
+	/**
+	 * @return 細胞 i の発現している遺伝子とそのカウント
+	 */
+	public SparseCell getCell(int i) {
+		return new SparseCell(geneIndices, counts, cellOffsets[i], cellOffsets[i + 1]);
+	}
+
+	/**
+	 * {@link SparseExpReader#readCsr} で読めるバイナリの CSR 形式で書き出す.
+	 */
+	public void writeCsr(File file) throws IOException {
+		SparseExpReader.writeCsr(file, genes.length, cellOffsets, geneIndices, counts);
 	}
 }
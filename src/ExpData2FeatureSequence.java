@@ -1,29 +1,79 @@
 import cc.mallet.pipe.Pipe;
 import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureCountSequence;
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.Instance;
 
+import java.util.Arrays;
+
 
 public class ExpData2FeatureSequence extends Pipe {
 	private String[] genes;
+	// 列番号 -> Alphabet のインデックス. 未登録の遺伝子は -1
+	private final int[] geneTypes;
+	private final boolean runLength;
 
 	ExpData2FeatureSequence(String[] genes) {
+		this(genes, false);
+	}
+
+	/**
+	 * @param runLength trueなら1細胞を (遺伝子, カウント) のランで表す {@link FeatureCountSequence} にする
+	 */
+	ExpData2FeatureSequence(String[] genes, boolean runLength) {
 		super(new Alphabet(), null);
 		this.genes = genes;
+		this.runLength = runLength;
+		this.geneTypes = new int[genes.length];
+		Arrays.fill(this.geneTypes, -1);
 	}
 
 	/**
-	 * @param carrier int[]
+	 * Alphabet の検索は遺伝子ごとに初出時の1回だけ行う
+	 */
+	int geneType(int column) {
+		int type = this.geneTypes[column];
+		if (type == -1) {
+			type = getDataAlphabet().lookupIndex(this.genes[column]);
+			this.geneTypes[column] = type;
+		}
+		return type;
+	}
+
+	/**
+	 * @param carrier {@link SparseCell}
 	 * @return Malletに通すフォーマットのdataがsetされいてるinstance
 	 */
 	@Override
 	public Instance pipe(Instance carrier) {
-		int[] input = (int[]) carrier.getData();
-		FeatureSequence fs = new FeatureSequence(getDataAlphabet(), input.length);
+		SparseCell cell = (SparseCell) carrier.getData();
+
+		if (this.runLength) {
+			int nonZero = 0;
+			for (int i = 0; i < cell.size(); i++) {
+				if (cell.count(i) > 0) {
+					nonZero++;
+				}
+			}
+
+			FeatureCountSequence fcs = new FeatureCountSequence(getDataAlphabet(), nonZero);
+			for (int i = 0; i < cell.size(); i++) {
+				if (cell.count(i) > 0) {
+					fcs.add(geneType(cell.gene(i)), cell.count(i));
+				}
+			}
+			carrier.setData(fcs);
+			return carrier;
+		}
 
-		for (int i = 0; i < input.length; i++) {
-			for (int j = 0; j < input[i]; j++) {
-				fs.add(this.genes[i]);
+		FeatureSequence fs = new FeatureSequence(getDataAlphabet(), cell.totalCount());
+		for (int i = 0; i < cell.size(); i++) {
+			int count = cell.count(i);
+			if (count > 0) {
+				int type = geneType(cell.gene(i));
+				for (int j = 0; j < count; j++) {
+					fs.add(type);
+				}
 			}
 		}
 		carrier.setData(fs);
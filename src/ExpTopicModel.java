@@ -1,5 +1,6 @@
 import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.iterator.ArrayIterator;
+import cc.mallet.types.FlatCorpus;
 import cc.mallet.types.InstanceList;
 
 import java.util.Arrays;
@@ -7,15 +8,98 @@ import java.util.Arrays;
 
 public abstract class ExpTopicModel {
 	final ExpData expData;
+	// どちらか一方だけを持ち, もう一方は null
 	final Pipe pipe;
 	final InstanceList instances;
+	final FlatCorpus corpus;
 
 	public ExpTopicModel(ExpData expData) {
+		this(expData, false);
+	}
+
+	/**
+	 * @param runLength trueなら細胞を (遺伝子, カウント) のランとして保持し, UMI ごとに展開しない
+	 */
+	public ExpTopicModel(ExpData expData, boolean runLength) {
+		this(expData, createInstances(expData, runLength));
+	}
+
+	/**
+	 * {@link #createInstances} で作った instances を使う. 推定中に instances は変更されないので,
+	 * 同じ instances を複数のモデルで共有できる.
+	 */
+	public ExpTopicModel(ExpData expData, InstanceList instances) {
 		this.expData = expData;
-		this.pipe = new ExpData2FeatureSequence(expData.getGenes());
-		this.instances = new InstanceList(pipe);
-		for (int[] data : expData.getData()) {
-			instances.addThruPipe(new ArrayIterator(Arrays.asList(data)));
+		this.pipe = instances.getPipe();
+		this.instances = instances;
+		this.corpus = null;
+	}
+
+	/**
+	 * {@link #createCorpus} で作った corpus を使う. instances と同様に複数のモデルで共有できる.
+	 */
+	public ExpTopicModel(ExpData expData, FlatCorpus corpus) {
+		this.expData = expData;
+		this.pipe = null;
+		this.instances = null;
+		this.corpus = corpus;
+	}
+
+	public static InstanceList createInstances(ExpData expData, boolean runLength) {
+		InstanceList instances = new InstanceList(new ExpData2FeatureSequence(expData.getGenes(), runLength));
+		for (int cell = 0; cell < expData.getNumCells(); cell++) {
+			instances.addThruPipe(new ArrayIterator(Arrays.asList(expData.getCell(cell))));
+		}
+		return instances;
+	}
+
+	/**
+	 * {@link #createInstances} と同じ遺伝子の並び (Alphabet) とトークンの並びを, 細胞ごとの
+	 * Instance と FeatureSequence を作らずに 1 つの配列にまとめて持つ.
+	 * 細胞 i のトークンは corpus.getOffset(i) から corpus.getLength(i) 個並ぶ.
+	 *
+	 * @param runLength trueなら (遺伝子, カウント) のランとカウントを持ち, falseなら UMI ごとに展開する
+	 */
+	public static FlatCorpus createCorpus(ExpData expData, boolean runLength) {
+		ExpData2FeatureSequence pipe = new ExpData2FeatureSequence(expData.getGenes(), runLength);
+		int numCells = expData.getNumCells();
+
+		// 1 回目で細胞ごとの長さを数え, 2 回目で遺伝子を Alphabet のインデックスに変換して詰める
+		int[] offsets = new int[numCells + 1];
+		for (int i = 0; i < numCells; i++) {
+			SparseCell cell = expData.getCell(i);
+			long length = 0;
+			for (int j = 0; j < cell.size(); j++) {
+				if (cell.count(j) > 0) {
+					length += runLength ? 1 : cell.count(j);
+				}
+			}
+			if (offsets[i] + length > Integer.MAX_VALUE - 8) {
+				throw new IllegalArgumentException("Too many tokens for one array: use --run-length");
+			}
+			offsets[i + 1] = (int) (offsets[i] + length);
+		}
+
+		int[] features = new int[offsets[numCells]];
+		int[] counts = runLength ? new int[features.length] : null;
+		for (int i = 0; i < numCells; i++) {
+			SparseCell cell = expData.getCell(i);
+			int position = offsets[i];
+			for (int j = 0; j < cell.size(); j++) {
+				int count = cell.count(j);
+				if (count <= 0) {
+					continue;
+				}
+				int type = pipe.geneType(cell.gene(j));
+				if (runLength) {
+					features[position] = type;
+					counts[position++] = count;
+				} else {
+					Arrays.fill(features, position, position + count, type);
+					position += count;
+				}
+			}
 		}
+		return new FlatCorpus(pipe.getDataAlphabet(), offsets, features, counts);
 	}
 }
@@ -1,5 +1,6 @@
 import cc.mallet.topics.PAM4L;
 import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.types.InstanceList;
 import cc.mallet.util.Randoms;
 
 import java.io.File;
@@ -12,8 +13,30 @@ public class LDA extends ExpTopicModel{
     final ParallelTopicModel tm;
 
     public LDA(ExpData expData, int numOfTopics, File thetaOutput, File phiOutput) {
-        super(expData);
+        this(expData, numOfTopics, thetaOutput, phiOutput, false);
+    }
+
+    public LDA(ExpData expData, int numOfTopics, File thetaOutput, File phiOutput, boolean runLength) {
+        super(expData, runLength);
+        this.tm = new ParallelTopicModel(numOfTopics, thetaOutput, phiOutput);
+        this.tm.addInstances(this.instances);
+    }
+
+    /**
+     * @param instances {@link ExpTopicModel#createInstances} で作った, 他のモデルと共有する instances
+     */
+    public LDA(ExpData expData, InstanceList instances, int numOfTopics, File thetaOutput, File phiOutput) {
+        this(expData, instances, numOfTopics, thetaOutput, phiOutput, -1);
+    }
+
+    /**
+     * @param seed 乱数の種. トピックの初期値と各スレッドの乱数列はここから作られる. -1 なら時刻から決める
+     */
+    public LDA(ExpData expData, InstanceList instances, int numOfTopics, File thetaOutput, File phiOutput, int seed) {
+        super(expData, instances);
         this.tm = new ParallelTopicModel(numOfTopics, thetaOutput, phiOutput);
+        // addInstances でトピックを初期化する前に設定する
+        this.tm.setRandomSeed(seed);
         this.tm.addInstances(this.instances);
     }
 }
@@ -1,9 +1,9 @@
 import cc.mallet.topics.PAM4L;
-import cc.mallet.util.Randoms;
-import sun.misc.Regexp;
+import cc.mallet.types.FlatCorpus;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.FastRandoms;
 
 import java.io.*;
-import java.util.Random;
 
 
 public class PAM extends ExpTopicModel {
@@ -11,14 +11,46 @@ public class PAM extends ExpTopicModel {
 
 	public PAM(ExpData expData, int superTopics, int subTopics, File superTopicOutput, File subTopicOutput,
 	           File superSubWeightsOutput, File wordOutput) {
-		super(expData);
+		this(expData, superTopics, subTopics, superTopicOutput, subTopicOutput, superSubWeightsOutput, wordOutput,
+			false);
+	}
+
+	public PAM(ExpData expData, int superTopics, int subTopics, File superTopicOutput, File subTopicOutput,
+	           File superSubWeightsOutput, File wordOutput, boolean runLength) {
+		super(expData, createCorpus(expData, runLength));
+		this.pam4L = new PAM4L(superTopics, subTopics, superTopicOutput, subTopicOutput, superSubWeightsOutput, wordOutput);
+	}
+
+	/**
+	 * @param instances {@link ExpTopicModel#createInstances} で作った, 他のモデルと共有する instances
+	 */
+	public PAM(ExpData expData, InstanceList instances, int superTopics, int subTopics, File superTopicOutput,
+	           File subTopicOutput, File superSubWeightsOutput, File wordOutput) {
+		super(expData, instances);
+		this.pam4L = new PAM4L(superTopics, subTopics, superTopicOutput, subTopicOutput, superSubWeightsOutput, wordOutput);
+	}
+
+	/**
+	 * @param corpus {@link ExpTopicModel#createCorpus} で作った, 他のモデルと共有する corpus
+	 */
+	public PAM(ExpData expData, FlatCorpus corpus, int superTopics, int subTopics, File superTopicOutput,
+	           File subTopicOutput, File superSubWeightsOutput, File wordOutput) {
+		super(expData, corpus);
 		this.pam4L = new PAM4L(superTopics, subTopics, superTopicOutput, subTopicOutput, superSubWeightsOutput, wordOutput);
 	}
 
 	public PAM4L estimate(int numIterations, int burninPeriod, String[] genes) throws IOException {
-		int seed = (int) System.currentTimeMillis(); // 現在時刻のミリ秒
-		this.pam4L.estimate(this.instances, numIterations, burninPeriod, 100, 100,
-			new Randoms(seed), genes);
+		return estimate(numIterations, burninPeriod, genes, (int) System.currentTimeMillis()); // 現在時刻のミリ秒
+	}
+
+	/**
+	 * @param seed 乱数の種. 初期化と各スレッドの乱数列はすべてここから作られるので,
+	 *             同じ種とスレッド数なら同じ結果になる
+	 */
+	public PAM4L estimate(int numIterations, int burninPeriod, String[] genes, int seed) throws IOException {
+		FlatCorpus documents = (this.corpus != null) ? this.corpus : FlatCorpus.fromInstances(this.instances);
+		this.pam4L.estimate(documents, numIterations, burninPeriod, 100, 100,
+			new FastRandoms(seed), genes);
 
 		System.out.println("Calculating Topic Dist...");
 
@@ -0,0 +1,47 @@
+/**
+ * 1 細胞の発現量を, 発現している (カウントが 0 でない) 遺伝子だけで表したもの.
+ * {@link ExpData} が持つ CSR 形式の配列の一部を参照するだけで, 配列のコピーは作らない.
+ */
+public class SparseCell {
+	private final int[] genes;
+	private final int[] counts;
+	private final int start;
+	private final int end;
+
+	/**
+	 * @param genes  遺伝子の列番号. start から end までは昇順
+	 * @param counts genes と同じ位置に対応するカウント
+	 */
+	SparseCell(int[] genes, int[] counts, int start, int end) {
+		this.genes = genes;
+		this.counts = counts;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return 発現している遺伝子の数
+	 */
+	public int size() {
+		return end - start;
+	}
+
+	/**
+	 * @return i 番目に発現している遺伝子の列番号
+	 */
+	public int gene(int i) {
+		return genes[start + i];
+	}
+
+	public int count(int i) {
+		return counts[start + i];
+	}
+
+	public int totalCount() {
+		int total = 0;
+		for (int i = start; i < end; i++) {
+			total += counts[i];
+		}
+		return total;
+	}
+}
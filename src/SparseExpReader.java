@@ -0,0 +1,495 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 疎な形式の発現データを {@link ExpData} に読み込む.
+ * <p>
+ * バイナリの CSR 形式 (.csr) はリトルエンディアンで, 以下の順に並ぶ.
+ * <pre>
+ *  offset  size  field
+ *       0     4  magic "GCSR"
+ *       4     4  int32 バージョン (1)
+ *       8     4  int32 細胞数 nCells
+ *      12     4  int32 遺伝子数 nGenes
+ *      16     8  int64 0 でない値の数 nnz
+ *      24        int64[nCells + 1] 各細胞の開始位置 (先頭は 0, 末尾は nnz)
+ *                int32[nnz] 遺伝子の列番号 (細胞内で昇順)
+ *                int32[nnz] カウント
+ * </pre>
+ */
+class SparseExpReader {
+	static final byte[] CSR_MAGIC = {'G', 'C', 'S', 'R'};
+	static final int CSR_VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private SparseExpReader() {
+	}
+
+	/**
+	 * Matrix Market の coordinate 形式を読み込む.
+	 * 値は integer, 整数値だけの real, または pattern (すべて 1) で, general でなければならない.
+	 * 行数が遺伝子数と等しければ 10x Genomics の matrix.mtx と同じく遺伝子 × 細胞,
+	 * そうでなく列数が遺伝子数と等しければ細胞 × 遺伝子とみなす.
+	 * <p>
+	 * ファイルを 2 回読み, 1 回目で細胞ごとの値の数を数えてから 2 回目で CSR の配列を埋める.
+	 */
+	static ExpData readMatrixMarket(File file, String[] genes) throws IOException {
+		MatrixMarketHeader header;
+		int[] cellOffsets;
+
+		// 1 回目: 細胞ごとの値の数
+		try (Tokenizer in = new Tokenizer(file)) {
+			header = MatrixMarketHeader.read(in, file, genes.length);
+			cellOffsets = new int[header.nCells + 1];
+			for (long entry = 0; entry < header.nEntries; entry++) {
+				int row = in.nextIndex(header.nRows);
+				int col = in.nextIndex(header.nCols);
+				if (header.readValue(in) == 0) {
+					continue;
+				}
+				cellOffsets[(header.cellsInColumns ? col : row) + 1]++;
+			}
+		}
+		long nonZero = 0;
+		for (int cell = 0; cell < header.nCells; cell++) {
+			nonZero += cellOffsets[cell + 1];
+			if (nonZero > Integer.MAX_VALUE) {
+				throw new IOException("Too many non-zero values in " + file + ": more than " + Integer.MAX_VALUE);
+			}
+			cellOffsets[cell + 1] = (int) nonZero;
+		}
+
+		// 2 回目: 値を埋める
+		int[] geneIndices = new int[(int) nonZero];
+		int[] counts = new int[(int) nonZero];
+		int[] filled = Arrays.copyOf(cellOffsets, header.nCells);
+		try (Tokenizer in = new Tokenizer(file)) {
+			MatrixMarketHeader.read(in, file, genes.length);
+			for (long entry = 0; entry < header.nEntries; entry++) {
+				int row = in.nextIndex(header.nRows);
+				int col = in.nextIndex(header.nCols);
+				int value = header.readValue(in);
+				if (value == 0) {
+					continue;
+				}
+				int cell = header.cellsInColumns ? col : row;
+				int position = filled[cell]++;
+				geneIndices[position] = header.cellsInColumns ? row : col;
+				counts[position] = value;
+			}
+		}
+
+		return sortCells(genes, cellOffsets, geneIndices, counts, file);
+	}
+
+	/**
+	 * 各細胞の遺伝子を昇順に並べ, 重複した遺伝子のカウントを足し合わせる.
+	 * すでに昇順に並んでいる細胞には何もしない.
+	 */
+	private static ExpData sortCells(String[] genes, int[] cellOffsets, int[] geneIndices, int[] counts,
+	                                 File file) throws IOException {
+		int nCells = cellOffsets.length - 1;
+		long[] packed = new long[0];
+		int write = 0;
+		int start = 0;
+		for (int cell = 0; cell < nCells; cell++) {
+			int end = cellOffsets[cell + 1];
+			cellOffsets[cell] = write;
+
+			boolean sorted = true;
+			for (int i = start + 1; i < end; i++) {
+				if (geneIndices[i - 1] >= geneIndices[i]) {
+					sorted = false;
+					break;
+				}
+			}
+
+			if (sorted) {
+				if (write != start) {
+					System.arraycopy(geneIndices, start, geneIndices, write, end - start);
+					System.arraycopy(counts, start, counts, write, end - start);
+				}
+				write += end - start;
+			} else {
+				int size = end - start;
+				if (packed.length < size) {
+					packed = new long[size];
+				}
+				for (int i = 0; i < size; i++) {
+					packed[i] = ((long) geneIndices[start + i] << 32) | counts[start + i];
+				}
+				Arrays.sort(packed, 0, size);
+				for (int i = 0; i < size; i++) {
+					int gene = (int) (packed[i] >>> 32);
+					int count = (int) packed[i];
+					if (write > cellOffsets[cell] && geneIndices[write - 1] == gene) {
+						if (counts[write - 1] > Integer.MAX_VALUE - count) {
+							throw new IOException("Count of gene " + genes[gene] + " in cell " + (cell + 1) +
+									" of " + file + " is too large");
+						}
+						counts[write - 1] += count;
+					} else {
+						geneIndices[write] = gene;
+						counts[write] = count;
+						write++;
+					}
+				}
+			}
+			start = end;
+		}
+		cellOffsets[nCells] = write;
+
+		if (write < geneIndices.length) {
+			geneIndices = Arrays.copyOf(geneIndices, write);
+			counts = Arrays.copyOf(counts, write);
+		}
+		return new ExpData(genes, cellOffsets, geneIndices, counts);
+	}
+
+	/**
+	 * Matrix Market のヘッダと, 行列のサイズの行.
+	 */
+	private static class MatrixMarketHeader {
+		boolean pattern;
+		boolean real;
+		int nRows;
+		int nCols;
+		long nEntries;
+		// true なら行が遺伝子, 列が細胞
+		boolean cellsInColumns;
+		int nCells;
+
+		static MatrixMarketHeader read(Tokenizer in, File file, int nGenes) throws IOException {
+			MatrixMarketHeader header = new MatrixMarketHeader();
+
+			String[] banner = in.nextLine().trim().toLowerCase().split("\\s+");
+			if (banner.length != 5 || !banner[0].equals("%%matrixmarket") || !banner[1].equals("matrix")) {
+				throw new IOException(file + " is not a Matrix Market file");
+			}
+			if (!banner[2].equals("coordinate")) {
+				throw new IOException("Only the coordinate format is supported: " + file);
+			}
+			switch (banner[3]) {
+				case "integer":
+					break;
+				case "real":
+					header.real = true;
+					break;
+				case "pattern":
+					header.pattern = true;
+					break;
+				default:
+					throw new IOException("Unsupported value type '" + banner[3] + "' in " + file);
+			}
+			if (!banner[4].equals("general")) {
+				throw new IOException("Unsupported symmetry '" + banner[4] + "' in " + file);
+			}
+
+			String line;
+			do {
+				line = in.nextLine().trim();
+			} while (line.isEmpty() || line.startsWith("%"));
+			String[] size = line.split("\\s+");
+			if (size.length != 3) {
+				throw new IOException("Invalid size line '" + line + "' in " + file);
+			}
+			header.nRows = Integer.parseInt(size[0]);
+			header.nCols = Integer.parseInt(size[1]);
+			header.nEntries = Long.parseLong(size[2]);
+
+			if (header.nRows == nGenes) {
+				header.cellsInColumns = true;
+				header.nCells = header.nCols;
+			} else if (header.nCols == nGenes) {
+				header.cellsInColumns = false;
+				header.nCells = header.nRows;
+			} else {
+				throw new IOException("The matrix in " + file + " is " + header.nRows + " x " + header.nCols +
+						", but there are " + nGenes + " genes");
+			}
+			return header;
+		}
+
+		int readValue(Tokenizer in) throws IOException {
+			if (pattern) {
+				return 1;
+			}
+			if (real) {
+				return in.nextIntegralDouble();
+			}
+			return in.nextCount();
+		}
+	}
+
+	/**
+	 * FileChannel からバイト列を直接読んで, 空白区切りの数値をパースする.
+	 */
+	private static class Tokenizer implements AutoCloseable {
+		private final File file;
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private long line = 1;
+		// エラーメッセージ用の, 最後に読み始めた数値の行番号
+		private long tokenLine = 1;
+
+		Tokenizer(File file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			buffer.flip();
+		}
+
+		/**
+		 * @return 次のバイト. ファイルの終わりなら -1
+		 */
+		private int read() throws IOException {
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				int read = channel.read(buffer);
+				buffer.flip();
+				if (read <= 0) {
+					return -1;
+				}
+			}
+			return buffer.get() & 0xff;
+		}
+
+		String nextLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = read()) != '\n') {
+				if (b == -1) {
+					throw new EOFException("Unexpected end of " + file);
+				}
+				sb.append((char) b);
+			}
+			line++;
+			return sb.toString();
+		}
+
+		/**
+		 * @return 空白を読み飛ばした後の, 最初のバイト
+		 */
+		private int skipSpaces() throws IOException {
+			int b;
+			while ((b = read()) == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				if (b == '\n') {
+					line++;
+				}
+			}
+			if (b == -1) {
+				throw new EOFException("Unexpected end of " + file + " at line " + line);
+			}
+			tokenLine = line;
+			return b;
+		}
+
+		/**
+		 * 符号なし整数を読む. 直後の 1 バイトも読み捨てる.
+		 */
+		private long nextUnsigned(int first) throws IOException {
+			long value = 0;
+			int b = first;
+			if (b < '0' || b > '9') {
+				throw error("expected a number");
+			}
+			while (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw error("number too large");
+				}
+				b = read();
+			}
+			if (b == '\n') {
+				line++;
+			} else if (b != ' ' && b != '\t' && b != '\r' && b != -1) {
+				throw error("unexpected character '" + (char) b + "'");
+			}
+			return value;
+		}
+
+		/**
+		 * 1 始まりの行番号または列番号を読み, 0 始まりにして返す.
+		 */
+		int nextIndex(int size) throws IOException {
+			long index = nextUnsigned(skipSpaces());
+			if (index < 1 || index > size) {
+				throw error("index " + index + " out of range 1.." + size);
+			}
+			return (int) index - 1;
+		}
+
+		int nextCount() throws IOException {
+			int b = skipSpaces();
+			if (b == '-') {
+				throw error("negative count");
+			}
+			return (int) nextUnsigned(b);
+		}
+
+		/**
+		 * real の値を読む. 発現量はカウントなので, 整数値でなければならない.
+		 */
+		int nextIntegralDouble() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b = skipSpaces();
+			while (b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != -1) {
+				sb.append((char) b);
+				b = read();
+			}
+			if (b == '\n') {
+				line++;
+			}
+			double value;
+			try {
+				value = Double.parseDouble(sb.toString());
+			} catch (NumberFormatException e) {
+				throw error("invalid value '" + sb + "'");
+			}
+			if (value < 0 || value > Integer.MAX_VALUE || value != Math.rint(value)) {
+				throw error("value " + sb + " is not a count");
+			}
+			return (int) value;
+		}
+
+		private IOException error(String message) {
+			return new IOException("Invalid entry at line " + tokenLine + " of " + file + ": " + message);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * バイナリの CSR 形式を読み込む.
+	 */
+	static ExpData readCsr(File file, String[] genes) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+
+			fill(channel, buffer, 24, file);
+			byte[] magic = new byte[CSR_MAGIC.length];
+			buffer.get(magic);
+			if (!Arrays.equals(magic, CSR_MAGIC)) {
+				throw new IOException(file + " is not a CSR file");
+			}
+			int version = buffer.getInt();
+			if (version != CSR_VERSION) {
+				throw new IOException("Unsupported CSR version " + version + " in " + file);
+			}
+			int nCells = buffer.getInt();
+			int nGenes = buffer.getInt();
+			long nonZero = buffer.getLong();
+			if (nGenes != genes.length) {
+				throw new IOException(file + " has " + nGenes + " genes, but there are " + genes.length + " genes");
+			}
+			if (nCells < 0 || nonZero < 0 || nonZero > Integer.MAX_VALUE) {
+				throw new IOException("Invalid matrix size in " + file + ": " + nCells + " cells, " +
+						nonZero + " non-zero values");
+			}
+
+			int[] cellOffsets = new int[nCells + 1];
+			for (int cell = 0; cell <= nCells; cell++) {
+				fill(channel, buffer, 8, file);
+				long offset = buffer.getLong();
+				if (offset < (cell == 0 ? 0 : cellOffsets[cell - 1]) || offset > nonZero
+						|| (cell == 0 && offset != 0) || (cell == nCells && offset != nonZero)) {
+					throw new IOException("Invalid offset " + offset + " of cell " + cell + " in " + file);
+				}
+				cellOffsets[cell] = (int) offset;
+			}
+
+			int[] geneIndices = new int[(int) nonZero];
+			for (int i = 0; i < geneIndices.length; i++) {
+				fill(channel, buffer, 4, file);
+				geneIndices[i] = buffer.getInt();
+			}
+			int[] counts = new int[(int) nonZero];
+			for (int i = 0; i < counts.length; i++) {
+				fill(channel, buffer, 4, file);
+				counts[i] = buffer.getInt();
+				if (counts[i] < 0) {
+					throw new IOException("Negative count at position " + i + " in " + file);
+				}
+			}
+
+			for (int cell = 0; cell < nCells; cell++) {
+				for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+					if (geneIndices[i] < 0 || geneIndices[i] >= nGenes
+							|| (i > cellOffsets[cell] && geneIndices[i - 1] >= geneIndices[i])) {
+						throw new IOException("Gene indices of cell " + cell + " in " + file +
+								" are out of range or not strictly increasing");
+					}
+				}
+			}
+			return new ExpData(genes, cellOffsets, geneIndices, counts);
+		}
+	}
+
+	/**
+	 * buffer に少なくとも bytes バイト残るようにファイルから読み足す.
+	 */
+	private static void fill(FileChannel channel, ByteBuffer buffer, int bytes, File file) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < bytes) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Unexpected end of " + file);
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * {@link #readCsr} で読める形式で書き出す.
+	 */
+	static void writeCsr(File file, int nGenes, int[] cellOffsets, int[] geneIndices, int[] counts)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			int nCells = cellOffsets.length - 1;
+
+			buffer.put(CSR_MAGIC);
+			buffer.putInt(CSR_VERSION);
+			buffer.putInt(nCells);
+			buffer.putInt(nGenes);
+			buffer.putLong(cellOffsets[nCells]);
+			for (int offset : cellOffsets) {
+				flushIfFull(channel, buffer, 8);
+				buffer.putLong(offset);
+			}
+			for (int i = 0; i < cellOffsets[nCells]; i++) {
+				flushIfFull(channel, buffer, 4);
+				buffer.putInt(geneIndices[i]);
+			}
+			for (int i = 0; i < cellOffsets[nCells]; i++) {
+				flushIfFull(channel, buffer, 4);
+				buffer.putInt(counts[i]);
+			}
+			flushIfFull(channel, buffer, BUFFER_SIZE);
+		}
+	}
+
+	private static void flushIfFull(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
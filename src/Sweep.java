@@ -0,0 +1,212 @@
+import cc.mallet.types.FlatCorpus;
+import cc.mallet.types.InstanceList;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 1 つの JVM で, データを 1 回だけ読み込んで複数の PAM / LDA の推定を実行する.
+ * 各推定は同じ {@link FlatCorpus} (PAM) または {@link InstanceList} (LDA) を読み取り専用で共有し, 同時に実行する数を制限した
+ * {@link ForkJoinPool} で実行する.
+ * <p>
+ * 設定ファイルは 1 行に 1 つの指定を書く. # 以降はコメント.
+ * <pre>
+ * data &lt;データファイル&gt; &lt;遺伝子一覧ファイル&gt;
+ * pam &lt;上位トピック数&gt; &lt;下位トピック数&gt; &lt;イテレーション数&gt; &lt;burn-in&gt; &lt;super&gt; &lt;sub&gt; &lt;model&gt; &lt;words&gt; [--option=value ...]
+ * lda &lt;トピック数&gt; &lt;theta&gt; &lt;phi&gt; &lt;スレッド数&gt; &lt;イテレーション数&gt; &lt;burn-in&gt; [--option=value ...]
+ * </pre>
+ * pam, lda の引数は {@link Estimate} の引数からデータファイルと遺伝子一覧ファイルを除いたもの.
+ * コマンドラインのオプションはすべての推定に適用され, 各行のオプションで上書きできる.
+ */
+public class Sweep {
+	/**
+	 * 設定ファイルの pam または lda の 1 行
+	 */
+	private static class Run {
+		final String kind;
+		final String[] args;
+		final Map<String, String> options;
+		final int line;
+
+		Run(String kind, String[] args, Map<String, String> options, int line) {
+			this.kind = kind;
+			this.args = args;
+			this.options = options;
+			this.line = line;
+		}
+
+		int numThreads() {
+			if (kind.equals("lda")) {
+				return Integer.parseInt(args[3]);
+			}
+			return Integer.parseInt(options.getOrDefault("threads", "1"));
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + String.join(" ", Arrays.copyOf(args, kind.equals("pam") ? 2 : 1))
+				+ " (line " + line + ")";
+		}
+	}
+
+	/**
+	 * @param options コマンドラインのオプション. --parallel で同時に実行する推定の数を指定する
+	 *                (デフォルトは CPU 数を推定ごとのスレッド数で割った数)
+	 * @return すべての推定が成功したら true
+	 */
+	static boolean run(File configFile, Map<String, String> options) throws IOException {
+		File[] data = new File[2];
+		List<Run> runs = readConfig(configFile, options, data);
+		if (data[0] == null) {
+			throw new IOException("No data line in " + configFile);
+		}
+		if (runs.isEmpty()) {
+			throw new IOException("No pam or lda lines in " + configFile);
+		}
+
+		int maxThreads = 1;
+		for (Run run : runs) {
+			maxThreads = Math.max(maxThreads, run.numThreads());
+		}
+		int parallel = Integer.parseInt(options.getOrDefault("parallel",
+			String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / maxThreads))));
+
+		ExpData expData = new ExpData(data[0], data[1]);
+		// run-length の指定ごとに 1 つだけ作り, 推定の間で共有する.
+		// PAM は FlatCorpus を, LDA は InstanceList を使うので, 必要なものだけを作る
+		Map<Boolean, InstanceList> instances = new HashMap<>();
+		Map<Boolean, FlatCorpus> corpora = new HashMap<>();
+		for (Run run : runs) {
+			boolean runLength = Estimate.isRunLength(run.options);
+			if (run.kind.equals("pam") && !corpora.containsKey(runLength)) {
+				corpora.put(runLength, ExpTopicModel.createCorpus(expData, runLength));
+			}
+			if (!run.kind.equals("pam") && !instances.containsKey(runLength)) {
+				instances.put(runLength, ExpTopicModel.createInstances(expData, runLength));
+			}
+		}
+
+		System.out.println("Running " + runs.size() + " estimations, " + parallel + " at a time");
+		List<Callable<Boolean>> tasks = new ArrayList<>(runs.size());
+		for (Run run : runs) {
+			InstanceList runInstances = instances.get(Estimate.isRunLength(run.options));
+			FlatCorpus runCorpus = corpora.get(Estimate.isRunLength(run.options));
+			tasks.add(() -> {
+				long start = System.currentTimeMillis();
+				try {
+					if (run.kind.equals("pam")) {
+						Estimate.estimatePam(expData, runCorpus, run.args, run.options);
+					} else {
+						Estimate.estimateLda(expData, runInstances, run.args, run.options);
+					}
+				} catch (Exception e) {
+					System.err.println("Failed: " + run + ": " + e);
+					e.printStackTrace();
+					return false;
+				}
+				System.out.println("Finished: " + run + " in "
+					+ Math.round((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+				return true;
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallel);
+		int failed = 0;
+		try {
+			for (Future<Boolean> future : pool.invokeAll(tasks)) {
+				if (!future.get()) {
+					failed++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running " + configFile, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to run " + configFile, e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failed > 0) {
+			System.err.println(failed + " of " + runs.size() + " estimations failed");
+		}
+		return failed == 0;
+	}
+
+	/**
+	 * 設定ファイルを読み, 推定を始める前に引数の数と数値を検査する.
+	 *
+	 * @param data data 行のデータファイルと遺伝子一覧ファイルを格納する
+	 */
+	private static List<Run> readConfig(File configFile, Map<String, String> globalOptions, File[] data)
+		throws IOException {
+		List<Run> runs = new ArrayList<>();
+		try (BufferedReader br = new BufferedReader(new FileReader(configFile))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment != -1) {
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				String[] fields = line.split("\\s+");
+				Map<String, String> options = new HashMap<>(globalOptions);
+				options.remove("sweep");
+				options.remove("parallel");
+				String[] args = Estimate.parseOptions(Arrays.copyOfRange(fields, 1, fields.length), options);
+
+				switch (fields[0]) {
+					case "data":
+						checkArgs(args, 2, new int[0], configFile, lineNumber);
+						data[0] = new File(args[0]);
+						data[1] = new File(args[1]);
+						break;
+					case "pam":
+						checkArgs(args, 8, new int[]{0, 1, 2, 3}, configFile, lineNumber);
+						runs.add(new Run("pam", args, options, lineNumber));
+						break;
+					case "lda":
+						checkArgs(args, 6, new int[]{0, 3, 4, 5}, configFile, lineNumber);
+						runs.add(new Run("lda", args, options, lineNumber));
+						break;
+					default:
+						throw new IOException("Unknown keyword '" + fields[0] + "' at line " + lineNumber + " of "
+							+ configFile);
+				}
+			}
+		}
+		return runs;
+	}
+
+	private static void checkArgs(String[] args, int expected, int[] numbers, File configFile, int lineNumber)
+		throws IOException {
+		if (args.length != expected) {
+			throw new IOException("Expected " + expected + " arguments but got " + args.length + " at line "
+				+ lineNumber + " of " + configFile);
+		}
+		for (int i : numbers) {
+			try {
+				Integer.parseInt(args[i]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Not a number '" + args[i] + "' at line " + lineNumber + " of " + configFile);
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * Decides when a Gibbs chain has stopped improving, from the log-likelihood
+ *  per token sampled every few iterations.
+ * <p>
+ * The last <code>window</code> values are split into an older and a newer
+ *  half. The chain has converged when the mean of the newer half differs from
+ *  the mean of the older half by less than <code>tolerance</code>, relative
+ *  to the older mean. Comparing means rather than consecutive values keeps
+ *  the sampling noise of single iterations from stopping the chain early.
+ */
+
+class ConvergenceMonitor {
+
+	double tolerance;
+	double[] values; // a ring buffer of the last values
+	int numValues = 0;
+	double lastChange = Double.NaN;
+
+	/**
+	 * @param tolerance The relative change of the mean log-likelihood below which the chain has converged
+	 * @param window The number of log-likelihood values to compare, at least 2
+	 */
+	public ConvergenceMonitor (double tolerance, int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("The convergence window must hold at least 2 values, not " + window);
+		}
+		this.tolerance = tolerance;
+		this.values = new double[window];
+	}
+
+	/**
+	 * Add the log-likelihood per token of the current state.
+	 *
+	 * @return true if the chain has converged
+	 */
+	public boolean add (double logLikelihoodPerToken) {
+		values[numValues % values.length] = logLikelihoodPerToken;
+		numValues++;
+
+		if (numValues < values.length) {
+			return false;
+		}
+
+		// The oldest value is at numValues % window
+		int half = values.length / 2;
+		double olderSum = 0.0, newerSum = 0.0;
+		for (int i = 0; i < half; i++) {
+			olderSum += values[(numValues + i) % values.length];
+			newerSum += values[(numValues + values.length - half + i) % values.length];
+		}
+
+		lastChange = Math.abs(newerSum - olderSum) / Math.abs(olderSum);
+		return lastChange < tolerance;
+	}
+
+	/** The relative change of the mean at the last {@link #add}, or NaN before the window is full. */
+	public double getLastChange () {
+		return lastChange;
+	}
+
+}
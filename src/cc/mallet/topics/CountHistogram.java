@@ -0,0 +1,163 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+/**
+ * The number of documents with each count of tokens in one topic, the
+ *  statistics for the Dirichlet hyperparameter optimization in {@link PAM4L}.
+ * <p>
+ * Counts below {@link #DENSE_LIMIT} are kept in a dense array that grows up
+ *  to the largest count recorded. Larger counts, which only deeply sequenced
+ *  cells reach and which are spread thinly over many values, are kept as a
+ *  list. Memory therefore follows the observed counts rather than the size of
+ *  the largest document, and {@link #clear} only touches what was recorded.
+ * <p>
+ * Not thread-safe: PAMWorkerRunnable adds to the shared histograms under a lock.
+ */
+
+class CountHistogram {
+
+	static final int DENSE_LIMIT = 1024;
+
+	int[] dense = new int[16]; // indexed by <count>
+	int maxCount = -1; // the largest count recorded, -1 if none
+
+	int[] overflow = new int[0]; // the counts of DENSE_LIMIT and above, one entry per document
+	int numOverflow = 0;
+	boolean overflowSorted = true;
+
+	public CountHistogram () {}
+
+	/** A histogram with <code>histogram[n]</code> documents of count n. */
+	public CountHistogram (int[] histogram) {
+		for (int count = 0; count < histogram.length; count++) {
+			add(count, histogram[count]);
+		}
+	}
+
+	public void add (int count) {
+		add(count, 1);
+	}
+
+	public void add (int count, int numDocs) {
+		if (numDocs == 0) {
+			return;
+		}
+
+		if (count < DENSE_LIMIT) {
+			if (count >= dense.length) {
+				dense = Arrays.copyOf(dense, Math.min(DENSE_LIMIT, Math.max(count + 1, 2 * dense.length)));
+			}
+			dense[count] += numDocs;
+		}
+		else {
+			if (numOverflow + numDocs > overflow.length) {
+				overflow = Arrays.copyOf(overflow, Math.max(numOverflow + numDocs, 2 * overflow.length));
+			}
+			Arrays.fill(overflow, numOverflow, numOverflow + numDocs, count);
+			numOverflow += numDocs;
+			overflowSorted = false;
+		}
+
+		if (count > maxCount) {
+			maxCount = count;
+		}
+	}
+
+	public void clear () {
+		Arrays.fill(dense, 0, Math.min(maxCount + 1, dense.length), 0);
+		numOverflow = 0;
+		overflowSorted = true;
+		maxCount = -1;
+	}
+
+	public boolean isEmpty () {
+		return maxCount == -1;
+	}
+
+	/**
+	 * The sum over the recorded documents of digamma(a + n) - digamma(a),
+	 *  where n is the document's count, as needed by Minka's fixed point
+	 *  iteration for a parameter <code>a</code>.
+	 * <p>
+	 * Over the dense range the differences are added up as partial sums of
+	 *  1 / (a + i), as in Dirichlet.learnParameters. For the large counts
+	 *  that would cost O(largest count) per call, so their differences come
+	 *  from {@link #digamma} instead, once per distinct count.
+	 */
+	public double digammaSum (double a) {
+		double sum = 0.0;
+		double currentDigamma = 0.0;
+
+		int limit = Math.min(maxCount, dense.length - 1);
+		for (int i = 1; i <= limit; i++) {
+			currentDigamma += 1 / (a + i - 1);
+			sum += dense[i] * currentDigamma;
+		}
+
+		if (numOverflow > 0) {
+			if (!overflowSorted) {
+				Arrays.sort(overflow, 0, numOverflow);
+				overflowSorted = true;
+			}
+
+			// digamma(a + n) - digamma(a) = currentDigamma + digamma(a + n) - digamma(a + limit)
+			double base = currentDigamma - digamma(a + limit);
+			int i = 0;
+			while (i < numOverflow) {
+				int count = overflow[i];
+				int numDocs = 0;
+				while (i < numOverflow && overflow[i] == count) {
+					numDocs++;
+					i++;
+				}
+				sum += numDocs * (base + digamma(a + count));
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Digamma for z &gt; 0 by the asymptotic series, after shifting z up with
+	 *  the recurrence. Dirichlet.digamma drops the 1/(12 z^2) term (its
+	 *  coefficients are integer divisions), which is an error of about 1e-7 at
+	 *  the counts seen here, so it is not used for the differences above.
+	 */
+	static double digamma (double z) {
+		double psi = 0.0;
+		while (z < 10.0) {
+			psi -= 1 / z;
+			z++;
+		}
+		double invZSquared = 1 / (z * z);
+		return psi + Math.log(z) - 0.5 / z
+			- invZSquared * (1.0 / 12 - invZSquared * (1.0 / 120 - invZSquared * (1.0 / 252 - invZSquared / 240)));
+	}
+
+	/** "count:documents" for every non-zero count, for diagnostics. */
+	public String toString () {
+		StringBuilder out = new StringBuilder();
+		for (int count = 0; count < dense.length; count++) {
+			if (dense[count] > 0) {
+				out.append(count).append(':').append(dense[count]).append(' ');
+			}
+		}
+		if (!overflowSorted) {
+			Arrays.sort(overflow, 0, numOverflow);
+			overflowSorted = true;
+		}
+		for (int i = 0; i < numOverflow; i++) {
+			out.append(overflow[i]).append(":1 ");
+		}
+		return out.toString().trim();
+	}
+
+}
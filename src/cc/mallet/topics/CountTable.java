@@ -0,0 +1,64 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * A dense table of counts indexed by &lt;row, column&gt;, such as the number of
+ *  tokens of each word type assigned to each topic.
+ *  {@link HeapCountTable} keeps the rows as <code>int[]</code>s on the Java heap,
+ *  {@link OffHeapCountTable} in direct buffers outside it.
+ * <p>
+ * {@link #get}, {@link #set} and {@link #add} are for a table that one thread
+ *  changes at a time. Several threads may update a shared table with
+ *  {@link #addAtomic}, while others read it.
+ */
+
+public interface CountTable {
+
+	/** Where the counts are stored */
+	public enum Storage {
+		HEAP, OFF_HEAP;
+
+		public CountTable create (int numRows, int numColumns) {
+			return (this == OFF_HEAP) ? new OffHeapCountTable(numRows, numColumns) :
+				new HeapCountTable(numRows, numColumns);
+		}
+	}
+
+	int getNumRows ();
+	int getNumColumns ();
+
+	int get (int row, int column);
+	void set (int row, int column, int value);
+	void add (int row, int column, int delta);
+
+	/** Add with an atomic read-modify-write, for tables updated by several threads. */
+	void addAtomic (int row, int column, int delta);
+
+	/**
+	 * The counts of a row. This is either the table's own storage, which
+	 *  reflects later changes to the row, or <code>buffer</code> filled with a
+	 *  copy. To change the row, change the returned array and pass it to
+	 *  {@link #setRow}, which does nothing for the table's own storage.
+	 *
+	 * @param buffer At least <code>getNumColumns()</code> long
+	 */
+	int[] getRow (int row, int[] buffer);
+
+	/** Copy the counts of a row into <code>buffer</code>. */
+	void copyRow (int row, int[] buffer);
+
+	void setRow (int row, int[] values);
+
+	/** A new table of the same kind with the same counts. */
+	CountTable copy ();
+
+	/** Copy all counts from a table of the same shape. */
+	void copyFrom (CountTable other);
+
+}
@@ -0,0 +1,73 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A {@link CountTable} with one <code>int[]</code> per row on the Java heap.
+ *  {@link #getRow} returns the row itself, so reading a row costs nothing.
+ */
+
+public class HeapCountTable implements CountTable {
+
+	static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	int[][] rows;
+	int numColumns;
+
+	public HeapCountTable (int numRows, int numColumns) {
+		this.rows = new int[numRows][numColumns];
+		this.numColumns = numColumns;
+	}
+
+	public int getNumRows () { return rows.length; }
+	public int getNumColumns () { return numColumns; }
+
+	public final int get (int row, int column) { return rows[row][column]; }
+	public final void set (int row, int column, int value) { rows[row][column] = value; }
+	public final void add (int row, int column, int delta) { rows[row][column] += delta; }
+
+	public final void addAtomic (int row, int column, int delta) {
+		INTS.getAndAdd(rows[row], column, delta);
+	}
+
+	public final int[] getRow (int row, int[] buffer) { return rows[row]; }
+
+	public void copyRow (int row, int[] buffer) {
+		System.arraycopy(rows[row], 0, buffer, 0, numColumns);
+	}
+
+	public void setRow (int row, int[] values) {
+		if (values == rows[row]) {
+			return;
+		}
+		System.arraycopy(values, 0, rows[row], 0, numColumns);
+	}
+
+	public CountTable copy () {
+		HeapCountTable copy = new HeapCountTable(0, numColumns);
+		copy.rows = new int[rows.length][];
+		for (int row = 0; row < rows.length; row++) {
+			copy.rows[row] = rows[row].clone();
+		}
+		return copy;
+	}
+
+	public void copyFrom (CountTable other) {
+		if (other.getNumRows() != rows.length || other.getNumColumns() != numColumns) {
+			throw new IllegalArgumentException("Cannot copy a " + other.getNumRows() + " x " +
+											   other.getNumColumns() + " table into a " + rows.length + " x " + numColumns + " one");
+		}
+		for (int row = 0; row < rows.length; row++) {
+			other.copyRow(row, rows[row]);
+		}
+	}
+
+}
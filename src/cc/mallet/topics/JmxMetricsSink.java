@@ -0,0 +1,129 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+ * Publishes the {@link SamplerMetrics} of the latest iteration as an MXBean named
+ *  <code>cc.mallet.topics:type=Sampler,name="&lt;run name&gt;"</code> in the
+ *  platform MBean server, for jconsole, VisualVM or a JMX exporter.
+ * <p>
+ * {@link SamplerMXBean#getSecondsSinceLastIteration} grows while a chain is stuck,
+ *  and the log-likelihood attributes show whether it is still improving, so
+ *  both can be used to alert on stalled runs.
+ */
+
+public class JmxMetricsSink implements MetricsSink, SamplerMXBean {
+
+	ObjectName objectName;
+
+	// Written by the sampling thread, read by JMX threads
+	volatile String name = "";
+	volatile int iteration = -1;
+	volatile long lastRecordNanos = System.nanoTime();
+	volatile double iterationMillis, sampleMillis, waitMillis, mergeMillis, optimizeMillis, outputMillis;
+	volatile double tokensPerSecond;
+	volatile double[] workerTokensPerSecond = new double[0];
+	volatile double logLikelihoodPerToken = Double.NaN;
+	volatile int logLikelihoodIteration = -1;
+	volatile long heapUsed, heapCommitted;
+	volatile double allocationRate = Double.NaN;
+	volatile long gcCount, gcMillis; // totals over the run
+
+	/**
+	 * Register the bean under the run's name at the first iteration. If another
+	 *  run already uses the name, an "instance" key is added to the object name.
+	 */
+	void register (String name) throws IOException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			String base = "cc.mallet.topics:type=Sampler,name=" + ObjectName.quote(name);
+			for (int instance = 1; objectName == null; instance++) {
+				ObjectName candidate = new ObjectName(instance == 1 ? base : base + ",instance=" + instance);
+				try {
+					server.registerMBean(this, candidate);
+					objectName = candidate;
+				} catch (InstanceAlreadyExistsException e) {
+					// try the next instance number
+				}
+			}
+		} catch (JMException e) {
+			throw new IOException("Could not register the sampler metrics for " + name, e);
+		}
+	}
+
+	public void record (SamplerMetrics metrics) throws IOException {
+		if (objectName == null) {
+			register(metrics.getName());
+		}
+
+		name = metrics.getName();
+		iterationMillis = metrics.getIterationMillis();
+		sampleMillis = metrics.getSampleMillis();
+		waitMillis = metrics.getWaitMillis();
+		mergeMillis = metrics.getMergeMillis();
+		optimizeMillis = metrics.getOptimizeMillis();
+		outputMillis = metrics.getOutputMillis();
+		tokensPerSecond = metrics.getTokensPerSecond();
+
+		double[] workers = new double[metrics.getNumWorkers()];
+		for (int worker = 0; worker < workers.length; worker++) {
+			workers[worker] = metrics.getWorkerTokensPerSecond(worker);
+		}
+		workerTokensPerSecond = workers;
+
+		if (! Double.isNaN(metrics.getLogLikelihoodPerToken())) {
+			logLikelihoodPerToken = metrics.getLogLikelihoodPerToken();
+			logLikelihoodIteration = metrics.getIteration();
+		}
+		heapUsed = metrics.getHeapUsed();
+		heapCommitted = metrics.getHeapCommitted();
+		allocationRate = metrics.getAllocationRate();
+		gcCount += metrics.getGcCount();
+		gcMillis += metrics.getGcMillis();
+
+		lastRecordNanos = System.nanoTime();
+		iteration = metrics.getIteration();
+	}
+
+	public void close () throws IOException {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new IOException("Could not unregister " + objectName, e);
+		}
+	}
+
+	public ObjectName getObjectName () { return objectName; }
+
+	public String getName () { return name; }
+	public int getIteration () { return iteration; }
+	public double getSecondsSinceLastIteration () { return (System.nanoTime() - lastRecordNanos) / 1e9; }
+	public double getIterationMillis () { return iterationMillis; }
+	public double getSampleMillis () { return sampleMillis; }
+	public double getWaitMillis () { return waitMillis; }
+	public double getMergeMillis () { return mergeMillis; }
+	public double getOptimizeMillis () { return optimizeMillis; }
+	public double getOutputMillis () { return outputMillis; }
+	public double getTokensPerSecond () { return tokensPerSecond; }
+	public double[] getWorkerTokensPerSecond () { return workerTokensPerSecond.clone(); }
+	public double getLogLikelihoodPerToken () { return logLikelihoodPerToken; }
+	public int getLogLikelihoodIteration () { return logLikelihoodIteration; }
+	public long getHeapUsed () { return heapUsed; }
+	public long getHeapCommitted () { return heapCommitted; }
+	public double getAllocationRate () { return allocationRate; }
+	public long getGcCount () { return gcCount; }
+	public long getGcMillis () { return gcMillis; }
+
+}
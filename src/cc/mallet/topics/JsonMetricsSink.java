@@ -0,0 +1,132 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends the {@link SamplerMetrics} of every <code>interval</code>-th iteration,
+ *  and of every iteration that computed the log-likelihood, to a file as one
+ *  JSON object per line, e.g.
+ * <pre>
+ * {"name":"pam-10-50","iteration":200,"timestamp":1700000000000,"iterationMs":812.4,
+ *  "sampleMs":790.1,"waitMs":12.3,"mergeMs":8.0,"optimizeMs":0.0,"outputMs":0.0,
+ *  "tokensPerSecond":2.1E7,"workerTokensPerSecond":[...],"logLikelihoodPerToken":null,
+ *  "heapUsed":...,"heapCommitted":...,"heapMax":...,"allocatedBytes":...,
+ *  "allocationRate":...,"gcCount":0,"gcMs":0}
+ * </pre>
+ * Times are in milliseconds, sizes in bytes and rates per second. Values
+ *  that were not measured are <code>null</code>.
+ * <p>
+ * Each line is written and flushed with a single write, so several runs can
+ *  append to the same file, as when Sweep runs them in parallel.
+ */
+
+public class JsonMetricsSink implements MetricsSink {
+
+	OutputStream out;
+	int interval;
+	StringBuilder line = new StringBuilder();
+
+	/**
+	 * @param interval Write every this many iterations
+	 */
+	public JsonMetricsSink (File file, int interval) throws IOException {
+		if (interval < 1) {
+			throw new IllegalArgumentException("The metrics interval must be positive, not " + interval);
+		}
+		this.out = new FileOutputStream(file, true);
+		this.interval = interval;
+	}
+
+	public void record (SamplerMetrics metrics) throws IOException {
+		if (metrics.getIteration() % interval != 0 && Double.isNaN(metrics.getLogLikelihoodPerToken())) {
+			return;
+		}
+
+		line.setLength(0);
+		line.append("{\"name\":");
+		appendString(metrics.getName());
+		line.append(",\"iteration\":").append(metrics.getIteration());
+		line.append(",\"timestamp\":").append(metrics.getTimestamp());
+		appendField("iterationMs", metrics.getIterationMillis());
+		appendField("sampleMs", metrics.getSampleMillis());
+		appendField("waitMs", metrics.getWaitMillis());
+		appendField("mergeMs", metrics.getMergeMillis());
+		appendField("optimizeMs", metrics.getOptimizeMillis());
+		appendField("outputMs", metrics.getOutputMillis());
+		appendField("tokensPerSecond", metrics.getTokensPerSecond());
+		line.append(",\"workerTokensPerSecond\":[");
+		for (int worker = 0; worker < metrics.getNumWorkers(); worker++) {
+			if (worker > 0) {
+				line.append(',');
+			}
+			appendNumber(metrics.getWorkerTokensPerSecond(worker));
+		}
+		line.append(']');
+		appendField("logLikelihoodPerToken", metrics.getLogLikelihoodPerToken());
+		line.append(",\"heapUsed\":").append(metrics.getHeapUsed());
+		line.append(",\"heapCommitted\":").append(metrics.getHeapCommitted());
+		line.append(",\"heapMax\":").append(metrics.getHeapMax());
+		line.append(",\"allocatedBytes\":");
+		if (metrics.getAllocatedBytes() < 0) {
+			line.append("null");
+		}
+		else {
+			line.append(metrics.getAllocatedBytes());
+		}
+		appendField("allocationRate", metrics.getAllocationRate());
+		line.append(",\"gcCount\":").append(metrics.getGcCount());
+		line.append(",\"gcMs\":").append(metrics.getGcMillis());
+		line.append("}\n");
+
+		out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	public void close () throws IOException {
+		out.close();
+	}
+
+	void appendField (String key, double value) {
+		line.append(",\"").append(key).append("\":");
+		appendNumber(value);
+	}
+
+	/** Rounded to 3 decimals; NaN and infinity, which JSON does not have, as null. */
+	void appendNumber (double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			line.append("null");
+		}
+		else if (Math.abs(value) < 1e15) {
+			line.append(Math.round(value * 1000) / 1000.0);
+		}
+		else {
+			line.append(value);
+		}
+	}
+
+	void appendString (String value) {
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				line.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				line.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				line.append(c);
+			}
+		}
+		line.append('"');
+	}
+
+}
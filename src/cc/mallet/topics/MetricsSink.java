@@ -0,0 +1,32 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.IOException;
+
+/**
+ * Receives the {@link SamplerMetrics} of a sampling run at the end of every
+ *  iteration. Install one with <code>addMetricsSink</code> on {@link PAM4L}
+ *  or {@link ParallelTopicModel}; the model closes its sinks when the
+ *  estimation ends.
+ *
+ * @see JsonMetricsSink
+ * @see JmxMetricsSink
+ */
+
+public interface MetricsSink {
+
+	/**
+	 * Called on the sampling thread while the workers are idle. The metrics
+	 *  object is reused for the next iteration, so copy what must be kept.
+	 */
+	void record (SamplerMetrics metrics) throws IOException;
+
+	void close () throws IOException;
+
+}
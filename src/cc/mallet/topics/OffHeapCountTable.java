@@ -0,0 +1,131 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A {@link CountTable} in direct buffers outside the Java heap, so that large
+ *  tables neither count against -Xmx nor have to be traced or moved by the
+ *  garbage collector. The rows are stored one after the other, split into
+ *  chunks of a power of two rows of at most 1 GiB each, since a buffer is
+ *  indexed by an int.
+ * <p>
+ * The memory is allocated with {@link ByteBuffer#allocateDirect}, which is
+ *  limited by -XX:MaxDirectMemorySize (by default the same as -Xmx), and
+ *  freed when the table is garbage collected.
+ */
+
+public class OffHeapCountTable implements CountTable {
+
+	static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	static final int MAX_CHUNK_BYTES = 1 << 30;
+
+	int numRows, numColumns;
+	int chunkShift; // log2 of the number of rows per chunk
+	int chunkMask;
+	ByteBuffer[] chunks; // for atomic updates
+	IntBuffer[] ints; // the same memory, indexed by <row within the chunk * numColumns + column>
+
+	public OffHeapCountTable (int numRows, int numColumns) {
+		if ((long) numColumns * 4 > MAX_CHUNK_BYTES) {
+			throw new IllegalArgumentException("Too many columns for one chunk: " + numColumns);
+		}
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+
+		chunkShift = 0;
+		while (chunkShift < 30 && (4L * numColumns << (chunkShift + 1)) <= MAX_CHUNK_BYTES &&
+			   (1 << chunkShift) < numRows) {
+			chunkShift++;
+		}
+		chunkMask = (1 << chunkShift) - 1;
+
+		int numChunks = (numRows + chunkMask) >> chunkShift;
+		chunks = new ByteBuffer[numChunks];
+		ints = new IntBuffer[numChunks];
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			int chunkRows = Math.min(1 << chunkShift, numRows - (chunk << chunkShift));
+			// Direct buffers are zero-filled
+			chunks[chunk] = ByteBuffer.allocateDirect(4 * chunkRows * numColumns).order(ByteOrder.nativeOrder());
+			ints[chunk] = chunks[chunk].asIntBuffer();
+		}
+	}
+
+	public int getNumRows () { return numRows; }
+	public int getNumColumns () { return numColumns; }
+
+	/** The index of the first column of the row in its chunk */
+	private int offset (int row) {
+		return (row & chunkMask) * numColumns;
+	}
+
+	public final int get (int row, int column) {
+		return ints[row >> chunkShift].get(offset(row) + column);
+	}
+
+	public final void set (int row, int column, int value) {
+		ints[row >> chunkShift].put(offset(row) + column, value);
+	}
+
+	public final void add (int row, int column, int delta) {
+		IntBuffer buffer = ints[row >> chunkShift];
+		int index = offset(row) + column;
+		buffer.put(index, buffer.get(index) + delta);
+	}
+
+	public final void addAtomic (int row, int column, int delta) {
+		INTS.getAndAdd(chunks[row >> chunkShift], 4 * (offset(row) + column), delta);
+	}
+
+	public final int[] getRow (int row, int[] buffer) {
+		copyRow(row, buffer);
+		return buffer;
+	}
+
+	public void copyRow (int row, int[] buffer) {
+		ints[row >> chunkShift].get(offset(row), buffer, 0, numColumns);
+	}
+
+	public void setRow (int row, int[] values) {
+		ints[row >> chunkShift].put(offset(row), values, 0, numColumns);
+	}
+
+	public CountTable copy () {
+		OffHeapCountTable copy = new OffHeapCountTable(numRows, numColumns);
+		copy.copyFrom(this);
+		return copy;
+	}
+
+	public void copyFrom (CountTable other) {
+		if (other.getNumRows() != numRows || other.getNumColumns() != numColumns) {
+			throw new IllegalArgumentException("Cannot copy a " + other.getNumRows() + " x " +
+											   other.getNumColumns() + " table into a " + numRows + " x " + numColumns + " one");
+		}
+		if (other instanceof OffHeapCountTable) {
+			OffHeapCountTable source = (OffHeapCountTable) other;
+			for (int chunk = 0; chunk < chunks.length; chunk++) {
+				ByteBuffer from = source.chunks[chunk].duplicate();
+				from.clear();
+				ByteBuffer to = chunks[chunk].duplicate();
+				to.clear();
+				to.put(from);
+			}
+			return;
+		}
+		int[] buffer = new int[numColumns];
+		for (int row = 0; row < numRows; row++) {
+			setRow(row, other.getRow(row, buffer));
+		}
+	}
+
+}
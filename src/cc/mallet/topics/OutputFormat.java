@@ -0,0 +1,33 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.File;
+
+/**
+ * How model results are written: as comma separated text, as little-endian
+ *  binary matrices (see {@link cc.mallet.util.BinaryMatrixWriter}), or both.
+ *  Binary matrices go to the text file name with its extension replaced by ".bin".
+ */
+
+public enum OutputFormat {
+	TEXT, BINARY, BOTH;
+
+	public boolean writesText () { return this != BINARY; }
+
+	public boolean writesBinary () { return this != TEXT; }
+
+	public static File binaryFile (File textFile) {
+		String name = textFile.getName();
+		int extension = name.lastIndexOf('.');
+		if (extension > 0) {
+			name = name.substring(0, extension);
+		}
+		return new File(textFile.getParentFile(), name + ".bin");
+	}
+}
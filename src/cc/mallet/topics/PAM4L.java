@@ -9,8 +9,16 @@ version 1.0, as published by http://www.opensource.org.  For further
 information, see the file `LICENSE' included with this distribution. */
 
 import cc.mallet.types.*;
+import cc.mallet.util.CheckpointInput;
+import cc.mallet.util.CheckpointOutput;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.StringJoiner;
@@ -24,6 +32,81 @@ import java.util.stream.Collectors;
 
 public class PAM4L {
 
+    /** How each token's super-sub topic pair is drawn. */
+    public enum Sampler {
+        /** Evaluate the full numSuperTopics x numSubTopics conditional for every token. */
+        DENSE,
+        /** Sample the same conditional from SparseLDA-style smoothing, document and type buckets. */
+        SPARSE,
+        /** Propose sub-topics from per-type alias tables, corrected by Metropolis-Hastings. */
+        ALIAS
+    }
+
+    /**
+     *  The log-likelihood of one document's super-topic and super-sub-topic
+     *   counts: a Dirichlet-multinomial over super-topics and one over
+     *   sub-topics for each super-topic. The counts are integers, so
+     *   logGamma(parameter + count) comes from tables that are kept until
+     *   the parameter is optimized.
+     *  Not thread-safe: every worker has its own.
+     */
+    static class DocumentLikelihood {
+        LogGammaTable alphaSumTable;
+        LogGammaTable[] alphaTables;
+        LogGammaTable[] subAlphaSumTables;
+        LogGammaTable[][] subAlphaTables;
+
+        DocumentLikelihood(int numSuperTopics, int numSubTopics) {
+            alphaTables = new LogGammaTable[numSuperTopics];
+            subAlphaSumTables = new LogGammaTable[numSuperTopics];
+            subAlphaTables = new LogGammaTable[numSuperTopics][numSubTopics];
+        }
+
+        /** Rebuild the tables of the parameters that have changed since the last call. */
+        void setAlphas(double[] alpha, double[][] subAlphas, double[] subAlphaSums) {
+            double alphaSum = 0.0;
+            for (int superTopic = 0; superTopic < alpha.length; superTopic++) {
+                alphaSum += alpha[superTopic];
+                alphaTables[superTopic] = LogGammaTable.forOffset(alphaTables[superTopic], alpha[superTopic]);
+                subAlphaSumTables[superTopic] =
+                    LogGammaTable.forOffset(subAlphaSumTables[superTopic], subAlphaSums[superTopic]);
+                LogGammaTable[] tables = subAlphaTables[superTopic];
+                for (int subTopic = 0; subTopic < tables.length; subTopic++) {
+                    tables[subTopic] = LogGammaTable.forOffset(tables[subTopic], subAlphas[superTopic][subTopic]);
+                }
+            }
+            alphaSumTable = LogGammaTable.forOffset(alphaSumTable, alphaSum);
+        }
+
+        double logLikelihood(int[] superCounts, int[][] superSubCounts) {
+            double logLikelihood = 0.0;
+            int totalCount = 0;
+
+            for (int superTopic = 0; superTopic < superCounts.length; superTopic++) {
+                int superCount = superCounts[superTopic];
+                if (superCount == 0) {
+                    continue;
+                }
+                totalCount += superCount;
+
+                LogGammaTable alphaTable = alphaTables[superTopic];
+                LogGammaTable subAlphaSumTable = subAlphaSumTables[superTopic];
+                logLikelihood += alphaTable.logGamma(superCount) - alphaTable.logGamma(0) +
+                    subAlphaSumTable.logGamma(0) - subAlphaSumTable.logGamma(superCount);
+
+                int[] subCounts = superSubCounts[superTopic];
+                LogGammaTable[] tables = subAlphaTables[superTopic];
+                for (int subTopic = 0; subTopic < subCounts.length; subTopic++) {
+                    if (subCounts[subTopic] > 0) {
+                        logLikelihood += tables[subTopic].logGamma(subCounts[subTopic]) - tables[subTopic].logGamma(0);
+                    }
+                }
+            }
+
+            return logLikelihood + alphaSumTable.logGamma(0) - alphaSumTable.logGamma(totalCount);
+        }
+    }
+
     // Parameters
     int numSuperTopics; // Number of topics to be fit
     int numSubTopics;
@@ -36,25 +119,19 @@ public class PAM4L {
     double vBeta;
 
     // Data
-    InstanceList ilist;  // the data field of the instances is expected to hold a FeatureSequence
+    FlatCorpus corpus;
     int numTypes;
     int numTokens;
 
     // Gibbs sampling state
-    //  (these could be shorts, or we could encode both in one int)
-    int[][] superTopics; // indexed by <document index, sequence index>
-    int[][] subTopics; // indexed by <document index, sequence index>
-
-    // Per-document state variables
-    int[][] superSubCounts; // # of words per <super, sub>
-    int[] superCounts; // # of words per <super>
-    double[] superWeights; // the component of the Gibbs update that depends on super-topics
-    double[] subWeights;   // the component of the Gibbs update that depends on sub-topics
-    double[][] superSubWeights; // unnormalized sampling distribution
-    double[] cumulativeSuperWeights; // a cache of the cumulative weight for each super-topic
+    //  The super- and sub-topic of each position, packed into one short or int
+    //  in a flat array with per-document offsets (see TopicAssignments).
+    //  If the documents are FeatureCountSequences, there is one entry per run
+    //  of identical tokens, and every token in a run shares the assignment.
+    TopicAssignments assignments;
 
     // Per-word type state variables
-    int[][] typeSubTopicCounts; // indexed by <feature index, topic index>
+    CountTable typeSubTopicCounts; // indexed by <feature index, topic index>
     int[] tokensPerSubTopic; // indexed by <topic index>
 
     // [for debugging purposes]
@@ -62,13 +139,54 @@ public class PAM4L {
     int[][] tokensPerSuperSubTopic;
 
     // Histograms for MLE
-    int[][] superTopicHistograms; // histogram of # of words per supertopic in documents
-    //  eg, [17][4] is # of docs with 4 words in sT 17...
-    int[][][] subTopicHistograms; // for each supertopic, histogram of # of words per subtopic
+    CountHistogram[] superTopicHistograms; // histogram of # of words per supertopic in documents
+    //  eg, [17] counts 4 once for each doc with 4 words in sT 17...
+    CountHistogram[][] subTopicHistograms; // for each supertopic, histogram of # of words per subtopic
+
+    // The fixed point iteration in learnParameters stops once no parameter
+    //  changes by more than this fraction, or after LEARN_MAX_ITERATIONS.
+    static final double LEARN_TOLERANCE = 1e-8;
+    static final int LEARN_MAX_ITERATIONS = 200;
 
     Runtime runtime;
     NumberFormat formatter;
 
+    // Sampling is split across this many workers, each sampling a
+    //  contiguous range of documents (see PAMWorkerRunnable).
+    int numThreads = 1;
+    PAMWorkerRunnable[] runnables;
+
+    Sampler sampler = Sampler.DENSE;
+    int aliasRebuildInterval = 100;
+    int mhSteps = 2;
+    OutputFormat outputFormat = OutputFormat.TEXT;
+
+    // Where the type/sub-topic counts are stored, and whether the workers
+    //  update one shared table instead of merging their own copies.
+    CountTable.Storage countStorage = CountTable.Storage.HEAP;
+    boolean sharedCounts = false;
+
+    // Sampler state is saved here every checkpointInterval iterations
+    File checkpointFile = null;
+    int checkpointInterval = 0;
+    boolean resume = false;
+    static final byte[] CHECKPOINT_MAGIC = { 'P', 'A', 'M', 'C' };
+    static final int CHECKPOINT_VERSION = 1;
+
+    // Stop early once the log-likelihood per token, computed every
+    //  likelihoodInterval iterations, has converged (see ConvergenceMonitor).
+    //  A tolerance of 0 always runs all iterations.
+    double convergenceTolerance = 0.0;
+    int convergenceWindow = 10;
+    int likelihoodInterval = 10;
+
+    // Receive the SamplerMetrics of every iteration, if any
+    List<MetricsSink> metricsSinks = new ArrayList<>();
+
+    // logGamma(parameter + count) for the likelihood, rebuilt when a parameter changes
+    DocumentLikelihood documentLikelihood;
+    LogGammaTable betaTable;
+
     // output files
     final File superTopicOutput;
     final File subTopicOutput;
@@ -114,29 +232,100 @@ public class PAM4L {
         runtime = Runtime.getRuntime();
     }
 
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     *  Settings for {@link Sampler#ALIAS}.
+     *  @param rebuildInterval Rebuild each worker's proposal tables after this many documents
+     *  @param mhSteps Number of Metropolis-Hastings proposals per token
+     */
+    public void setAliasParameters(int rebuildInterval, int mhSteps) {
+        this.aliasRebuildInterval = rebuildInterval;
+        this.mhSteps = mhSteps;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     *  Store the type/sub-topic counts on the Java heap or in off-heap memory,
+     *   which keeps very large tables out of the garbage collector's way.
+     */
+    public void setCountStorage(CountTable.Storage storage) {
+        this.countStorage = storage;
+    }
+
+    /**
+     *  With several threads, let every worker update one shared type/sub-topic
+     *   table with atomic adds, instead of sampling against its own copy that
+     *   is merged after each sweep. Saves a copy of the table per thread and
+     *   the merge, at the cost of contended updates and a run that is no
+     *   longer reproducible from the seed.
+     */
+    public void setSharedCounts(boolean sharedCounts) {
+        this.sharedCounts = sharedCounts;
+    }
+
+    /**
+     *  Stop sampling before <code>numIterations</code> once the chain has converged.
+     *  @param tolerance Relative change of the mean log-likelihood per token, 0 to never stop early
+     *  @param window Number of log-likelihood values compared by the {@link ConvergenceMonitor}
+     *  @param interval Compute the log-likelihood every this many iterations, also
+     *   without a tolerance if there are metrics sinks
+     */
+    public void setConvergence(double tolerance, int window, int interval) {
+        this.convergenceTolerance = tolerance;
+        this.convergenceWindow = window;
+        this.likelihoodInterval = interval;
+    }
+
+    /**
+     *  Save the sampler state to <code>file</code> every <code>interval</code> iterations.
+     *  @param resume If the file exists, continue from the saved state instead of
+     *   a random initialization
+     */
+    public void setCheckpoint(File file, int interval, boolean resume) {
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+        this.resume = resume;
+    }
+
+    /**
+     *  Report the throughput, timings and memory use of every iteration to
+     *   <code>sink</code>. The sink is closed when {@link #estimate} finishes.
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        metricsSinks.add(sink);
+    }
+
+    /**
+     *  Copies the documents, whose data fields must hold FeatureSequences,
+     *   into a {@link FlatCorpus} and samples from that.
+     */
     public void estimate(InstanceList documents, int numIterations, int burninPeriod, int optimizeInterval, int outputModelInterval,
                          Randoms r, String[] genes) throws IOException {
-        ilist = documents;
-        numTypes = ilist.getDataAlphabet().size ();
-        int numDocs = ilist.size();
+        estimate(FlatCorpus.fromInstances(documents), numIterations, burninPeriod, optimizeInterval,
+                 outputModelInterval, r, genes);
+    }
+
+    public void estimate(FlatCorpus documents, int numIterations, int burninPeriod, int optimizeInterval, int outputModelInterval,
+                         Randoms r, String[] genes) throws IOException {
+        corpus = documents;
+        numTypes = corpus.getDataAlphabet().size ();
+        int numDocs = corpus.getNumDocs();
         System.out.println("numdocs: " + numDocs);
         System.out.println("numwords: " + numTypes);
-        Alphabet words = ilist.getAlphabet();
-
-        superTopics = new int[numDocs][];
-        subTopics = new int[numDocs][];
-
-        //		Allocate several arrays for use within each document
-        //		to cut down memory allocation and garbage collection time
 
-        superSubCounts = new int[numSuperTopics][numSubTopics];
-        superCounts = new int[numSuperTopics];
-        superWeights = new double[numSuperTopics];
-        subWeights = new double[numSubTopics];
-        superSubWeights = new double[numSuperTopics][numSubTopics];
-        cumulativeSuperWeights = new double[numSuperTopics];
+        assignments = new TopicAssignments(corpus, numSuperTopics, numSubTopics);
 
-        typeSubTopicCounts = new int[numTypes][numSubTopics];
+        typeSubTopicCounts = countStorage.create(numTypes, numSubTopics);
         tokensPerSubTopic = new int[numSubTopics];
         tokensPerSuperTopic = new int[numSuperTopics];
         tokensPerSuperSubTopic = new int[numSuperTopics][numSubTopics];
@@ -149,85 +338,207 @@ public class PAM4L {
         //		Initialize with random assignments of tokens to topics
         //		and finish allocating this.topics and this.tokens
 
-        int superTopic, subTopic, seqLen;
+        int superTopic, subTopic, seqLen, count, offset, index;
 
-        for (int di = 0; di < numDocs; di++) {
+        boolean resuming = resume && checkpointFile != null && checkpointFile.exists();
 
-            FeatureSequence fs = (FeatureSequence) ilist.get(di).getData();
+        for (int di = 0; di < numDocs; di++) {
 
-            seqLen = fs.getLength();
-            if (seqLen > maxTokens) {
-                maxTokens = seqLen;
+            // The histograms are indexed by the number of tokens,
+            //  which differs from the number of positions for run-length sequences.
+            seqLen = corpus.getLength(di);
+            if (corpus.getTotalCount(di) > maxTokens) {
+                maxTokens = corpus.getTotalCount(di);
             }
 
-            numTokens += seqLen;
-            superTopics[di] = new int[seqLen];
-            subTopics[di] = new int[seqLen];
+            numTokens += corpus.getTotalCount(di);
+
+            if (resuming) {
+                continue; // the assignments are read from the checkpoint
+            }
 
             // Randomly assign tokens to topics
+            offset = corpus.getOffset(di);
             for (int si = 0; si < seqLen; si++) {
+                index = offset + si;
+                count = corpus.getCount(index);
+
                 // Random super-topic
                 superTopic = r.nextInt(numSuperTopics);
-                superTopics[di][si] = superTopic;
-                tokensPerSuperTopic[superTopic]++;
+                tokensPerSuperTopic[superTopic] += count;
 
                 // Random sub-topic
                 subTopic = r.nextInt(numSubTopics);
-                subTopics[di][si] = subTopic;
+                assignments.set(index, superTopic, subTopic);
 
                 // For the sub-topic, we also need to update the
                 //  word type statistics
-                typeSubTopicCounts[ fs.getIndexAtPosition(si) ][subTopic]++;
-                tokensPerSubTopic[subTopic]++;
+                typeSubTopicCounts.add(corpus.getFeature(index), subTopic, count);
+                tokensPerSubTopic[subTopic] += count;
 
-                tokensPerSuperSubTopic[superTopic][subTopic]++;
+                tokensPerSuperSubTopic[superTopic][subTopic] += count;
             }
         }
 
         System.out.println("max tokens: " + maxTokens);
 
-        //		These will be initialized at the first call to
-        //		clearHistograms() in the loop below.
+        //		These will be cleared by clearHistograms() before
+        //		every sweep that collects them.
+
+        //		They grow with the counts actually observed, not with maxTokens.
+
+        superTopicHistograms = new CountHistogram[numSuperTopics];
+        subTopicHistograms = new CountHistogram[numSuperTopics][numSubTopics];
+        for (int s = 0; s < numSuperTopics; s++) {
+            superTopicHistograms[s] = new CountHistogram();
+            for (int k = 0; k < numSubTopics; k++) {
+                subTopicHistograms[s][k] = new CountHistogram();
+            }
+        }
+
+        int startIteration = 0;
+        List<Randoms> savedRandoms = new ArrayList<>();
+        if (resuming) {
+            startIteration = readCheckpoint(checkpointFile, savedRandoms);
+            System.out.println("Resuming from " + checkpointFile + " at iteration " + startIteration);
+        }
+
+        initializeRunnables(r);
+
+        // The random streams continue where they stopped, unless the
+        //  documents are now split over a different number of workers.
+        if (savedRandoms.size() == numThreads) {
+            for (int thread = 0; thread < numThreads; thread++) {
+                runnables[thread].setRandom(savedRandoms.get(thread));
+            }
+        }
+
+        PAMStateWriter stateWriter = new PAMStateWriter(superTopicOutput, subTopicOutput,
+                superSubWeightOutput, wordOutput, outputFormat, corpus, numSuperTopics, numSubTopics);
+
+        ExecutorService executor = null;
+        if (numThreads > 1) {
+            executor = SweepTimer.newExecutor(numThreads);
+        }
+        List<Callable<Long>> tasks = SweepTimer.timed(runnables);
+        List<Callable<Object>> mergeTasks = createMergeTasks();
+        List<Callable<Object>> optimizeTasks = createOptimizeTasks();
+        SweepTimer timer = new SweepTimer();
+
+        SamplerMetrics metrics = null;
+        if (!metricsSinks.isEmpty()) {
+            metrics = new SamplerMetrics("pam-" + numSuperTopics + "-" + numSubTopics,
+                    workerTokens(), metricsSinks);
+        }
 
-        superTopicHistograms = new int[numSuperTopics][maxTokens + 1];
-        subTopicHistograms = new int[numSuperTopics][numSubTopics][maxTokens + 1];
+        ConvergenceMonitor monitor = null;
+        if (convergenceTolerance > 0) {
+            monitor = new ConvergenceMonitor(convergenceTolerance, convergenceWindow);
+        }
+        int lastIteration = numIterations;
 
         //		Finally, start the sampler!
 
-        for (int iterations = 0; iterations < numIterations; iterations++) {
-            long iterationStart = System.currentTimeMillis();
+        for (int iterations = startIteration; iterations < numIterations; iterations++) {
+            if (metrics != null) {
+                metrics.startIteration(iterations);
+            }
+
+            // The hyperparameters are only optimized from the histograms
+            //  of the sweep just before, so only collect them then.
+            if (iterations > 0 && optimizeInterval != 0 && iterations % optimizeInterval == 0) {
+                clearHistograms();
+                for (PAMWorkerRunnable runnable : runnables) {
+                    runnable.collectHistograms();
+                }
+            }
+
+            // For the convergence check, and for the metrics sinks to follow the chain
+            boolean computeLikelihood = (monitor != null || metrics != null) &&
+                    (iterations + 1) % likelihoodInterval == 0;
+            boolean checkConvergence = monitor != null && computeLikelihood;
+            if (computeLikelihood) {
+                for (PAMWorkerRunnable runnable : runnables) {
+                    runnable.collectLogLikelihood();
+                }
+            }
+            boolean optimized = false;
 
-            clearHistograms();
-            sampleTopicsForAllDocs (r);
+            sampleTopicsForAllDocs (executor, tasks, mergeTasks, timer);
 
             // There are a few things we do on round-numbered iterations
             //  that don't make sense if this is the first iteration.
 
             if (iterations > 0) {
                 if (outputModelInterval != 0 && iterations % outputModelInterval == 0) {
-                    System.out.println("Writting output...");
-                    printState();
+                    long outputStart = System.nanoTime();
+                    // The sampler does not wait for the writer: if the previous
+                    //  state is still being written, this one is skipped.
+                    if (stateWriter.trySnapshot(assignments, typeSubTopicCounts, subAlphas, iterations)) {
+                        System.out.println("Writting output...");
+                    }
+                    else {
+                        System.out.println("Skipped output: still writing the previous state");
+                    }
+                    if (metrics != null) {
+                        metrics.addOutputNanos(System.nanoTime() - outputStart);
+                    }
                 }
                 if (optimizeInterval != 0 && iterations % optimizeInterval == 0) {
-                    long optimizeTime = System.currentTimeMillis();
-                    for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-                        learnParameters(subAlphas[superTopic],
-                                subTopicHistograms[superTopic],
-                                superTopicHistograms[superTopic]);
-                        subAlphaSums[superTopic] = 0.0;
-                        for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                            subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
-                        }
+                    optimized = true;
+                    long optimizeStart = System.nanoTime();
+                    SweepTimer.runAll(executor, optimizeTasks);
+                    long optimizeNanos = System.nanoTime() - optimizeStart;
+	                System.out.println("[optimize:" + SweepTimer.millis(optimizeNanos) + "]");
+                    if (metrics != null) {
+                        metrics.addOptimizeNanos(optimizeNanos);
                     }
-	                System.out.println("[optimize:" + (System.currentTimeMillis() - optimizeTime) + "]");
                 }
             }
 
 
-	        System.out.println ("<" + iterations + "> ");
+	        System.out.println ("<" + iterations + "> " + timer.lastIteration());
+
+            if (checkpointFile != null && checkpointInterval != 0 && (iterations + 1) % checkpointInterval == 0) {
+                long checkpointStart = System.nanoTime();
+                writeCheckpoint(checkpointFile, iterations + 1);
+                long checkpointNanos = System.nanoTime() - checkpointStart;
+                System.out.println("[checkpoint:" + SweepTimer.millis(checkpointNanos) + "]");
+                if (metrics != null) {
+                    metrics.addOutputNanos(checkpointNanos);
+                }
+            }
+
+            double logLikelihood = Double.NaN;
+            if (computeLikelihood) {
+                // The document terms collected during the sweep used the sub-topic
+                //  alphas from before the optimization
+                logLikelihood = (optimized ? modelLogLikelihood() : sweepLogLikelihood()) / numTokens;
+                System.out.println("<" + iterations + "> LL/token: " + formatter.format(logLikelihood));
+            }
+
+            if (metrics != null) {
+                metrics.finishIteration(timer, logLikelihood);
+            }
+
+            if (checkConvergence) {
+                if (monitor.add(logLikelihood)) {
+                    System.out.println("Converged after " + (iterations + 1) + " iterations (change " +
+                            monitor.getLastChange() + " < " + convergenceTolerance + ")");
+                    lastIteration = iterations + 1;
+                    break;
+                }
+            }
             System.out.flush();
         }
 
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+
         long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
         long minutes = seconds / 60;	seconds %= 60;
         long hours = minutes / 60;	minutes %= 60;
@@ -237,7 +548,9 @@ public class PAM4L {
         if (hours != 0) { System.out.print(hours); System.out.print(" hours "); }
         if (minutes != 0) { System.out.print(minutes); System.out.print(" minutes "); }
         System.out.print(seconds); System.out.println(" seconds");
-        printState();
+        System.out.println(timer.summary());
+        stateWriter.snapshotAndWait(assignments, typeSubTopicCounts, subAlphas, lastIteration);
+        stateWriter.close();
 
         //		124.5 seconds
         //		144.8 seconds after using FeatureSequence instead of tokens[][] array
@@ -246,18 +559,241 @@ public class PAM4L {
 
     }
 
+    /**
+     *  The log probability of the current assignments and the tokens,
+     *   integrating out the topic distributions: a Dirichlet-multinomial
+     *   over super-topics and one over sub-topics for each super-topic
+     *   in each document, and one over types for each sub-topic.
+     *  Must be called while no sampler is running.
+     */
+    public double modelLogLikelihood() {
+        double logLikelihood = 0.0;
+
+        int[] superCounts = new int[numSuperTopics];
+        int[][] superSubCounts = new int[numSuperTopics][numSubTopics];
+
+        if (documentLikelihood == null) {
+            documentLikelihood = new DocumentLikelihood(numSuperTopics, numSubTopics);
+        }
+        documentLikelihood.setAlphas(alpha, subAlphas, subAlphaSums);
+
+        // The documents
+        for (int doc = 0; doc < corpus.getNumDocs(); doc++) {
+            int offset = corpus.getOffset(doc);
+
+            for (int index = offset; index < offset + corpus.getLength(doc); index++) {
+                int count = corpus.getCount(index);
+                int packed = assignments.get(index);
+                superCounts[ assignments.superTopic(packed) ] += count;
+                superSubCounts[ assignments.superTopic(packed) ][ assignments.subTopic(packed) ] += count;
+            }
+
+            logLikelihood += documentLikelihood.logLikelihood(superCounts, superSubCounts);
+
+            for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                if (superCounts[superTopic] > 0) {
+                    Arrays.fill(superSubCounts[superTopic], 0);
+                    superCounts[superTopic] = 0;
+                }
+            }
+        }
+
+        return logLikelihood + typeLogLikelihood();
+    }
+
+    /**
+     *  The log-likelihood of the state at the end of a sweep in which every
+     *   worker was asked to {@link PAMWorkerRunnable#collectLogLikelihood}.
+     *   The workers added up the document terms as they finished each
+     *   document, so only the sub-topic terms are left to compute here.
+     */
+    private double sweepLogLikelihood() {
+        double logLikelihood = 0.0;
+        for (PAMWorkerRunnable runnable : runnables) {
+            logLikelihood += runnable.getDocumentLogLikelihood();
+        }
+        return logLikelihood + typeLogLikelihood();
+    }
+
+    /** The Dirichlet-multinomials over types, one for each sub-topic. */
+    private double typeLogLikelihood() {
+        double logLikelihood = 0.0;
+
+        betaTable = LogGammaTable.forOffset(betaTable, beta);
+        double betaLogGamma = betaTable.logGamma(0);
+        int[] buffer = new int[numSubTopics];
+        for (int type = 0; type < numTypes; type++) {
+            int[] counts = typeSubTopicCounts.getRow(type, buffer);
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                if (counts[subTopic] > 0) {
+                    logLikelihood += betaTable.logGamma(counts[subTopic]) - betaLogGamma;
+                }
+            }
+        }
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            logLikelihood += Dirichlet.logGammaStirling(vBeta) -
+                Dirichlet.logGammaStirling(vBeta + tokensPerSubTopic[subTopic]);
+        }
+
+        return logLikelihood;
+    }
+
+    /**
+     *  Save everything needed to continue sampling from <code>nextIteration</code>:
+     *   the assignments, the count tables, the hyperparameters and each worker's
+     *   random stream. Must be called while no sampler is running, when the
+     *   workers' counts have been merged.
+     */
+    private void writeCheckpoint(File file, int nextIteration) throws IOException {
+        try (CheckpointOutput out = new CheckpointOutput(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION)) {
+            out.writeInt(corpus.getNumDocs());
+            out.writeInt(numTypes);
+            out.writeInt(numSuperTopics);
+            out.writeInt(numSubTopics);
+            out.writeInt(nextIteration);
+
+            out.writeDoubles(alpha);
+            out.writeDouble(beta);
+            for (double[] weights : subAlphas) {
+                out.writeDoubles(weights);
+            }
+            out.writeDoubles(subAlphaSums);
+
+            // Unpacked, so checkpoints do not depend on the packing
+            for (int doc = 0; doc < assignments.getNumDocs(); doc++) {
+                int offset = assignments.getOffset(doc);
+                int[] docSuperTopics = new int[assignments.getLength(doc)];
+                int[] docSubTopics = new int[docSuperTopics.length];
+                for (int position = 0; position < docSuperTopics.length; position++) {
+                    docSuperTopics[position] = assignments.getSuperTopic(offset + position);
+                    docSubTopics[position] = assignments.getSubTopic(offset + position);
+                }
+                out.writeInts(docSuperTopics);
+                out.writeInts(docSubTopics);
+            }
+
+            int[] buffer = new int[numSubTopics];
+            for (int type = 0; type < numTypes; type++) {
+                out.writeInts(typeSubTopicCounts.getRow(type, buffer));
+            }
+            out.writeInts(tokensPerSubTopic);
+            out.writeInts(tokensPerSuperTopic);
+            for (int[] counts : tokensPerSuperSubTopic) {
+                out.writeInts(counts);
+            }
+
+            out.writeInt(runnables.length);
+            for (PAMWorkerRunnable runnable : runnables) {
+                out.writeObject(runnable.getRandom());
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     *  Load a state saved by {@link #writeCheckpoint} into the allocated arrays.
+     *  @param randoms Receives the workers' random streams
+     *  @return The iteration to continue from
+     */
+    private int readCheckpoint(File file, List<Randoms> randoms) throws IOException {
+        try (CheckpointInput in = new CheckpointInput(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION)) {
+            in.expectInt(corpus.getNumDocs(), "number of documents");
+            in.expectInt(numTypes, "number of types");
+            in.expectInt(numSuperTopics, "number of super-topics");
+            in.expectInt(numSubTopics, "number of sub-topics");
+            int nextIteration = in.readInt();
+
+            in.readDoubles(alpha);
+            beta = in.readDouble();
+            vBeta = beta * numTypes;
+            for (double[] weights : subAlphas) {
+                in.readDoubles(weights);
+            }
+            in.readDoubles(subAlphaSums);
+
+            for (int doc = 0; doc < assignments.getNumDocs(); doc++) {
+                int offset = assignments.getOffset(doc);
+                int[] docSuperTopics = new int[assignments.getLength(doc)];
+                int[] docSubTopics = new int[docSuperTopics.length];
+                in.readInts(docSuperTopics);
+                in.readInts(docSubTopics);
+                for (int position = 0; position < docSuperTopics.length; position++) {
+                    if (docSuperTopics[position] < 0 || docSuperTopics[position] >= numSuperTopics ||
+                        docSubTopics[position] < 0 || docSubTopics[position] >= numSubTopics) {
+                        throw new IOException("Invalid topic assignment in document " + doc + " of " + file);
+                    }
+                    assignments.set(offset + position, docSuperTopics[position], docSubTopics[position]);
+                }
+            }
+
+            int[] buffer = new int[numSubTopics];
+            for (int type = 0; type < numTypes; type++) {
+                in.readInts(buffer);
+                typeSubTopicCounts.setRow(type, buffer);
+            }
+            in.readInts(tokensPerSubTopic);
+            in.readInts(tokensPerSuperTopic);
+            for (int[] counts : tokensPerSuperSubTopic) {
+                in.readInts(counts);
+            }
+
+            int numRandoms = in.readInt();
+            for (int i = 0; i < numRandoms; i++) {
+                randoms.add((Randoms) in.readObject());
+            }
+            return nextIteration;
+        }
+    }
+
     private void clearHistograms() {
         for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-            Arrays.fill(superTopicHistograms[superTopic], 0);
+            superTopicHistograms[superTopic].clear();
             for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                Arrays.fill(subTopicHistograms[superTopic][subTopic], 0);
+                subTopicHistograms[superTopic][subTopic].clear();
             }
         }
     }
 
+    /**
+     *  One task per super-topic that re-estimates its sub-topic alphas from the
+     *   histograms of the last sweep. The super-topics are independent, so the
+     *   tasks run in parallel when there are several threads.
+     */
+    private List<Callable<Object>> createOptimizeTasks() {
+        List<Callable<Object>> optimizeTasks = new ArrayList<>(numSuperTopics);
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            final int s = superTopic;
+            optimizeTasks.add(Executors.callable(() -> {
+                learnParameters(subAlphas[s], subTopicHistograms[s], superTopicHistograms[s]);
+                double sum = 0.0;
+                for (double subAlpha : subAlphas[s]) {
+                    sum += subAlpha;
+                }
+                subAlphaSums[s] = sum;
+            }));
+        }
+        return optimizeTasks;
+    }
+
     /** Use the fixed point iteration described by Tom Minka. */
     public void learnParameters(double[] parameters, int[][] observations, int[] observationLengths) throws FileNotFoundException {
-        int i, k;
+        CountHistogram[] histograms = new CountHistogram[observations.length];
+        for (int k = 0; k < observations.length; k++) {
+            histograms[k] = new CountHistogram(observations[k]);
+        }
+        learnParameters(parameters, histograms, new CountHistogram(observationLengths));
+    }
+
+    /**
+     *  The fixed point iteration on count histograms, which only visit the
+     *   counts that were actually observed.
+     *  Stops once no parameter changes by more than {@link #LEARN_TOLERANCE}
+     *   of its value, or after {@link #LEARN_MAX_ITERATIONS} iterations.
+     *
+     *  @return the number of iterations
+     */
+    int learnParameters(double[] parameters, CountHistogram[] observations, CountHistogram observationLengths) {
+        int k;
 
         double parametersSum = 0;
 
@@ -268,250 +804,236 @@ public class PAM4L {
         }
 
         double oldParametersK;
-        double currentDigamma;
         double denominator;
 
-        int[] histogram;
-
-        int nonZeroLimit;
-        int[] nonZeroLimits = new int[observations.length];
-        Arrays.fill(nonZeroLimits, -1);
-
-        //		The histogram arrays go up to the size of the largest document,
-        //		but the non-zero values will almost always cluster in the low end.
-        //		We avoid looping over empty arrays by saving the index of the largest
-        //		non-zero value.
-
-        for (i=0; i<observations.length; i++) {
-            histogram = observations[i];
-            for (k = 0; k < histogram.length; k++) {
-                if (histogram[k] > 0) {
-                    nonZeroLimits[i] = k;
-                }
-            }
-        }
-
-        for (int iteration=0; iteration<200; iteration++) {
+        int iteration = 0;
+        boolean converged = false;
+        while (!converged && iteration < LEARN_MAX_ITERATIONS) {
+            iteration++;
+            converged = true;
 
             // Calculate the denominator
-            denominator = 0;
-            currentDigamma = 0;
-
-            // Iterate over the histogram:
-            for (i=1; i<observationLengths.length; i++) {
-                currentDigamma += 1 / (parametersSum + i - 1);
-                denominator += observationLengths[i] * currentDigamma;
-            }
+            denominator = observationLengths.digammaSum(parametersSum);
 
             parametersSum = 0;
 
             for (k=0; k<parameters.length; k++) {
 
-                // What's the largest non-zero element in the histogram?
-                nonZeroLimit = nonZeroLimits[k];
-
                 // If there are no tokens assigned to this super-sub pair
                 //  anywhere in the corpus, bail.
 
-                if (nonZeroLimit == -1) {
+                if (observations[k].isEmpty()) {
+                    converged &= parameters[k] == 0.000001;
                     parameters[k] = 0.000001;
                     parametersSum += 0.000001;
                     continue;
                 }
 
                 oldParametersK = parameters[k];
-                parameters[k] = 0;
-                currentDigamma = 0;
-
-                histogram = observations[k];
-
-                for (i=1; i <= nonZeroLimit; i++) {
-                    currentDigamma += 1 / (oldParametersK + i - 1);
-                    parameters[k] += histogram[i] * currentDigamma;
-                }
-
-                parameters[k] *= oldParametersK / denominator;
+                parameters[k] = observations[k].digammaSum(oldParametersK) * oldParametersK / denominator;
 
                 if (Double.isNaN(parameters[k])) {
                     System.out.println("parametersK *= " +
                             oldParametersK + " / " +
                             denominator);
-                    for (i=1; i < histogram.length; i++) {
-                        System.out.print(histogram[i] + " ");
-                    }
-                    System.out.println();
+                    System.out.println(observations[k]);
+                }
+
+                // Written so that a NaN counts as not converged
+                if (!(Math.abs(parameters[k] - oldParametersK) <= LEARN_TOLERANCE * oldParametersK)) {
+                    converged = false;
                 }
 
                 parametersSum += parameters[k];
             }
         }
-    }
-
-    /* One iteration of Gibbs sampling, across all documents. */
-    private void sampleTopicsForAllDocs (Randoms r)
-    {
-//		Loop over every word in the corpus
-        for (int di = 0; di < superTopics.length; di++) {
 
-            sampleTopicsForOneDoc ((FeatureSequence)ilist.get(di).getData(),
-                    superTopics[di], subTopics[di], r);
-        }
+        return iteration;
     }
 
-    private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens,
-                                        int[] superTopics, // indexed by seq position
-                                        int[] subTopics,
-                                        Randoms r) {
-
-//		long startTime = System.currentTimeMillis();
-
-        int[] currentTypeSubTopicCounts;
-        int[] currentSuperSubCounts;
-        double[] currentSuperSubWeights;
-        double[] currentSubAlpha;
-
-        int type, subTopic, superTopic;
-        double currentSuperWeight, cumulativeWeight, sample;
-
-        int docLen = oneDocTokens.getLength();
-
-        for (int t = 0; t < numSuperTopics; t++) {
-            Arrays.fill(superSubCounts[t], 0);
-        }
-
-        Arrays.fill(superCounts, 0);
-
-
-//		populate topic counts
-        for (int si = 0; si < docLen; si++) {
-            superSubCounts[ superTopics[si] ][ subTopics[si] ]++;
-            superCounts[ superTopics[si] ]++;
+    /**
+     *  Split the documents into contiguous ranges, one per worker. With several
+     *   threads, each worker gets its own copy of the word-type statistics,
+     *   unless they share the global type/sub-topic table.
+     *   Every worker draws from its own unsynchronized stream, split from one
+     *   generator seeded by <code>r</code>.
+     */
+    private void initializeRunnables(Randoms r) {
+        int numDocs = corpus.getNumDocs();
+        runnables = new PAMWorkerRunnable[numThreads];
+        FastRandoms streams = new FastRandoms(r.nextLong());
+
+        int docsPerThread = numDocs / numThreads;
+        int offset = 0;
+
+        // Workers that share the counts also share the alias sampler's type tables
+        PAMWorkerRunnable.SharedAliasTables sharedAliasTables = null;
+        if (sharedCounts && numThreads > 1 && sampler == Sampler.ALIAS) {
+            sharedAliasTables = new PAMWorkerRunnable.SharedAliasTables(typeSubTopicCounts.getNumRows());
         }
 
-//		Iterate over the positions (words) in the document
-
-        for (int si = 0; si < docLen; si++) {
+        for (int thread = 0; thread < numThreads; thread++) {
 
-            type = oneDocTokens.getIndexAtPosition(si);
-            superTopic = superTopics[si];
-            subTopic = subTopics[si];
-
-            // Remove this token from all counts
-            superSubCounts[superTopic][subTopic]--;
-            superCounts[superTopic]--;
-            typeSubTopicCounts[type][subTopic]--;
-            tokensPerSuperTopic[superTopic]--;
-            tokensPerSubTopic[subTopic]--;
-            tokensPerSuperSubTopic[superTopic][subTopic]--;
-
-            // Build a distribution over super-sub topic pairs
-            //   for this token
-
-            // Clear the data structures
-            for (int t = 0; t < numSuperTopics; t++) {
-                Arrays.fill(superSubWeights[t], 0.0);
+            // some docs may be missing at the end due to integer division
+            if (thread == numThreads - 1) {
+                docsPerThread = numDocs - offset;
             }
-            Arrays.fill(superWeights, 0.0);
-            Arrays.fill(subWeights, 0.0);
-            Arrays.fill(cumulativeSuperWeights, 0.0);
-
-            // Avoid two layer (ie [][]) array accesses
-            currentTypeSubTopicCounts = typeSubTopicCounts[type];
 
-            // The conditional probability of each super-sub pair is proportional
-            //  to an expression with three parts, one that depends only on the
-            //  super-topic, one that depends only on the sub-topic and the word type,
-            //  and one that depends on the super-sub pair.
-
-            // Calculate each of the super-only factors first
-
-            for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-                superWeights[superTopic] = ((double) superCounts[superTopic] + alpha[superTopic]) /
-                        ((double) superCounts[superTopic] + subAlphaSums[superTopic]);
+            if (numThreads > 1) {
+                runnables[thread] = new PAMWorkerRunnable(numSuperTopics, numSubTopics,
+                        alpha, subAlphas, subAlphaSums, beta, vBeta,
+                        streams.split(),
+                        corpus, assignments,
+                        sharedCounts ? typeSubTopicCounts : typeSubTopicCounts.copy(),
+                        tokensPerSubTopic.clone(),
+                        tokensPerSuperTopic.clone(), copyOf(tokensPerSuperSubTopic),
+                        offset, docsPerThread);
             }
+            else {
+                // If there is only one thread, sample directly
+                //  against the global arrays.
+                runnables[thread] = new PAMWorkerRunnable(numSuperTopics, numSubTopics,
+                        alpha, subAlphas, subAlphaSums, beta, vBeta, streams.split(),
+                        corpus, assignments,
+                        typeSubTopicCounts, tokensPerSubTopic,
+                        tokensPerSuperTopic, tokensPerSuperSubTopic,
+                        offset, docsPerThread);
+            }
+            runnables[thread].setSharedCounts(sharedCounts && numThreads > 1);
+            runnables[thread].setHistograms(superTopicHistograms, subTopicHistograms);
+            runnables[thread].setSampler(sampler);
+            runnables[thread].setAliasParameters(aliasRebuildInterval, mhSteps);
+            runnables[thread].shareAliasTables(sharedAliasTables);
 
-            // Next calculate the sub-only factors
+            offset += docsPerThread;
+        }
+    }
 
-            for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                subWeights[subTopic] = ((double) currentTypeSubTopicCounts[subTopic] + beta) /
-                        ((double) tokensPerSubTopic[subTopic] + vBeta);
+    /** The number of tokens in each worker's documents, for the metrics. */
+    private long[] workerTokens() {
+        long[] tokens = new long[numThreads];
+        for (int thread = 0; thread < numThreads; thread++) {
+            PAMWorkerRunnable runnable = runnables[thread];
+            for (int doc = runnable.startDoc; doc < runnable.startDoc + runnable.numDocs; doc++) {
+                tokens[thread] += corpus.getTotalCount(doc);
             }
+        }
+        return tokens;
+    }
 
-            // Finally, put them together
+    private static int[][] copyOf(int[][] counts) {
+        int[][] copy = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            copy[i] = counts[i].clone();
+        }
+        return copy;
+    }
 
-            cumulativeWeight = 0.0;
+    /* One iteration of Gibbs sampling, across all documents. */
+    private void sampleTopicsForAllDocs (ExecutorService executor, List<Callable<Long>> tasks,
+                                         List<Callable<Object>> mergeTasks, SweepTimer timer) {
+        timer.runSweep(executor, tasks);
+        if (numThreads > 1) {
+            sumTypeSubTopicCounts(executor, mergeTasks);
+        }
+        timer.mergeFinished();
+    }
 
-            for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-                currentSuperSubWeights = superSubWeights[superTopic];
-                currentSuperSubCounts = superSubCounts[superTopic];
-                currentSubAlpha = subAlphas[superTopic];
-                currentSuperWeight = superWeights[superTopic];
+    /**
+     *  Merge the workers' statistics into the global arrays and hand the
+     *   merged values back to every worker. The type/sub-topic counts are
+     *   merged by the merge tasks in parallel, if the workers have their own.
+     */
+    private void sumTypeSubTopicCounts(ExecutorService executor, List<Callable<Object>> mergeTasks) {
+        SweepTimer.runAll(executor, mergeTasks);
 
-                for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                    currentSuperSubWeights[subTopic] =
-                            currentSuperWeight *
-                                    subWeights[subTopic] *
-                                    ((double) currentSuperSubCounts[subTopic] + currentSubAlpha[subTopic]);
-                    cumulativeWeight += currentSuperSubWeights[subTopic];
-                }
+        int[][] sources = new int[numThreads][];
 
-                // weight of a super topic is the sum of weights of its sub topics
-                cumulativeSuperWeights[superTopic] = cumulativeWeight;
-            }
+        for (int thread = 0; thread < numThreads; thread++) {
+            sources[thread] = runnables[thread].getTokensPerSubTopic();
+        }
+        mergeCounts(tokensPerSubTopic, sources);
 
-            // Sample a topic assignment from this distribution
-            sample = r.nextUniform() * cumulativeWeight;
+        for (int thread = 0; thread < numThreads; thread++) {
+            sources[thread] = runnables[thread].getTokensPerSuperTopic();
+        }
+        mergeCounts(tokensPerSuperTopic, sources);
 
-            // Go over the row sums to find the super-topic...
-            superTopic = 0;
-            while (sample > cumulativeSuperWeights[superTopic]) {
-                superTopic++;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int thread = 0; thread < numThreads; thread++) {
+                sources[thread] = runnables[thread].getTokensPerSuperSubTopic()[superTopic];
             }
+            mergeCounts(tokensPerSuperSubTopic[superTopic], sources);
+        }
+    }
 
-            // Now read across to find the sub-topic
-            currentSuperSubWeights = superSubWeights[superTopic];
-            cumulativeWeight = cumulativeSuperWeights[superTopic] -
-                    currentSuperSubWeights[0];
+    /**
+     *  Split the types into ranges that can be merged independently. Several
+     *   ranges per thread, since some genes are much more frequent than others.
+     *   None if the workers share the type/sub-topic table.
+     */
+    private List<Callable<Object>> createMergeTasks() {
+        if (sharedCounts) {
+            return new ArrayList<>();
+        }
+        int numRanges = Math.min(numTypes, 4 * numThreads);
+        List<Callable<Object>> mergeTasks = new ArrayList<>(numRanges);
+        for (int range = 0; range < numRanges; range++) {
+            final int firstType = (int) ((long) numTypes * range / numRanges);
+            final int lastType = (int) ((long) numTypes * (range + 1) / numRanges);
+            mergeTasks.add(Executors.callable(() -> mergeTypeSubTopicCounts(firstType, lastType)));
+        }
+        return mergeTasks;
+    }
 
-            // Go over each sub-topic until the weight is LESS than
-            //  the sample. Note that we're subtracting weights
-            //  in the same order we added them...
-            subTopic = 0;
-            while (sample < cumulativeWeight) {
-                subTopic++;
-                cumulativeWeight -= currentSuperSubWeights[subTopic];
+    /**
+     *  Merge the type/sub-topic counts of a range of types. Only types that
+     *   some worker changed during the last sweep need to be merged: for the
+     *   others every worker still holds the global counts.
+     */
+    private void mergeTypeSubTopicCounts(int firstType, int lastType) {
+        int[][] sources = new int[numThreads][numSubTopics];
+        int[] target = new int[numSubTopics];
+
+        for (int type = firstType; type < lastType; type++) {
+            boolean changed = false;
+            for (int thread = 0; thread < numThreads; thread++) {
+                boolean[] changedTypes = runnables[thread].getChangedTypes();
+                changed |= changedTypes[type];
+                changedTypes[type] = false;
             }
+            if (! changed) { continue; }
 
-            // Save the choice into the Gibbs state
-
-            superTopics[si] = superTopic;
-            subTopics[si] = subTopic;
-
-            // Put the new super/sub topics into the counts
-
-            superSubCounts[superTopic][subTopic]++;
-            superCounts[superTopic]++;
-            typeSubTopicCounts[type][subTopic]++;
-            tokensPerSuperTopic[superTopic]++;
-            tokensPerSubTopic[subTopic]++;
-            tokensPerSuperSubTopic[superTopic][subTopic]++;
+            typeSubTopicCounts.copyRow(type, target);
+            for (int thread = 0; thread < numThreads; thread++) {
+                runnables[thread].getTypeSubTopicCounts().copyRow(type, sources[thread]);
+            }
+            mergeCounts(target, sources);
+            typeSubTopicCounts.setRow(type, target);
+            for (int thread = 0; thread < numThreads; thread++) {
+                runnables[thread].getTypeSubTopicCounts().setRow(type, target);
+            }
         }
+    }
 
-        //		Update the topic count histograms
-        //		for dirichlet estimation
-
-        for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-
-            superTopicHistograms[superTopic][ superCounts[superTopic] ]++;
-            currentSuperSubCounts = superSubCounts[superTopic];
-
-            for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                subTopicHistograms[superTopic][subTopic][ currentSuperSubCounts[subTopic] ]++;
+    /**
+     *  Every worker started the sweep from the same global counts, so the new
+     *   global count is the old one plus the change made by each worker.
+     *   The result is then copied back into each worker's array.
+     */
+    private static void mergeCounts(int[] target, int[][] sources) {
+        for (int i = 0; i < target.length; i++) {
+            int sum = target[i] * (1 - sources.length);
+            for (int[] source : sources) {
+                sum += source[i];
             }
+            target[i] = sum;
+        }
+        for (int[] source : sources) {
+            System.arraycopy(target, 0, source, 0, target.length);
         }
     }
 
-
     class IDSorter implements Comparable {
         int wi; double p;
         public IDSorter (int wi, double p) { this.wi = wi; this.p = p; }
@@ -524,30 +1046,23 @@ public class PAM4L {
         }
     }
 
-    private int[][] getSuperTopics() {
-        return superTopics;
-    }
-
-    private int[][] getSubTopics() {
-        return subTopics;
-    }
-
-    private int getNumSuperTopics() {
-        return numSuperTopics;
-    }
-
-    private int getNumSubTopics() {
-        return numSubTopics;
-    }
-
-    private int getNumDocuments() {
-        return this.ilist.size();
+    /**
+     * Like {@link #calculateDirichletDist(int[], int)}, but each position is weighted
+     *  by the number of tokens it represents in <code>tokens</code>.
+     */
+    public static double[] calculateDirichletDist(int[] assignmentsOfWordTopics, FeatureSequence tokens,
+                                                  int numOfTopics) {
+        double[] dist = new double[numOfTopics];
+        int wordCount = tokens.getTotalCount();
+        for (int i = 0; i < assignmentsOfWordTopics.length; i++) {
+            dist[ assignmentsOfWordTopics[i] ] += tokens.getCountAtPosition(i);
+        }
+        for (int topic = 0; topic < numOfTopics; topic++) {
+            dist[topic] /= wordCount;
+        }
+        return dist;
     }
 
-	private double[][] getSuperSubWeights() {
-		return superSubWeights;
-	}
-
     public static double[] calculateDirichletDist(int[] assignmentsOfWordTopics, int numOfTopics) {
         int[] counts = new int[numOfTopics];
         int wordCount = assignmentsOfWordTopics.length;
@@ -574,59 +1089,4 @@ public class PAM4L {
         return String.join(",", distString);
     }
 
-
-    private void printSuperSubWeights() throws FileNotFoundException {
-        PrintWriter printWriter = new PrintWriter(this.superSubWeightOutput);
-        double[][] superSubWeights = getSuperSubWeights();
-        int numSuperTopics = getNumSuperTopics();
-
-        for (int i = 0; i < numSuperTopics; i++) {
-            printWriter.println(distToString(superSubWeights[i]));
-        }
-
-        printWriter.close();
-    }
-
-    private void printTopics(boolean isSuper) throws FileNotFoundException {
-        int[][] counts = (isSuper) ? getSuperTopics() : getSubTopics();
-        int numTopics = (isSuper) ? getNumSuperTopics() : getNumSubTopics();
-        int numDocs = getNumDocuments();
-        File file = (isSuper) ? this.superTopicOutput : this.subTopicOutput;
-        PrintWriter printWriter = new PrintWriter(file);
-
-
-        System.out.println("nDocs: " + numDocs);
-
-        for (int i = 0; i < numDocs; i++) {
-            double[] dist = calculateDirichletDist(counts[i], numTopics);
-            printWriter.println(distToString(dist));
-        }
-
-        printWriter.close();
-    }
-
-    private void printWordMatrix() throws FileNotFoundException {
-        PrintWriter printWriter = new PrintWriter(this.wordOutput);
-
-        System.out.println("writing" + typeSubTopicCounts.length + "words");
-        System.out.println(typeSubTopicCounts[0]);
-
-        for (int i = 0; i < this.typeSubTopicCounts.length; i++) {
-            String string = distToString(this.typeSubTopicCounts[i]);
-            printWriter.println(string);
-        }
-
-        printWriter.close();
-
-    }
-
-    private void printState() throws FileNotFoundException {
-        this.printTopics(true);
-        this.printTopics(false);
-        this.printSuperSubWeights();
-        this.printWordMatrix();
-    }
-
-
-
 }
@@ -0,0 +1,220 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.*;
+import cc.mallet.util.BinaryMatrixWriter;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Writes the state of a {@link PAM4L} model on a background thread:
+ *  the super-topic and sub-topic distribution of every document, the
+ *  super-sub weights and the gene/sub-topic count matrix.
+ * <p>
+ * The assignments are already packed into one flat array (see
+ *  {@link TopicAssignments}), so a snapshot is a handful of array copies. If the previous snapshot is
+ *  still being written, {@link #trySnapshot} skips the new one rather than
+ *  making the sampler wait.
+ * <p>
+ * In binary output the distributions are float32, the super-sub weights
+ *  float64 and the gene/sub-topic counts int32 with the gene names as row names.
+ */
+class PAMStateWriter extends SnapshotWriter {
+
+    File superTopicOutput, subTopicOutput, superSubWeightOutput, wordOutput;
+    OutputFormat format;
+    String[] typeNames;
+    int numSuperTopics, numSubTopics;
+    int iteration;
+
+    FlatCorpus corpus; // only read: the documents do not change during sampling
+    TopicAssignments assignments;
+    CountTable typeSubTopicCounts; // indexed by <feature index, topic index>, stored like the model's
+    double[][] subAlphas;
+
+    public PAMStateWriter(File superTopicOutput, File subTopicOutput,
+                          File superSubWeightOutput, File wordOutput, OutputFormat format,
+                          FlatCorpus corpus, int numSuperTopics, int numSubTopics) {
+        super("pam-state-writer");
+
+        Alphabet alphabet = corpus.getDataAlphabet();
+        int numTypes = alphabet.size();
+        typeNames = new String[numTypes];
+        for (int type = 0; type < numTypes; type++) {
+            typeNames[type] = alphabet.lookupObject(type).toString();
+        }
+
+        this.superTopicOutput = superTopicOutput;
+        this.subTopicOutput = subTopicOutput;
+        this.superSubWeightOutput = superSubWeightOutput;
+        this.wordOutput = wordOutput;
+        this.format = format;
+        this.corpus = corpus;
+        this.numSuperTopics = numSuperTopics;
+        this.numSubTopics = numSubTopics;
+
+        assignments = new TopicAssignments(corpus, numSuperTopics, numSubTopics);
+        subAlphas = new double[numSuperTopics][numSubTopics];
+    }
+
+    /**
+     *  Copy the state and start writing it, unless the previous snapshot is
+     *   still being written. Must be called while no sampler is running.
+     *  @return false if the snapshot was skipped
+     */
+    public boolean trySnapshot(TopicAssignments assignments,
+                               CountTable typeSubTopicCounts, double[][] subAlphas,
+                               int iteration) throws IOException {
+        if (isWriting()) {
+            return false;
+        }
+        finish();
+        copyState(assignments, typeSubTopicCounts, subAlphas, iteration);
+        startWriting();
+        return true;
+    }
+
+    /** Write the state, waiting for any earlier snapshot and for this one to finish. */
+    public void snapshotAndWait(TopicAssignments assignments,
+                                CountTable typeSubTopicCounts, double[][] subAlphas,
+                                int iteration) throws IOException {
+        finish();
+        copyState(assignments, typeSubTopicCounts, subAlphas, iteration);
+        startWriting();
+        finish();
+    }
+
+    private void copyState(TopicAssignments assignments,
+                           CountTable typeSubTopicCounts, double[][] subAlphas, int iteration) {
+        this.iteration = iteration;
+        this.assignments.copyFrom(assignments);
+        if (this.typeSubTopicCounts == null) {
+            this.typeSubTopicCounts = typeSubTopicCounts.copy();
+        }
+        else {
+            this.typeSubTopicCounts.copyFrom(typeSubTopicCounts);
+        }
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            System.arraycopy(subAlphas[superTopic], 0, this.subAlphas[superTopic], 0, numSubTopics);
+        }
+    }
+
+    void write() throws IOException {
+        if (format.writesText()) {
+            writeText();
+        }
+        if (format.writesBinary()) {
+            writeBinary();
+        }
+    }
+
+    void writeText() throws IOException {
+        writeTopics(superTopicOutput, true, numSuperTopics);
+        writeTopics(subTopicOutput, false, numSubTopics);
+
+        StringBuilder line = new StringBuilder();
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(superSubWeightOutput)))) {
+            for (double[] weights : subAlphas) {
+                line.setLength(0);
+                for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                    if (subTopic > 0) { line.append(','); }
+                    line.append(weights[subTopic]);
+                }
+                out.println(line);
+            }
+            if (out.checkError()) { throw new IOException("Failed to write " + superSubWeightOutput); }
+        }
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(wordOutput)))) {
+            int[] buffer = new int[numSubTopics];
+            for (int type = 0; type < typeNames.length; type++) {
+                int[] counts = typeSubTopicCounts.getRow(type, buffer);
+                line.setLength(0);
+                for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                    if (subTopic > 0) { line.append(','); }
+                    line.append(counts[subTopic]);
+                }
+                out.println(line);
+            }
+            if (out.checkError()) { throw new IOException("Failed to write " + wordOutput); }
+        }
+    }
+
+    void writeBinary() throws IOException {
+        writeBinaryTopics(OutputFormat.binaryFile(superTopicOutput), true, numSuperTopics);
+        writeBinaryTopics(OutputFormat.binaryFile(subTopicOutput), false, numSubTopics);
+
+        try (BinaryMatrixWriter out = new BinaryMatrixWriter(OutputFormat.binaryFile(superSubWeightOutput),
+                BinaryMatrixWriter.FLOAT64, numSuperTopics, numSubTopics, iteration, null)) {
+            for (double[] weights : subAlphas) {
+                out.writeRow(weights, numSubTopics);
+            }
+        }
+
+        try (BinaryMatrixWriter out = new BinaryMatrixWriter(OutputFormat.binaryFile(wordOutput),
+                BinaryMatrixWriter.INT32, typeNames.length, numSubTopics, iteration, typeNames)) {
+            int[] buffer = new int[numSubTopics];
+            for (int type = 0; type < typeNames.length; type++) {
+                out.writeRow(typeSubTopicCounts.getRow(type, buffer), numSubTopics);
+            }
+        }
+    }
+
+    private void writeBinaryTopics(File file, boolean superTopics, int numTopics) throws IOException {
+        double[] dist = new double[numTopics];
+
+        try (BinaryMatrixWriter out = new BinaryMatrixWriter(file, BinaryMatrixWriter.FLOAT32,
+                corpus.getNumDocs(), numTopics, iteration, null)) {
+            for (int doc = 0; doc < corpus.getNumDocs(); doc++) {
+                countTopics(doc, superTopics, dist);
+                for (int topic = 0; topic < numTopics; topic++) {
+                    out.writeFloat((float) dist[topic]);
+                }
+            }
+        }
+    }
+
+    /**
+     *  The fraction of the document's tokens assigned to each topic.
+     *  @param superTopics Count the super-topics rather than the sub-topics
+     */
+    private void countTopics(int doc, boolean superTopics, double[] dist) {
+        int offset = corpus.getOffset(doc);
+
+        Arrays.fill(dist, 0.0);
+        for (int index = offset; index < offset + corpus.getLength(doc); index++) {
+            int packed = assignments.get(index);
+            int topic = superTopics ? assignments.superTopic(packed) : assignments.subTopic(packed);
+            dist[topic] += corpus.getCount(index);
+        }
+        for (int topic = 0; topic < dist.length; topic++) {
+            dist[topic] /= corpus.getTotalCount(doc);
+        }
+    }
+
+    /** One line per document, as in {@link PAM4L#calculateDirichletDist(int[], FeatureSequence, int)}. */
+    private void writeTopics(File file, boolean superTopics, int numTopics) throws IOException {
+        StringBuilder line = new StringBuilder();
+        double[] dist = new double[numTopics];
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int doc = 0; doc < corpus.getNumDocs(); doc++) {
+                countTopics(doc, superTopics, dist);
+
+                line.setLength(0);
+                for (int topic = 0; topic < numTopics; topic++) {
+                    if (topic > 0) { line.append(','); }
+                    line.append(dist[topic]);
+                }
+                out.println(line);
+            }
+            if (out.checkError()) { throw new IOException("Failed to write " + file); }
+        }
+    }
+}
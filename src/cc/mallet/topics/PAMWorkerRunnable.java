@@ -0,0 +1,1298 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+http://www.cs.umass.edu/~mccallum/mallet
+This software is provided under the terms of the Common Public License,
+version 1.0, as published by http://www.opensource.org.  For further
+information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.*;
+import cc.mallet.util.AliasTable;
+import cc.mallet.util.Randoms;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Gibbs sampling task for a contiguous range of documents in a
+ *  four level PAM. When running with several threads, each worker
+ *  samples against its own copy of the word-type statistics, which
+ *  {@link PAM4L} merges after every sweep (as in {@link WorkerRunnable}).
+ */
+
+public class PAMWorkerRunnable implements Runnable {
+
+    // Parameters, shared with PAM4L and read-only during a sweep
+    int numSuperTopics;
+    int numSubTopics;
+
+    double[] alpha;
+    double[][] subAlphas;
+    double[] subAlphaSums;
+    double beta;
+    double vBeta;
+
+    // Data and Gibbs sampling state, shared with PAM4L.
+    //  Each worker only touches its own range of documents.
+    FlatCorpus corpus;
+    TopicAssignments assignments; // at the same offsets as the corpus
+
+    int startDoc, numDocs;
+
+    // Per-document state variables
+    int[][] superSubCounts; // # of words per <super, sub>
+    int[] superCounts; // # of words per <super>
+    int[][] docSubTopics; // the sub-topics with non-zero n_sk per <super>, in order
+    int[] docSubTopicSizes; // indexed by <super>
+    double[] superWeights; // the component of the Gibbs update that depends on super-topics
+    double[] subWeights;   // the component of the Gibbs update that depends on sub-topics
+    double[][] superSubWeights; // unnormalized sampling distribution
+    double[] cumulativeSuperWeights; // a cache of the cumulative weight for each super-topic
+    double[] runSuperWeights, runSubWeights; // log weights for a run of several tokens
+    double[][] runPairLogWeights; // log (n_sk + alpha_sk)^(c) of a run, parallel to docSubTopics
+
+    // The pair terms of a run's weight with n_sk = 0, which do not depend on
+    //  the document: exp(log (alpha_sk)^(c) - runPriorMax[c]) for each pair,
+    //  indexed by <run length c, super * numSubTopics + sub>. Built the first
+    //  time a run of that length is sampled in a sweep, since the alphas may be
+    //  optimized between sweeps. Runs at least RUN_PRIOR_CACHE_SIZE long are
+    //  rare, and are scored in slot 0, which is rebuilt every time.
+    //  The log (n_k + vBeta)^(c) are cached in the same way, along with the
+    //  n_k they were computed from, since only a few n_k change between runs.
+    static final int RUN_PRIOR_CACHE_SIZE = 32;
+    double[][] runPriorWeights;
+    double[] runPriorMax;
+    double[][] runSubDenominators;
+    int[][] runSubDenominatorCounts;
+    int[] runPriorGenerations;
+    int runPriorGeneration = 0;
+
+    // Per-word type state variables. These are either the global
+    //  arrays (single thread) or this worker's copy of them. With shared
+    //  counts, all workers update the global type/sub-topic table atomically.
+    CountTable typeSubTopicCounts; // indexed by <feature index, topic index>
+    boolean sharedCounts = false;
+    int[] typeCountsBuffer; // a copy of one row of typeSubTopicCounts
+    boolean[] changedTypes; // indexed by <feature index>, set when a token of the type changes sub-topic
+    int[] tokensPerSubTopic; // indexed by <topic index>
+    int[] tokensPerSuperTopic; // indexed by <topic index>
+    int[][] tokensPerSuperSubTopic;
+
+    // Histograms for MLE, shared by all workers
+    CountHistogram[] superTopicHistograms;
+    CountHistogram[][] subTopicHistograms;
+
+    // State for the sparse sampler. The weight of a super-sub pair,
+    //  superWeight[s] * (n_wk + beta) / (n_k + vBeta) * (n_sk + alpha_sk),
+    //  is split into three buckets as in SparseLDA:
+    //    smoothing: beta * superWeight[s] * alpha_sk / (n_k + vBeta)
+    //    document:  beta * superWeight[s] * n_sk / (n_k + vBeta)
+    //    type:      n_wk / (n_k + vBeta) * sum_s superWeight[s] * (n_sk + alpha_sk)
+    //  The first two are kept per super-topic and updated incrementally, and
+    //  a draw from the document bucket only visits the document's docSubTopics.
+    //  The type bucket only has to visit sub-topics with non-zero n_wk.
+    PAM4L.Sampler sampler = PAM4L.Sampler.DENSE;
+    double[] subDenominators; // 1 / (n_k + vBeta), indexed by <sub-topic>
+    double[] superSmoothingMass; // sum_k alpha_sk / (n_k + vBeta), indexed by <super-topic>
+    double[] superDocMass; // sum_k n_sk / (n_k + vBeta) for the current doc, indexed by <super-topic>
+    double[] typeScores;
+    int[] typeSubTopics;
+    int[] typeCounts; // the n_wk each type bucket score was computed from
+
+    // The sub-topics that may have non-zero n_wk, per word type, so the type
+    //  bucket does not visit all sub-topics. One bit per (type, sub-topic), a
+    //  32nd of the count table however many sub-topics a type has. A type's
+    //  bits are set from its row the first time the type is seen in a sweep,
+    //  then only with this worker's own changes: sub-topics whose count drops
+    //  to zero stay until the next sweep. With shared counts, a sub-topic that
+    //  another worker gives the type during the sweep is only seen from the
+    //  next sweep on.
+    long[] typeNonZeroBits; // indexed by <feature index * nonZeroWords + sub-topic / 64>
+    int nonZeroWords;
+    int[] typeNonZeroGenerations; // the sweep each type's bits were set in
+    int nonZeroGeneration = 0;
+
+    // State for the alias sampler. Sub-topics are proposed from
+    //  (n_wk + beta) / (n_k + vBeta) as of the last rebuild: a sparse table per
+    //  word type over its non-zero n_wk, plus one table over the beta term shared
+    //  by all types. A proposal is accepted or rejected against the current
+    //  counts (Metropolis-Hastings), then the super-topic is drawn exactly.
+    //  Tables are rebuilt lazily after every aliasRebuildInterval documents.
+    int aliasRebuildInterval = 100;
+    int mhSteps = 2;
+    AliasTable[] typeAliasTables; // indexed by <feature index>
+    int[] typeAliasGenerations; // the generation each type's table was built in
+    AliasTable smoothingAliasTable;
+    // With shared counts, the type tables of all workers. Null otherwise.
+    SharedAliasTables sharedAliasTables;
+    int aliasGeneration = 0;
+    int docsSinceAliasRebuild = 0;
+
+    boolean shouldSaveState = false;
+
+    // The log-likelihood of this worker's documents, added up during a sweep
+    //  as each document is finished (see PAM4L#modelLogLikelihood). Its
+    //  logGamma tables also give the super-topic and pair terms of runs.
+    boolean shouldComputeLikelihood = false;
+    PAM4L.DocumentLikelihood documentLikelihood;
+    double documentLogLikelihood = 0.0;
+
+    Randoms random;
+
+    public PAMWorkerRunnable (int numSuperTopics, int numSubTopics,
+                              double[] alpha, double[][] subAlphas, double[] subAlphaSums,
+                              double beta, double vBeta, Randoms random,
+                              FlatCorpus corpus, TopicAssignments assignments,
+                              CountTable typeSubTopicCounts, int[] tokensPerSubTopic,
+                              int[] tokensPerSuperTopic, int[][] tokensPerSuperSubTopic,
+                              int startDoc, int numDocs) {
+        this.numSuperTopics = numSuperTopics;
+        this.numSubTopics = numSubTopics;
+
+        this.alpha = alpha;
+        this.subAlphas = subAlphas;
+        this.subAlphaSums = subAlphaSums;
+        this.beta = beta;
+        this.vBeta = vBeta;
+        this.random = random;
+
+        this.corpus = corpus;
+        this.assignments = assignments;
+
+        this.typeSubTopicCounts = typeSubTopicCounts;
+        this.changedTypes = new boolean[typeSubTopicCounts.getNumRows()];
+        this.typeCountsBuffer = new int[numSubTopics];
+        this.tokensPerSubTopic = tokensPerSubTopic;
+        this.tokensPerSuperTopic = tokensPerSuperTopic;
+        this.tokensPerSuperSubTopic = tokensPerSuperSubTopic;
+
+        this.startDoc = startDoc;
+        this.numDocs = numDocs;
+
+        //		Allocate several arrays for use within each document
+        //		to cut down memory allocation and garbage collection time
+
+        superSubCounts = new int[numSuperTopics][numSubTopics];
+        superCounts = new int[numSuperTopics];
+        docSubTopics = new int[numSuperTopics][numSubTopics];
+        docSubTopicSizes = new int[numSuperTopics];
+        superWeights = new double[numSuperTopics];
+        subWeights = new double[numSubTopics];
+        superSubWeights = new double[numSuperTopics][numSubTopics];
+        cumulativeSuperWeights = new double[numSuperTopics];
+        runSuperWeights = new double[numSuperTopics];
+        runSubWeights = new double[numSubTopics];
+        runPairLogWeights = new double[numSuperTopics][numSubTopics];
+        runPriorWeights = new double[RUN_PRIOR_CACHE_SIZE][];
+        runPriorMax = new double[RUN_PRIOR_CACHE_SIZE];
+        runSubDenominators = new double[RUN_PRIOR_CACHE_SIZE][];
+        runSubDenominatorCounts = new int[RUN_PRIOR_CACHE_SIZE][];
+        runPriorGenerations = new int[RUN_PRIOR_CACHE_SIZE];
+
+        subDenominators = new double[numSubTopics];
+        superSmoothingMass = new double[numSuperTopics];
+        superDocMass = new double[numSuperTopics];
+        typeScores = new double[numSubTopics];
+        typeSubTopics = new int[numSubTopics];
+        typeCounts = new int[numSubTopics];
+    }
+
+    public void setSampler(PAM4L.Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     *  @param rebuildInterval Rebuild the proposal tables after this many documents
+     *  @param mhSteps Number of Metropolis-Hastings proposals per token
+     */
+    public void setAliasParameters(int rebuildInterval, int mhSteps) {
+        this.aliasRebuildInterval = rebuildInterval;
+        this.mhSteps = mhSteps;
+    }
+
+    /**
+     *  Update the type/sub-topic table directly with atomic adds, rather than
+     *  a private copy merged after each sweep. Use when all workers share one table.
+     */
+    public void setSharedCounts(boolean sharedCounts) {
+        this.sharedCounts = sharedCounts;
+    }
+
+    /**
+     *  Propose from type tables that all workers sampling against the same
+     *   shared counts use, rather than from tables of this worker's own.
+     */
+    void shareAliasTables(SharedAliasTables sharedAliasTables) {
+        this.sharedAliasTables = sharedAliasTables;
+    }
+
+    public CountTable getTypeSubTopicCounts() { return typeSubTopicCounts; }
+    public boolean[] getChangedTypes() { return changedTypes; }
+    public int[] getTokensPerSubTopic() { return tokensPerSubTopic; }
+    public int[] getTokensPerSuperTopic() { return tokensPerSuperTopic; }
+    public int[][] getTokensPerSuperSubTopic() { return tokensPerSuperSubTopic; }
+    public Randoms getRandom() { return random; }
+    public void setRandom(Randoms random) { this.random = random; }
+
+    void setHistograms(CountHistogram[] superTopicHistograms, CountHistogram[][] subTopicHistograms) {
+        this.superTopicHistograms = superTopicHistograms;
+        this.subTopicHistograms = subTopicHistograms;
+    }
+
+    /** Record the per-document topic count histograms during the next sweep. */
+    public void collectHistograms() {
+        shouldSaveState = true;
+    }
+
+    /** Add up the log-likelihood of the documents during the next sweep. */
+    public void collectLogLikelihood() {
+        shouldComputeLikelihood = true;
+    }
+
+    /** The document terms of the log-likelihood after a sweep with {@link #collectLogLikelihood}. */
+    public double getDocumentLogLikelihood() { return documentLogLikelihood; }
+
+    public void resetBeta(double beta, double vBeta) {
+        this.beta = beta;
+        this.vBeta = vBeta;
+    }
+
+    /* One iteration of Gibbs sampling, across this worker's documents. */
+    public void run () {
+        runPriorGeneration++;
+        if (sampler == PAM4L.Sampler.SPARSE) {
+            initializeSparseCaches();
+        }
+        else if (sampler == PAM4L.Sampler.ALIAS && smoothingAliasTable == null) {
+            initializeAliasTables();
+        }
+
+        if (documentLikelihood == null) {
+            documentLikelihood = new PAM4L.DocumentLikelihood(numSuperTopics, numSubTopics);
+        }
+        documentLikelihood.setAlphas(alpha, subAlphas, subAlphaSums);
+        if (shouldComputeLikelihood) {
+            documentLogLikelihood = 0.0;
+        }
+
+        for (int di = startDoc; di < startDoc + numDocs; di++) {
+            if (sampler == PAM4L.Sampler.SPARSE) {
+                sampleTopicsForOneDocSparse (di, random);
+            }
+            else if (sampler == PAM4L.Sampler.ALIAS) {
+                if (docsSinceAliasRebuild >= aliasRebuildInterval) {
+                    rebuildAliasTables();
+                }
+                sampleTopicsForOneDocAlias (di, random);
+                docsSinceAliasRebuild++;
+            }
+            else {
+                sampleTopicsForOneDoc (di, random);
+            }
+
+            // The counts now hold the document's final assignments for this sweep
+            if (shouldComputeLikelihood) {
+                documentLogLikelihood += documentLikelihood.logLikelihood(superCounts, superSubCounts);
+            }
+        }
+        shouldSaveState = false;
+        shouldComputeLikelihood = false;
+    }
+
+    /**
+     *  Recompute the smoothing-only coefficients from scratch at the start
+     *   of every sweep, since the counts and sub-topic alphas may have been
+     *   changed by merging or optimization, and to avoid accumulating
+     *   rounding error from the incremental updates.
+     */
+    private void initializeSparseCaches() {
+        if (typeNonZeroBits == null) {
+            int numTypes = typeSubTopicCounts.getNumRows();
+            nonZeroWords = (numSubTopics + 63) >>> 6;
+            typeNonZeroBits = new long[numTypes * nonZeroWords];
+            typeNonZeroGenerations = new int[numTypes];
+        }
+        // Other workers' changes have been merged in since the lists were built
+        nonZeroGeneration++;
+
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            subDenominators[subTopic] = 1.0 / (tokensPerSubTopic[subTopic] + vBeta);
+        }
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            double[] currentSubAlpha = subAlphas[superTopic];
+            double mass = 0.0;
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                mass += currentSubAlpha[subTopic] * subDenominators[subTopic];
+            }
+            superSmoothingMass[superTopic] = mass;
+        }
+    }
+
+    /**
+     *  Called after tokensPerSubTopic[subTopic] has changed: refresh the
+     *   cached denominator and the per-super-topic masses that use it.
+     */
+    private void updateSubDenominator(int subTopic) {
+        double newDenominator = 1.0 / (tokensPerSubTopic[subTopic] + vBeta);
+        double delta = newDenominator - subDenominators[subTopic];
+        subDenominators[subTopic] = newDenominator;
+
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            superSmoothingMass[superTopic] += subAlphas[superTopic][subTopic] * delta;
+            superDocMass[superTopic] += superSubCounts[superTopic][subTopic] * delta;
+        }
+    }
+
+    private double superWeight(int superTopic) {
+        return ((double) superCounts[superTopic] + alpha[superTopic]) /
+                ((double) superCounts[superTopic] + subAlphaSums[superTopic]);
+    }
+
+    /** Change a type/sub-topic count, atomically if the table is shared with other workers. */
+    private void addTypeCount(int type, int subTopic, int delta) {
+        if (sharedCounts) {
+            typeSubTopicCounts.addAtomic(type, subTopic, delta);
+        }
+        else {
+            typeSubTopicCounts.add(type, subTopic, delta);
+        }
+    }
+
+    /**
+     *  The sub-topic counts of a type, for reading. A shared table is copied,
+     *  since other workers may change it while we sample, so the row is only
+     *  valid until the next call.
+     */
+    private int[] typeRow(int type) {
+        if (sharedCounts) {
+            typeSubTopicCounts.copyRow(type, typeCountsBuffer);
+            return typeCountsBuffer;
+        }
+        return typeSubTopicCounts.getRow(type, typeCountsBuffer);
+    }
+
+    /**
+     *  The offset in <code>typeNonZeroBits</code> of the bits of the sub-topics
+     *   that may have non-zero counts for a type, set from its row if they are
+     *   from an earlier sweep.
+     */
+    private int nonZeroSubTopics(int type) {
+        int offset = type * nonZeroWords;
+        if (typeNonZeroGenerations[type] == nonZeroGeneration) {
+            return offset;
+        }
+
+        int[] currentTypeSubTopicCounts = typeRow(type);
+        Arrays.fill(typeNonZeroBits, offset, offset + nonZeroWords, 0L);
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            if (currentTypeSubTopicCounts[subTopic] > 0) {
+                typeNonZeroBits[offset + (subTopic >>> 6)] |= 1L << subTopic;
+            }
+        }
+        typeNonZeroGenerations[type] = nonZeroGeneration;
+        return offset;
+    }
+
+    /**
+     *  Fill <code>typeScores</code>, <code>typeSubTopics</code> and
+     *   <code>typeCounts</code> for the sub-topics with non-zero counts for the type.
+     *
+     *  @return The number of sub-topics filled in
+     */
+    private int scoreTypeBucket(int type) {
+        int offset = nonZeroSubTopics(type);
+        int size = 0;
+        for (int word = 0; word < nonZeroWords; word++) {
+            long bits = typeNonZeroBits[offset + word];
+            while (bits != 0) {
+                int subTopic = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int typeCount = typeSubTopicCounts.get(type, subTopic);
+                if (typeCount > 0) {
+                    typeScores[size] = typeCount * subDenominators[subTopic] * subTopicSuperMass(subTopic);
+                    typeSubTopics[size] = subTopic;
+                    typeCounts[size] = typeCount;
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /** Called after a token of the type has been added to a sub-topic. */
+    private void addNonZeroSubTopic(int type, int subTopic) {
+        if (typeNonZeroGenerations[type] != nonZeroGeneration) {
+            // Set from the row when the type is next seen
+            return;
+        }
+        typeNonZeroBits[type * nonZeroWords + (subTopic >>> 6)] |= 1L << subTopic;
+    }
+
+    /** Fill the per-document super-sub counts from the current assignments. */
+    private void populateDocumentCounts(int offset, int docLen) {
+        // Only the previous document's non-zero counts need clearing
+        for (int t = 0; t < numSuperTopics; t++) {
+            for (int i = 0; i < docSubTopicSizes[t]; i++) {
+                superSubCounts[t][ docSubTopics[t][i] ] = 0;
+            }
+            docSubTopicSizes[t] = 0;
+        }
+
+        Arrays.fill(superCounts, 0);
+
+        for (int si = 0; si < docLen; si++) {
+            int count = corpus.getCount(offset + si);
+            int packed = assignments.get(offset + si);
+            addDocumentCount(assignments.superTopic(packed), assignments.subTopic(packed), count);
+        }
+    }
+
+    /**
+     *  Change a per-document super-sub count, adding the sub-topic to the
+     *   super-topic's list of non-zero sub-topics or removing it.
+     */
+    private void addDocumentCount(int superTopic, int subTopic, int delta) {
+        int oldCount = superSubCounts[superTopic][subTopic];
+        superSubCounts[superTopic][subTopic] = oldCount + delta;
+        superCounts[superTopic] += delta;
+
+        int[] subTopics = docSubTopics[superTopic];
+        int size = docSubTopicSizes[superTopic];
+        if (oldCount == 0) {
+            int i = -Arrays.binarySearch(subTopics, 0, size, subTopic) - 1;
+            System.arraycopy(subTopics, i, subTopics, i + 1, size - i);
+            subTopics[i] = subTopic;
+            docSubTopicSizes[superTopic] = size + 1;
+        }
+        else if (oldCount + delta == 0) {
+            int i = Arrays.binarySearch(subTopics, 0, size, subTopic);
+            System.arraycopy(subTopics, i + 1, subTopics, i, size - i - 1);
+            docSubTopicSizes[superTopic] = size - 1;
+        }
+    }
+
+    /**
+     *  Same conditional distribution as {@link #sampleTopicsForOneDoc}, but
+     *   sampled from the smoothing / document / type buckets described above,
+     *   so the cost per token is O(numSuperTopics) plus O(numSuperTopics) for each
+     *   sub-topic the word type has been assigned to, rather than
+     *   O(numSuperTopics * numSubTopics).
+     */
+    void sampleTopicsForOneDocSparse (int doc, Randoms r) {
+
+        int[] candidateSubTopics;
+        int[] currentSuperSubCounts;
+
+        int type, subTopic, superTopic, count, packed, nonZeroSubTopics, typeCount, i;
+        double smoothingMass, docMass, typeMass, score, sample;
+
+        int offset = corpus.getOffset(doc);
+        int docLen = corpus.getLength(doc);
+
+        populateDocumentCounts(offset, docLen);
+
+        for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            currentSuperSubCounts = superSubCounts[superTopic];
+            candidateSubTopics = docSubTopics[superTopic];
+            docMass = 0.0;
+            for (i = 0; i < docSubTopicSizes[superTopic]; i++) {
+                subTopic = candidateSubTopics[i];
+                docMass += currentSuperSubCounts[subTopic] * subDenominators[subTopic];
+            }
+            superDocMass[superTopic] = docMass;
+            superWeights[superTopic] = superWeight(superTopic);
+        }
+
+        for (int si = 0; si < docLen; si++) {
+
+            type = corpus.getFeature(offset + si);
+            count = corpus.getCount(offset + si);
+            packed = assignments.get(offset + si);
+            superTopic = assignments.superTopic(packed);
+            subTopic = assignments.subTopic(packed);
+
+            // Remove this token from all counts
+            addDocumentCount(superTopic, subTopic, -count);
+            addTypeCount(type, subTopic, -count);
+            tokensPerSuperTopic[superTopic] -= count;
+            tokensPerSubTopic[subTopic] -= count;
+            tokensPerSuperSubTopic[superTopic][subTopic] -= count;
+
+            superDocMass[superTopic] -= count * subDenominators[subTopic];
+            updateSubDenominator(subTopic);
+            superWeights[superTopic] = superWeight(superTopic);
+
+            if (count > 1) {
+                // A run of tokens sharing one assignment
+                int choice = sampleRun(type, count, r);
+                superTopic = choice / numSubTopics;
+                subTopic = choice % numSubTopics;
+            }
+            else {
+                // The smoothing and document buckets
+
+                smoothingMass = 0.0;
+                docMass = 0.0;
+                for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                    smoothingMass += superWeights[superTopic] * superSmoothingMass[superTopic];
+                    docMass += superWeights[superTopic] * superDocMass[superTopic];
+                }
+                smoothingMass *= beta;
+                docMass *= beta;
+
+                // The type bucket, only over sub-topics this word type is assigned to
+
+                nonZeroSubTopics = scoreTypeBucket(type);
+                typeMass = 0.0;
+                for (i = 0; i < nonZeroSubTopics; i++) {
+                    typeMass += typeScores[i];
+                }
+
+                assert sharedCounts ||
+                        Math.abs(smoothingMass + docMass + typeMass - denseTotalWeight(type)) <=
+                        1e-8 * denseTotalWeight(type) :
+                        "sparse PAM weights " + (smoothingMass + docMass + typeMass) +
+                        " differ from dense weights " + denseTotalWeight(type);
+
+                sample = r.nextUniform() * (smoothingMass + docMass + typeMass);
+
+                if (sample < typeMass) {
+                    i = 0;
+                    while (i < nonZeroSubTopics - 1 && sample > typeScores[i]) {
+                        sample -= typeScores[i];
+                        i++;
+                    }
+                    subTopic = typeSubTopics[i];
+
+                    // Rescale what is left of the sample to choose the super-topic
+                    sample /= typeCounts[i] * subDenominators[subTopic];
+
+                    superTopic = 0;
+                    while (superTopic < numSuperTopics - 1) {
+                        sample -= superWeights[superTopic] *
+                                (superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+                        if (sample <= 0.0) { break; }
+                        superTopic++;
+                    }
+                }
+                else {
+                    sample -= typeMass;
+
+                    if (sample < docMass) {
+                        sample /= beta;
+
+                        superTopic = 0;
+                        while (superTopic < numSuperTopics - 1 &&
+                                sample > superWeights[superTopic] * superDocMass[superTopic]) {
+                            sample -= superWeights[superTopic] * superDocMass[superTopic];
+                            superTopic++;
+                        }
+                        sample /= superWeights[superTopic];
+
+                        currentSuperSubCounts = superSubCounts[superTopic];
+                        candidateSubTopics = docSubTopics[superTopic];
+                        subTopic = -1;
+                        for (i = 0; i < docSubTopicSizes[superTopic]; i++) {
+                            subTopic = candidateSubTopics[i];
+                            sample -= currentSuperSubCounts[subTopic] * subDenominators[subTopic];
+                            if (sample <= 0.0) { break; }
+                        }
+                        if (subTopic == -1) {
+                            // The document bucket for this super-topic was only
+                            //  rounding error; fall back to the smoothing prior.
+                            subTopic = sampleSmoothingSubTopic(superTopic, r.nextUniform() * superSmoothingMass[superTopic]);
+                        }
+                    }
+                    else {
+                        sample -= docMass;
+                        sample /= beta;
+
+                        superTopic = 0;
+                        while (superTopic < numSuperTopics - 1 &&
+                                sample > superWeights[superTopic] * superSmoothingMass[superTopic]) {
+                            sample -= superWeights[superTopic] * superSmoothingMass[superTopic];
+                            superTopic++;
+                        }
+                        subTopic = sampleSmoothingSubTopic(superTopic, sample / superWeights[superTopic]);
+                    }
+                }
+            }
+
+            // Save the choice into the Gibbs state
+
+            if (assignments.subTopic(packed) != subTopic) {
+                changedTypes[type] = true;
+            }
+            assignments.set(offset + si, superTopic, subTopic);
+
+            // Put the new super/sub topics into the counts
+
+            addDocumentCount(superTopic, subTopic, count);
+            addTypeCount(type, subTopic, count);
+            addNonZeroSubTopic(type, subTopic);
+            tokensPerSuperTopic[superTopic] += count;
+            tokensPerSubTopic[subTopic] += count;
+            tokensPerSuperSubTopic[superTopic][subTopic] += count;
+
+            superDocMass[superTopic] += count * subDenominators[subTopic];
+            updateSubDenominator(subTopic);
+            superWeights[superTopic] = superWeight(superTopic);
+        }
+
+        if (shouldSaveState) {
+            updateHistograms();
+        }
+    }
+
+    /**
+     *  Sample the super- and sub-topic of a run of <code>count</code> tokens of
+     *   one type that share one assignment, once the run has been removed from
+     *   all counts. The probability that all of them take the pair (s, k) is
+     *   the product of rising factorials
+     *   (n_s + alpha_s)^(c) / (n_s + sum_k alpha_sk)^(c) * (n_sk + alpha_sk)^(c) *
+     *   (n_wk + beta)^(c) / (n_k + vBeta)^(c), not the single-token weight, so
+     *   every pair is scored whichever sampler is used. The super-only and
+     *   sub-only factors take O(numSuperTopics + numSubTopics) rising
+     *   factorials, mostly from tables, and the pair factor is cached for
+     *   n_sk = 0 (see runPriorWeights) and only looked up for the document's
+     *   non-zero n_sk, so putting the pairs together is a product per pair.
+     *  @return superTopic * numSubTopics + subTopic
+     */
+    private int sampleRun(int type, int count, Randoms r) {
+        // The factors in log space, since the products overflow for long runs
+        double maxSuperWeight = Double.NEGATIVE_INFINITY;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            LogGammaTable alphaTable = documentLikelihood.alphaTables[superTopic];
+            LogGammaTable subAlphaSumTable = documentLikelihood.subAlphaSumTables[superTopic];
+            int superCount = superCounts[superTopic];
+            runSuperWeights[superTopic] =
+                    alphaTable.logGamma(superCount + count) - alphaTable.logGamma(superCount) -
+                    subAlphaSumTable.logGamma(superCount + count) + subAlphaSumTable.logGamma(superCount);
+            maxSuperWeight = Math.max(maxSuperWeight, runSuperWeights[superTopic]);
+        }
+
+        int slot = runPriorSlot(count);
+        double[] priorWeights = runPriorWeights[slot];
+        double[] subDenominators = runSubDenominators[slot];
+        int[] subDenominatorCounts = runSubDenominatorCounts[slot];
+
+        int[] currentTypeSubTopicCounts = typeRow(type);
+        double betaWeight = LogGammaTable.logRisingFactorial(beta, count);
+        double maxSubWeight = Double.NEGATIVE_INFINITY;
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            if (subDenominatorCounts[subTopic] != tokensPerSubTopic[subTopic]) {
+                subDenominators[subTopic] = LogGammaTable.logRisingFactorial(tokensPerSubTopic[subTopic] + vBeta, count);
+                subDenominatorCounts[subTopic] = tokensPerSubTopic[subTopic];
+            }
+            runSubWeights[subTopic] = (currentTypeSubTopicCounts[subTopic] == 0 ? betaWeight :
+                    LogGammaTable.logRisingFactorial(currentTypeSubTopicCounts[subTopic] + beta, count)) -
+                    subDenominators[subTopic];
+            maxSubWeight = Math.max(maxSubWeight, runSubWeights[subTopic]);
+        }
+
+        double maxPairWeight = runPriorMax[slot];
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            int[] subTopics = docSubTopics[superTopic];
+            LogGammaTable[] subAlphaTables = documentLikelihood.subAlphaTables[superTopic];
+            for (int i = 0; i < docSubTopicSizes[superTopic]; i++) {
+                int superSubCount = superSubCounts[superTopic][subTopics[i]];
+                LogGammaTable subAlphaTable = subAlphaTables[subTopics[i]];
+                double weight = subAlphaTable.logGamma(superSubCount + count) - subAlphaTable.logGamma(superSubCount);
+                runPairLogWeights[superTopic][i] = weight;
+                maxPairWeight = Math.max(maxPairWeight, weight);
+            }
+        }
+
+        // Scale each factor by its maximum, so no weight is more than one.
+        //  superSubWeights is only scratch space for the dense sampler.
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            runSubWeights[subTopic] = Math.exp(runSubWeights[subTopic] - maxSubWeight);
+        }
+        double priorScale = Math.exp(runPriorMax[slot] - maxPairWeight);
+        double totalWeight = 0.0;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            double superWeight = Math.exp(runSuperWeights[superTopic] - maxSuperWeight);
+            double[] currentSuperSubWeights = superSubWeights[superTopic];
+            double scale = superWeight * priorScale;
+            int base = superTopic * numSubTopics;
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                currentSuperSubWeights[subTopic] = scale * runSubWeights[subTopic] * priorWeights[base + subTopic];
+            }
+
+            int[] subTopics = docSubTopics[superTopic];
+            for (int i = 0; i < docSubTopicSizes[superTopic]; i++) {
+                currentSuperSubWeights[subTopics[i]] = superWeight * runSubWeights[subTopics[i]] *
+                        Math.exp(runPairLogWeights[superTopic][i] - maxPairWeight);
+            }
+
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                totalWeight += currentSuperSubWeights[subTopic];
+            }
+            cumulativeSuperWeights[superTopic] = totalWeight;
+        }
+
+        if (! (totalWeight > 0.0) || Double.isInfinite(totalWeight)) {
+            // The maxima of the factors are so far from that of their product
+            //  that every weight underflowed
+            return sampleRunExact(type, count, r);
+        }
+
+        assert sharedCounts ||
+                Math.abs(Math.log(totalWeight) + maxSuperWeight + maxSubWeight + maxPairWeight -
+                        exactRunLogWeight(type, count)) <= 1e-8 * Math.max(1.0, Math.abs(exactRunLogWeight(type, count))) :
+                "run weights " + (Math.log(totalWeight) + maxSuperWeight + maxSubWeight + maxPairWeight) +
+                " differ from exact weights " + exactRunLogWeight(type, count);
+
+        double sample = r.nextUniform() * totalWeight;
+        int superTopic = 0;
+        while (superTopic < numSuperTopics - 1 && sample > cumulativeSuperWeights[superTopic]) {
+            superTopic++;
+        }
+        if (superTopic > 0) {
+            sample -= cumulativeSuperWeights[superTopic - 1];
+        }
+        double[] currentSuperSubWeights = superSubWeights[superTopic];
+        for (int subTopic = 0; subTopic < numSubTopics - 1; subTopic++) {
+            sample -= currentSuperSubWeights[subTopic];
+            if (sample <= 0.0) {
+                return superTopic * numSubTopics + subTopic;
+            }
+        }
+        return superTopic * numSubTopics + numSubTopics - 1;
+    }
+
+    /** Fill the cached terms for runs of <code>count</code> tokens if needed and return their slot. */
+    private int runPriorSlot(int count) {
+        int slot = count < RUN_PRIOR_CACHE_SIZE ? count : 0;
+        double[] weights = runPriorWeights[slot];
+        if (slot != 0 && weights != null && runPriorGenerations[slot] == runPriorGeneration) {
+            return slot;
+        }
+
+        if (weights == null) {
+            weights = new double[numSuperTopics * numSubTopics];
+            runPriorWeights[slot] = weights;
+            runSubDenominators[slot] = new double[numSubTopics];
+            runSubDenominatorCounts[slot] = new int[numSubTopics];
+        }
+        // vBeta may have changed too
+        Arrays.fill(runSubDenominatorCounts[slot], -1);
+        double maxWeight = Double.NEGATIVE_INFINITY;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            LogGammaTable[] subAlphaTables = documentLikelihood.subAlphaTables[superTopic];
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                double weight = subAlphaTables[subTopic].logGamma(count) - subAlphaTables[subTopic].logGamma(0);
+                weights[superTopic * numSubTopics + subTopic] = weight;
+                maxWeight = Math.max(maxWeight, weight);
+            }
+        }
+        for (int pair = 0; pair < weights.length; pair++) {
+            weights[pair] = Math.exp(weights[pair] - maxWeight);
+        }
+        runPriorMax[slot] = maxWeight;
+        runPriorGenerations[slot] = runPriorGeneration;
+        return slot;
+    }
+
+    /** The log weight of a run taking the pair (s, k), computed from scratch. */
+    private double runLogWeight(int type, int count, int superTopic, int subTopic) {
+        return LogGammaTable.logRisingFactorial(superCounts[superTopic] + alpha[superTopic], count) -
+                LogGammaTable.logRisingFactorial(superCounts[superTopic] + subAlphaSums[superTopic], count) +
+                LogGammaTable.logRisingFactorial(superSubCounts[superTopic][subTopic] +
+                        subAlphas[superTopic][subTopic], count) +
+                LogGammaTable.logRisingFactorial(typeSubTopicCounts.get(type, subTopic) + beta, count) -
+                LogGammaTable.logRisingFactorial(tokensPerSubTopic[subTopic] + vBeta, count);
+    }
+
+    /** The log of the sum of all pairs' run weights, for checking {@link #sampleRun}. */
+    private double exactRunLogWeight(int type, int count) {
+        double maxWeight = Double.NEGATIVE_INFINITY;
+        double total = 0.0;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                double weight = runLogWeight(type, count, superTopic, subTopic);
+                if (weight > maxWeight) {
+                    total = total * Math.exp(maxWeight - weight) + 1.0;
+                    maxWeight = weight;
+                }
+                else {
+                    total += Math.exp(weight - maxWeight);
+                }
+            }
+        }
+        return maxWeight + Math.log(total);
+    }
+
+    /** {@link #sampleRun} with every pair scored in log space from scratch. */
+    private int sampleRunExact(int type, int count, Randoms r) {
+        double maxWeight = Double.NEGATIVE_INFINITY;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                double weight = runLogWeight(type, count, superTopic, subTopic);
+                superSubWeights[superTopic][subTopic] = weight;
+                maxWeight = Math.max(maxWeight, weight);
+            }
+        }
+
+        double totalWeight = 0.0;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                superSubWeights[superTopic][subTopic] = Math.exp(superSubWeights[superTopic][subTopic] - maxWeight);
+                totalWeight += superSubWeights[superTopic][subTopic];
+            }
+        }
+
+        double sample = r.nextUniform() * totalWeight;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                sample -= superSubWeights[superTopic][subTopic];
+                if (sample <= 0.0) {
+                    return superTopic * numSubTopics + subTopic;
+                }
+            }
+        }
+        // Only reached through rounding error
+        return numSuperTopics * numSubTopics - 1;
+    }
+
+    /** sum_s superWeight[s] * (n_sk + alpha_sk) for the current document. */
+    private double subTopicSuperMass(int subTopic) {
+        double mass = 0.0;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            mass += superWeights[superTopic] *
+                    (superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+        }
+        return mass;
+    }
+
+    /** Choose a sub-topic with probability proportional to alpha_sk / (n_k + vBeta). */
+    private int sampleSmoothingSubTopic(int superTopic, double sample) {
+        double[] currentSubAlpha = subAlphas[superTopic];
+        int subTopic = 0;
+        sample -= currentSubAlpha[subTopic] * subDenominators[subTopic];
+        while (sample > 0.0 && subTopic < numSubTopics - 1) {
+            subTopic++;
+            sample -= currentSubAlpha[subTopic] * subDenominators[subTopic];
+        }
+        return subTopic;
+    }
+
+    private void initializeAliasTables() {
+        if (sharedAliasTables == null) {
+            typeAliasTables = new AliasTable[typeSubTopicCounts.getNumRows()];
+            typeAliasGenerations = new int[typeSubTopicCounts.getNumRows()];
+        }
+        smoothingAliasTable = new AliasTable(numSubTopics);
+        rebuildAliasTables();
+    }
+
+    /**
+     *  Mark every type's table as stale and rebuild the shared smoothing table.
+     *   Type tables are rebuilt the next time the type is sampled.
+     */
+    private void rebuildAliasTables() {
+        aliasGeneration++;
+        docsSinceAliasRebuild = 0;
+
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            typeScores[subTopic] = beta / (tokensPerSubTopic[subTopic] + vBeta);
+        }
+        smoothingAliasTable.build(typeScores, numSubTopics);
+    }
+
+    private AliasTable getTypeAliasTable(int type) {
+        if (sharedAliasTables != null) {
+            return getSharedTypeAliasTable(type);
+        }
+
+        AliasTable table = typeAliasTables[type];
+        if (table != null && typeAliasGenerations[type] == aliasGeneration) {
+            return table;
+        }
+
+        int nonZeroSubTopics = fillTypeProposal(type);
+        if (table == null) {
+            table = new AliasTable(nonZeroSubTopics);
+            typeAliasTables[type] = table;
+        }
+        table.build(typeSubTopics, typeScores, nonZeroSubTopics);
+        typeAliasGenerations[type] = aliasGeneration;
+        return table;
+    }
+
+    /**
+     *  Other workers may be reading a shared table, so a stale one is
+     *   replaced by a new table rather than rebuilt in place.
+     */
+    private AliasTable getSharedTypeAliasTable(int type) {
+        AliasTable table = sharedAliasTables.get(type, aliasGeneration);
+        if (table != null) {
+            return table;
+        }
+
+        int nonZeroSubTopics = fillTypeProposal(type);
+        table = new AliasTable(nonZeroSubTopics);
+        table.build(typeSubTopics, typeScores, nonZeroSubTopics);
+        sharedAliasTables.set(type, table, aliasGeneration);
+        return table;
+    }
+
+    /**
+     *  Fill <code>typeSubTopics</code> and <code>typeScores</code> with the
+     *   proposal weights of the type's non-zero sub-topics.
+     *
+     *  @return The number of non-zero sub-topics
+     */
+    private int fillTypeProposal(int type) {
+        int[] currentTypeSubTopicCounts = typeRow(type);
+        int nonZeroSubTopics = 0;
+        for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+            if (currentTypeSubTopicCounts[subTopic] > 0) {
+                typeSubTopics[nonZeroSubTopics] = subTopic;
+                typeScores[nonZeroSubTopics] = currentTypeSubTopicCounts[subTopic] /
+                        (tokensPerSubTopic[subTopic] + vBeta);
+                nonZeroSubTopics++;
+            }
+        }
+        return nonZeroSubTopics;
+    }
+
+    /**
+     *  The marginal weight of a sub-topic for the current token, summed over
+     *   super-topics, divided by the (stale) proposal weight of the sub-topic.
+     *   Only ratios of this value matter.
+     */
+    private double aliasAcceptanceWeight(int type, int subTopic, AliasTable typeTable) {
+        double proposal = typeTable.getWeight(subTopic) + smoothingAliasTable.getWeight(subTopic);
+        return ((double) typeSubTopicCounts.get(type, subTopic) + beta) /
+                ((double) tokensPerSubTopic[subTopic] + vBeta) *
+                subTopicSuperMass(subTopic) / proposal;
+    }
+
+    /**
+     *  Metropolis-Hastings over sub-topics with alias table proposals, followed
+     *   by an exact draw of the super-topic given the sub-topic. The cost per
+     *   token is O(numSuperTopics * mhSteps), independent of numSubTopics,
+     *   apart from the amortized cost of rebuilding the tables.
+     */
+    void sampleTopicsForOneDocAlias (int doc, Randoms r) {
+
+        int type, subTopic, superTopic, count, packed, proposedSubTopic;
+        double currentWeight, proposedWeight, typeMass, sample;
+        AliasTable typeTable;
+
+        int offset = corpus.getOffset(doc);
+        int docLen = corpus.getLength(doc);
+
+        populateDocumentCounts(offset, docLen);
+
+        for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            superWeights[superTopic] = superWeight(superTopic);
+        }
+
+        for (int si = 0; si < docLen; si++) {
+
+            type = corpus.getFeature(offset + si);
+            count = corpus.getCount(offset + si);
+            packed = assignments.get(offset + si);
+            superTopic = assignments.superTopic(packed);
+            subTopic = assignments.subTopic(packed);
+
+            // Remove this token from all counts
+            addDocumentCount(superTopic, subTopic, -count);
+            addTypeCount(type, subTopic, -count);
+            tokensPerSuperTopic[superTopic] -= count;
+            tokensPerSubTopic[subTopic] -= count;
+            tokensPerSuperSubTopic[superTopic][subTopic] -= count;
+
+            superWeights[superTopic] = superWeight(superTopic);
+
+            if (count > 1) {
+                // A run of tokens sharing one assignment
+                int choice = sampleRun(type, count, r);
+                superTopic = choice / numSubTopics;
+                subTopic = choice % numSubTopics;
+            }
+            else {
+                typeTable = getTypeAliasTable(type);
+                typeMass = typeTable.getMass();
+
+                // Independence chain over sub-topics, starting from the current one
+                currentWeight = aliasAcceptanceWeight(type, subTopic, typeTable);
+
+                for (int step = 0; step < mhSteps; step++) {
+                    if (r.nextUniform() * (typeMass + smoothingAliasTable.getMass()) < typeMass) {
+                        proposedSubTopic = typeTable.sample(r);
+                    }
+                    else {
+                        proposedSubTopic = smoothingAliasTable.sample(r);
+                    }
+
+                    if (proposedSubTopic == subTopic) { continue; }
+
+                    proposedWeight = aliasAcceptanceWeight(type, proposedSubTopic, typeTable);
+                    if (proposedWeight >= currentWeight ||
+                            r.nextUniform() * currentWeight < proposedWeight) {
+                        subTopic = proposedSubTopic;
+                        currentWeight = proposedWeight;
+                    }
+                }
+
+                // Now draw the super-topic given the sub-topic
+
+                sample = r.nextUniform() * subTopicSuperMass(subTopic);
+                superTopic = 0;
+                while (superTopic < numSuperTopics - 1) {
+                    sample -= superWeights[superTopic] *
+                            (superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+                    if (sample <= 0.0) { break; }
+                    superTopic++;
+                }
+            }
+
+            // Save the choice into the Gibbs state
+
+            if (assignments.subTopic(packed) != subTopic) {
+                changedTypes[type] = true;
+            }
+            assignments.set(offset + si, superTopic, subTopic);
+
+            // Put the new super/sub topics into the counts
+
+            addDocumentCount(superTopic, subTopic, count);
+            addTypeCount(type, subTopic, count);
+            tokensPerSuperTopic[superTopic] += count;
+            tokensPerSubTopic[subTopic] += count;
+            tokensPerSuperSubTopic[superTopic][subTopic] += count;
+
+            superWeights[superTopic] = superWeight(superTopic);
+        }
+
+        if (shouldSaveState) {
+            updateHistograms();
+        }
+    }
+
+    /**
+     *  The normalizing constant of the dense conditional, for checking the
+     *   sparse sampler when assertions are enabled. Only with a table of this
+     *   worker's own, since the sparse sampler does not see all of the changes
+     *   other workers make to a shared one.
+     */
+    private double denseTotalWeight(int type) {
+        int[] typeCounts = typeRow(type);
+        double total = 0.0;
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            double superWeight = superWeight(superTopic);
+            for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                total += superWeight *
+                        ((double) typeCounts[subTopic] + beta) /
+                        ((double) tokensPerSubTopic[subTopic] + vBeta) *
+                        ((double) superSubCounts[superTopic][subTopic] + subAlphas[superTopic][subTopic]);
+            }
+        }
+        return total;
+    }
+
+    void sampleTopicsForOneDoc (int doc, Randoms r) {
+
+        int[] currentTypeSubTopicCounts;
+        int[] currentSuperSubCounts;
+        double[] currentSuperSubWeights;
+        double[] currentSubAlpha;
+
+        int type, subTopic, superTopic, count, packed;
+        double currentSuperWeight, cumulativeWeight, sample;
+
+        int offset = corpus.getOffset(doc);
+        int docLen = corpus.getLength(doc);
+
+//		populate topic counts
+        populateDocumentCounts(offset, docLen);
+
+//		Iterate over the positions (words) in the document.
+//		For run-length sequences each position is a run of identical
+//		tokens, which is removed and reassigned as a block.
+
+        for (int si = 0; si < docLen; si++) {
+
+            type = corpus.getFeature(offset + si);
+            count = corpus.getCount(offset + si);
+            packed = assignments.get(offset + si);
+            superTopic = assignments.superTopic(packed);
+            subTopic = assignments.subTopic(packed);
+
+            // Remove this token from all counts
+            addDocumentCount(superTopic, subTopic, -count);
+            addTypeCount(type, subTopic, -count);
+            tokensPerSuperTopic[superTopic] -= count;
+            tokensPerSubTopic[subTopic] -= count;
+            tokensPerSuperSubTopic[superTopic][subTopic] -= count;
+
+            if (count > 1) {
+                // A run of tokens sharing one assignment
+                int choice = sampleRun(type, count, r);
+                superTopic = choice / numSubTopics;
+                subTopic = choice % numSubTopics;
+            }
+            else {
+                // Build a distribution over super-sub topic pairs
+                //   for this token
+
+                // Clear the data structures
+                for (int t = 0; t < numSuperTopics; t++) {
+                    Arrays.fill(superSubWeights[t], 0.0);
+                }
+                Arrays.fill(superWeights, 0.0);
+                Arrays.fill(subWeights, 0.0);
+                Arrays.fill(cumulativeSuperWeights, 0.0);
+
+                // Avoid two layer (ie [][]) array accesses
+                currentTypeSubTopicCounts = typeRow(type);
+
+                // The conditional probability of each super-sub pair is proportional
+                //  to an expression with three parts, one that depends only on the
+                //  super-topic, one that depends only on the sub-topic and the word type,
+                //  and one that depends on the super-sub pair.
+
+                // Calculate each of the super-only factors first
+
+                for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                    superWeights[superTopic] = ((double) superCounts[superTopic] + alpha[superTopic]) /
+                            ((double) superCounts[superTopic] + subAlphaSums[superTopic]);
+                }
+
+                // Next calculate the sub-only factors
+
+                for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                    subWeights[subTopic] = ((double) currentTypeSubTopicCounts[subTopic] + beta) /
+                            ((double) tokensPerSubTopic[subTopic] + vBeta);
+                }
+
+                // Finally, put them together
+
+                cumulativeWeight = 0.0;
+
+                for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                    currentSuperSubWeights = superSubWeights[superTopic];
+                    currentSuperSubCounts = superSubCounts[superTopic];
+                    currentSubAlpha = subAlphas[superTopic];
+                    currentSuperWeight = superWeights[superTopic];
+
+                    for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                        currentSuperSubWeights[subTopic] =
+                                currentSuperWeight *
+                                        subWeights[subTopic] *
+                                        ((double) currentSuperSubCounts[subTopic] + currentSubAlpha[subTopic]);
+                        cumulativeWeight += currentSuperSubWeights[subTopic];
+                    }
+
+                    // weight of a super topic is the sum of weights of its sub topics
+                    cumulativeSuperWeights[superTopic] = cumulativeWeight;
+                }
+
+                // Sample a topic assignment from this distribution
+                sample = r.nextUniform() * cumulativeWeight;
+
+                // Go over the row sums to find the super-topic...
+                superTopic = 0;
+                while (sample > cumulativeSuperWeights[superTopic]) {
+                    superTopic++;
+                }
+
+                // Now read across to find the sub-topic
+                currentSuperSubWeights = superSubWeights[superTopic];
+                cumulativeWeight = cumulativeSuperWeights[superTopic] -
+                        currentSuperSubWeights[0];
+
+                // Go over each sub-topic until the weight is LESS than
+                //  the sample. Note that we're subtracting weights
+                //  in the same order we added them...
+                subTopic = 0;
+                while (sample < cumulativeWeight) {
+                    subTopic++;
+                    cumulativeWeight -= currentSuperSubWeights[subTopic];
+                }
+            }
+
+            // Save the choice into the Gibbs state
+
+            if (assignments.subTopic(packed) != subTopic) {
+                changedTypes[type] = true;
+            }
+            assignments.set(offset + si, superTopic, subTopic);
+
+            // Put the new super/sub topics into the counts
+
+            addDocumentCount(superTopic, subTopic, count);
+            addTypeCount(type, subTopic, count);
+            tokensPerSuperTopic[superTopic] += count;
+            tokensPerSubTopic[subTopic] += count;
+            tokensPerSuperSubTopic[superTopic][subTopic] += count;
+        }
+
+        if (shouldSaveState) {
+            updateHistograms();
+        }
+    }
+
+    /**
+     *  Add the current document's topic counts to the histograms
+     *   for dirichlet estimation. The histograms are shared between
+     *   workers, so updates are serialized.
+     */
+    private void updateHistograms() {
+        int[] currentSuperSubCounts;
+        CountHistogram[] currentHistograms;
+
+        synchronized (subTopicHistograms) {
+            for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+
+                superTopicHistograms[superTopic].add(superCounts[superTopic]);
+
+                currentSuperSubCounts = superSubCounts[superTopic];
+                currentHistograms = subTopicHistograms[superTopic];
+
+                for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                    currentHistograms[subTopic].add(currentSuperSubCounts[subTopic]);
+                }
+            }
+        }
+    }
+
+    /**
+     *  The type tables of the alias sampler for workers that share their
+     *   counts: one table per type rather than one per type and worker. A
+     *   table is not changed once set. It is stamped with the alias generation
+     *   of the worker that built it, and a worker in a later generation
+     *   replaces it. The tables only propose sub-topics, so one built from
+     *   another worker's view of the counts is as good as any stale table.
+     */
+    static class SharedAliasTables {
+        final AtomicReferenceArray<AliasTable> tables;
+        final AtomicIntegerArray generations;
+
+        SharedAliasTables(int numTypes) {
+            tables = new AtomicReferenceArray<>(numTypes);
+            generations = new AtomicIntegerArray(numTypes);
+        }
+
+        /** The type's table, or null if it is missing or older than <code>generation</code>. */
+        AliasTable get(int type, int generation) {
+            // The table is set before its generation, so there is one for any
+            //  generation read. Workers racing to replace a table may leave it
+            //  with a later generation than it was built in, which only makes
+            //  the proposal staler.
+            if (generations.get(type) < generation) {
+                return null;
+            }
+            return tables.get(type);
+        }
+
+        void set(int type, AliasTable table, int generation) {
+            tables.set(type, table);
+            generations.set(type, generation);
+        }
+    }
+}
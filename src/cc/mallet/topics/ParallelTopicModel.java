@@ -11,10 +11,12 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Formatter;
 import java.util.Locale;
 
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 import java.util.stream.Stream;
 import java.util.zip.*;
@@ -23,6 +25,9 @@ import java.io.*;
 import java.text.NumberFormat;
 
 import cc.mallet.types.*;
+import cc.mallet.util.CheckpointInput;
+import cc.mallet.util.CheckpointOutput;
+import cc.mallet.util.FastRandoms;
 import cc.mallet.util.Randoms;
 import cc.mallet.util.MalletLogger;
 
@@ -64,7 +69,9 @@ public class ParallelTopicModel implements Serializable {
 
 	public static final double DEFAULT_BETA = 0.01;
 	
-	public int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	// Each row holds the non-zero counts of a type packed with their topics,
+	//  in descending order, followed by zeros (see buildInitialTypeTopicCounts)
+	public CountTable typeTopicCounts; // indexed by <feature index, position>
 	public int[] tokensPerTopic; // indexed by <topic index>
 
 	// for dirichlet estimation
@@ -91,6 +98,7 @@ public class ParallelTopicModel implements Serializable {
 	public boolean printLogLikelihood = true;
 
 	int writeFileInterval = 100;
+	OutputFormat outputFormat = OutputFormat.TEXT;
 
 	// The number of times each type appears in the corpus
 	int[] typeTotals;
@@ -99,6 +107,33 @@ public class ParallelTopicModel implements Serializable {
 	
 	int numThreads = 1;
 
+	// With several threads, whether the workers update the global type/topic
+	//  counts under striped locks instead of merging their own copies
+	boolean sharedCounts = false;
+
+	CountTable.Storage countStorage = CountTable.Storage.HEAP;
+
+	// Sampler state is saved here every checkpointInterval iterations
+	File checkpointFile = null;
+	int checkpointInterval = 0;
+	boolean resume = false;
+	static final byte[] CHECKPOINT_MAGIC = { 'L', 'D', 'A', 'C' };
+	static final int CHECKPOINT_VERSION = 2;
+
+	// Stop early once the log-likelihood per token, computed every
+	//  likelihoodInterval iterations after the burn-in period, has converged
+	//  (see ConvergenceMonitor). A tolerance of 0 always runs all iterations.
+	double convergenceTolerance = 0.0;
+	int convergenceWindow = 10;
+	int likelihoodInterval = 10;
+
+	// Receive the SamplerMetrics of every iteration, if any
+	transient List<MetricsSink> metricsSinks = new ArrayList<MetricsSink>();
+
+	// logGamma(parameter + count) for the likelihood, rebuilt when a parameter changes
+	transient LogGammaTable[] alphaTables;
+	transient LogGammaTable alphaSumTable, betaTable;
+
 	// output files
 	File thetaOutput;
 	File phiOutput;
@@ -163,7 +198,7 @@ public class ParallelTopicModel implements Serializable {
 
 	public ArrayList<TopicAssignment> getData() { return data; }
 	
-	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+	public CountTable getTypeTopicCounts() { return typeTopicCounts; }
 	public int[] getTokensPerTopic() { return tokensPerTopic; }
 
 	public void setNumIterations (int numIterations) {
@@ -194,14 +229,85 @@ public class ParallelTopicModel implements Serializable {
 		}
 	}
 
+	/**
+	 * Write theta and phi every <code>writeFileInterval</code> iterations.
+	 *  The final state is always written; 0 writes only the final state.
+	 */
 	public void setWriteFileInterval(int writeFileInterval) {
 		this.writeFileInterval = writeFileInterval;
 	}
 
+	public void setOutputFormat(OutputFormat outputFormat) {
+		this.outputFormat = outputFormat;
+	}
+
 	public void setNumThreads(int threads) {
 		this.numThreads = threads;
 	}
 
+	/**
+	 * Store the type/topic counts on the Java heap or in off-heap memory,
+	 *  which keeps very large tables out of the garbage collector's way.
+	 *  Counts that have already been built are moved.
+	 */
+	public void setCountStorage(CountTable.Storage storage) {
+		if (typeTopicCounts != null && storage != countStorage) {
+			CountTable counts = storage.create(numTypes, numTopics);
+			counts.copyFrom(typeTopicCounts);
+			typeTopicCounts = counts;
+		}
+		this.countStorage = storage;
+	}
+
+	/**
+	 * With several threads, let every worker sample against the global
+	 *  type/topic counts, locking the row of a type while it reads and
+	 *  updates it, instead of against its own copy that is merged after
+	 *  each sweep. This saves a copy of the counts per thread and the merge,
+	 *  and the workers see each other's changes during the sweep, at the
+	 *  cost of contention on frequent types. The run is then no longer
+	 *  reproducible from the random seed.
+	 */
+	public void setSharedCounts(boolean sharedCounts) {
+		this.sharedCounts = sharedCounts;
+	}
+
+	/**
+	 * Stop sampling before <code>numIterations</code> once the chain has converged.
+	 *
+	 * @param tolerance Relative change of the mean log-likelihood per token, 0 to never stop early
+	 * @param window Number of log-likelihood values compared by the {@link ConvergenceMonitor}
+	 * @param interval Compute the log-likelihood every this many iterations
+	 */
+	public void setConvergence(double tolerance, int window, int interval) {
+		this.convergenceTolerance = tolerance;
+		this.convergenceWindow = window;
+		this.likelihoodInterval = interval;
+	}
+
+	/**
+	 * Save the sampler state to <code>file</code> every <code>interval</code> iterations.
+	 *
+	 * @param resume If the file exists, {@link #estimate} continues from the saved
+	 *  state instead of the current assignments
+	 */
+	public void setCheckpoint(File file, int interval, boolean resume) {
+		this.checkpointFile = file;
+		this.checkpointInterval = interval;
+		this.resume = resume;
+	}
+
+	/**
+	 * Report the throughput, timings and memory use of every iteration to
+	 *  <code>sink</code>. The sink is closed when {@link #estimate} finishes.
+	 */
+	public void addMetricsSink(MetricsSink sink) {
+		if (metricsSinks == null) {
+			metricsSinks = new ArrayList<MetricsSink>(); // after deserialization
+		}
+		metricsSinks.add(sink);
+	}
+
 	public void addInstances (InstanceList training) {
 
 		alphabet = training.getDataAlphabet();
@@ -240,7 +346,7 @@ public class ParallelTopicModel implements Serializable {
 
 	public void buildInitialTypeTopicCounts () {
 		
-		typeTopicCounts = new int[numTypes][];
+		typeTopicCounts = countStorage.create(numTypes, numTopics);
 		tokensPerTopic = new int[numTopics];
 
 		// Get the total number of occurrences of each word type
@@ -253,19 +359,18 @@ public class ParallelTopicModel implements Serializable {
 			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
 			for (int position = 0; position < tokens.getLength(); position++) {
 				int type = tokens.getIndexAtPosition(position);
-				typeTotals[ type ]++;
+				typeTotals[ type ] += tokens.getCountAtPosition(position);
 			}
 		}
 
 		maxTypeCount = 0;
 
-		// Allocate enough space so that we never have to worry about
-		//  overflows: either the number of topics or the number of times
-		//  the type occurs.
 		for (int type = 0; type < numTypes; type++) {
 			if (typeTotals[type] > maxTypeCount) { maxTypeCount = typeTotals[type]; }
-			typeTopicCounts[type] = new int[ Math.min(numTopics, typeTotals[type]) ];
 		}
+
+		// Every row has room for all topics, so never overflows
+		int[] rowBuffer = new int[numTopics];
 		
 		for (TopicAssignment document : data) {
 
@@ -279,7 +384,10 @@ public class ParallelTopicModel implements Serializable {
 				
 				if (topic == UNASSIGNED_TOPIC) { continue; }
 
-				tokensPerTopic[topic]++;
+				// Run-length sequences hold several tokens per position
+				int count = tokens.getCountAtPosition(position);
+
+				tokensPerTopic[topic] += count;
 				
 				// The format for these arrays is 
 				//  the topic in the rightmost bits
@@ -289,7 +397,7 @@ public class ParallelTopicModel implements Serializable {
 				//  higher counts will be before the lower counts.
 				
 				int type = tokens.getIndexAtPosition(position);
-				int[] currentTypeTopicCounts = typeTopicCounts[ type ];
+				int[] currentTypeTopicCounts = typeTopicCounts.getRow(type, rowBuffer);
 		
 				// Start by assuming that the array is either empty
 				//  or is in sorted (descending) order.
@@ -312,15 +420,15 @@ public class ParallelTopicModel implements Serializable {
 				currentValue = currentTypeTopicCounts[index] >> topicBits;
 				
 				if (currentValue == 0) {
-					// new value is 1, so we don't have to worry about sorting
-					//  (except by topic suffix, which doesn't matter)
+					// this is the first entry for the topic, so we don't have
+					//  to worry about sorting (except by topic suffix, which doesn't matter)
 
 					currentTypeTopicCounts[index] =
-						(1 << topicBits) + topic;
+						(count << topicBits) + topic;
 				}
 				else {
 					currentTypeTopicCounts[index] =
-						((currentValue + 1) << topicBits) + topic;
+						((currentValue + count) << topicBits) + topic;
 					
 					// Now ensure that the array is still sorted by 
 					//  bubbling this value up.
@@ -333,6 +441,8 @@ public class ParallelTopicModel implements Serializable {
 						index--;
 					}
 				}
+
+				typeTopicCounts.setRow(type, currentTypeTopicCounts);
 			}
 		}
 	}
@@ -340,89 +450,198 @@ public class ParallelTopicModel implements Serializable {
 
 	public void sumTypeTopicCounts (WorkerRunnable[] runnables) {
 
+		sumTokensPerTopic(runnables);
+		new TypeTopicMerger(runnables, 0, numTypes, false).run();
+
+	}
+
+	private void sumTokensPerTopic (WorkerRunnable[] runnables) {
+
 		// Clear the topic totals
 		Arrays.fill(tokensPerTopic, 0);
 		
-		// Clear the type/topic counts, only 
-		//  looking at the entries before the first 0 entry.
+		for (int thread = 0; thread < numThreads; thread++) {
+			int[] sourceTotals = runnables[thread].getTokensPerTopic();
+			for (int topic = 0; topic < numTopics; topic++) {
+				tokensPerTopic[topic] += sourceTotals[topic];
+			}
+		}
 
-		for (int type = 0; type < numTypes; type++) {
-			
-			int[] targetCounts = typeTopicCounts[type];
-			
-			int position = 0;
-			while (position < targetCounts.length && 
-				   targetCounts[position] > 0) {
-				targetCounts[position] = 0;
-				position++;
+	}
+
+	/**
+	 *  With shared type/topic counts, only the topic totals are merged. Every
+	 *   runnable started the sweep from the global totals and changed its own
+	 *   copy, so the new total is the old one plus the change made by each.
+	 */
+	private void mergeTokensPerTopic (WorkerRunnable[] runnables) {
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			int sum = tokensPerTopic[topic] * (1 - numThreads);
+			for (int thread = 0; thread < numThreads; thread++) {
+				sum += runnables[thread].getTokensPerTopic()[topic];
 			}
+			tokensPerTopic[topic] = sum;
+		}
 
+		for (int thread = 0; thread < numThreads; thread++) {
+			int[] runnableTotals = runnables[thread].getTokensPerTopic();
+			System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
 		}
 
+	}
+
+	/**
+	 *  Merge the runnables' counts into the global counts, then copy the merged
+	 *   counts back to every runnable. The types are split into ranges that are
+	 *   merged in parallel: no two ranges share an array, so no locking is needed.
+	 */
+	private void mergeAndDistributeCounts (WorkerRunnable[] runnables,
+										   ExecutorService executor,
+										   List<Callable<Object>> mergeTasks) {
+
+		sumTokensPerTopic(runnables);
+		SweepTimer.runAll(executor, mergeTasks);
+
 		for (int thread = 0; thread < numThreads; thread++) {
+			int[] runnableTotals = runnables[thread].getTokensPerTopic();
+			System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+		}
+
+	}
 
-			// Handle the total-tokens-per-topic array
+	private List<Callable<Object>> createMergeTasks (WorkerRunnable[] runnables) {
 
-			int[] sourceTotals = runnables[thread].getTokensPerTopic();
-			for (int topic = 0; topic < numTopics; topic++) {
-				tokensPerTopic[topic] += sourceTotals[topic];
-			}
-			
-			// Now handle the individual type topic counts
-			
-			int[][] sourceTypeTopicCounts = 
-				runnables[thread].getTypeTopicCounts();
-			
-			for (int type = 0; type < numTypes; type++) {
+		if (sharedCounts) {
+			return new ArrayList<Callable<Object>>();
+		}
+
+		// Use several ranges per thread, since the number of
+		//  non-zero topics varies a lot between types.
+		int numRanges = Math.min(numTypes, 4 * numThreads);
+
+		List<Callable<Object>> mergeTasks = new ArrayList<Callable<Object>>(numRanges);
+		for (int range = 0; range < numRanges; range++) {
+			int firstType = (int) ((long) numTypes * range / numRanges);
+			int lastType = (int) ((long) numTypes * (range + 1) / numRanges);
+			mergeTasks.add(Executors.callable(new TypeTopicMerger(runnables, firstType, lastType, true)));
+		}
+		return mergeTasks;
+
+	}
+
+	/**
+	 *  Sums the packed type/topic counts of all runnables for a range of types.
+	 *   Counts are accumulated in a dense array over topics and then packed and
+	 *   sorted once per type, rather than bubbling each entry into place.
+	 */
+	class TypeTopicMerger implements Runnable {
+
+		WorkerRunnable[] runnables;
+		int firstType, lastType;
+		boolean copyBack;
+
+		int[] topicCounts; // indexed by <topic index>
+		int[] nonZeroTopics;
+		int[] sourceBuffer, targetBuffer, runnableBuffer;
+
+		public TypeTopicMerger (WorkerRunnable[] runnables, int firstType, int lastType, boolean copyBack) {
+			this.runnables = runnables;
+			this.firstType = firstType;
+			this.lastType = lastType;
+			this.copyBack = copyBack;
+
+			topicCounts = new int[numTopics];
+			nonZeroTopics = new int[numTopics];
+			sourceBuffer = new int[numTopics];
+			targetBuffer = new int[numTopics];
+			runnableBuffer = new int[numTopics];
+		}
 
-				// Here the source is the individual thread counts,
-				//  and the target is the global counts.
+		public void run () {
 
-				int[] sourceCounts = sourceTypeTopicCounts[type];
-				int[] targetCounts = typeTopicCounts[type];
+			for (int type = firstType; type < lastType; type++) {
 
-				int sourceIndex = 0;
-				while (sourceIndex < sourceCounts.length &&
-					   sourceCounts[sourceIndex] > 0) {
+				int numNonZeroTopics = 0;
+
+				for (int thread = 0; thread < numThreads; thread++) {
 					
-					int topic = sourceCounts[sourceIndex] & topicMask;
-					int count = sourceCounts[sourceIndex] >> topicBits;
+					// Here the source is the individual thread counts,
+					//  and the target is the global counts.
 
-					int targetIndex = 0;
-					int currentTopic = targetCounts[targetIndex] & topicMask;
-					int currentCount;
+					int[] sourceCounts = runnables[thread].getTypeTopicCounts().getRow(type, sourceBuffer);
 					
-					while (targetCounts[targetIndex] > 0 && currentTopic != topic) {
-						targetIndex++;
-						if (targetIndex == targetCounts.length) {
-							logger.info("overflow in merging on type " + type);
+					int sourceIndex = 0;
+					while (sourceIndex < sourceCounts.length &&
+						   sourceCounts[sourceIndex] > 0) {
+						
+						int topic = sourceCounts[sourceIndex] & topicMask;
+						int count = sourceCounts[sourceIndex] >> topicBits;
+
+						if (topicCounts[topic] == 0) {
+							nonZeroTopics[numNonZeroTopics] = topic;
+							numNonZeroTopics++;
 						}
-						currentTopic = targetCounts[targetIndex] & topicMask;
+						topicCounts[topic] += count;
+
+						sourceIndex++;
 					}
-					currentCount = targetCounts[targetIndex] >> topicBits;
-					
-					targetCounts[targetIndex] =
-						((currentCount + count) << topicBits) + topic;
-					
-					// Now ensure that the array is still sorted by 
-					//  bubbling this value up.
-					while (targetIndex > 0 &&
-						   targetCounts[targetIndex] > targetCounts[targetIndex - 1]) {
-						int temp = targetCounts[targetIndex];
-						targetCounts[targetIndex] = targetCounts[targetIndex - 1];
-						targetCounts[targetIndex - 1] = temp;
+				}
+
+				int[] targetCounts = typeTopicCounts.getRow(type, targetBuffer);
+				if (numNonZeroTopics > targetCounts.length) {
+					logger.info("overflow in merging on type " + type);
+				}
+
+				for (int i = 0; i < numNonZeroTopics; i++) {
+					int topic = nonZeroTopics[i];
+					nonZeroTopics[i] = (topicCounts[topic] << topicBits) + topic;
+					topicCounts[topic] = 0;
+				}
+
+				// Sort ascending, then write into the target in descending order
+				Arrays.sort(nonZeroTopics, 0, numNonZeroTopics);
+				for (int i = 0; i < numNonZeroTopics; i++) {
+					targetCounts[i] = nonZeroTopics[numNonZeroTopics - 1 - i];
+				}
+
+				// Clear the old entries, only looking at the entries before the first 0 entry.
+				int position = numNonZeroTopics;
+				while (position < targetCounts.length &&
+					   targetCounts[position] > 0) {
+					targetCounts[position] = 0;
+					position++;
+				}
+				typeTopicCounts.setRow(type, targetCounts);
+
+				if (copyBack) {
+					for (int thread = 0; thread < numThreads; thread++) {
+						CountTable runnableTable = runnables[thread].getTypeTopicCounts();
+						int[] runnableCounts = runnableTable.getRow(type, runnableBuffer);
 						
-						targetIndex--;
+						int index = 0;
+						while (index < targetCounts.length) {
+							
+							if (targetCounts[index] != 0) {
+								runnableCounts[index] = targetCounts[index];
+							}
+							else if (runnableCounts[index] != 0) {
+								runnableCounts[index] = 0;
+							}
+							else {
+								break;
+							}
+							
+							index++;
+						}
+						runnableTable.setRow(type, runnableCounts);
 					}
-					
-					sourceIndex++;
 				}
-				
 			}
+
 		}
 
-	}
-	
+	}	
 
 	/** 
 	 *  Gather statistics on the size of documents 
@@ -437,7 +656,7 @@ public class ParallelTopicModel implements Serializable {
 
 		for (int doc = 0; doc < data.size(); doc++) {
 			FeatureSequence fs = (FeatureSequence) data.get(doc).instance.getData();
-			seqLen = fs.getLength();
+			seqLen = fs.getTotalCount();
 			if (seqLen > maxTokens)
 				maxTokens = seqLen;
 			totalTokens += seqLen;
@@ -533,8 +752,9 @@ public class ParallelTopicModel implements Serializable {
 		//  each number of tokens.
 
 		int index;
+		int[] rowBuffer = new int[numTopics];
 		for (int type = 0; type < numTypes; type++) {
-			int[] counts = typeTopicCounts[type];
+			int[] counts = typeTopicCounts.getRow(type, rowBuffer);
 			index = 0;
 			while (index < counts.length &&
 				   counts[index] > 0) {
@@ -578,22 +798,41 @@ public class ParallelTopicModel implements Serializable {
 
 		long startTime = System.currentTimeMillis();
 
+		int startIteration = 1;
+		List<WorkerCheckpoint> savedWorkers = new ArrayList<WorkerCheckpoint>();
+		if (resume && checkpointFile != null && checkpointFile.exists()) {
+			startIteration = readCheckpoint(checkpointFile, savedWorkers);
+			logger.info("Resuming from " + checkpointFile + " at iteration " + startIteration);
+		}
+
 		WorkerRunnable[] runnables = new WorkerRunnable[numThreads];
 
+		// Each worker samples from its own unsynchronized stream. The streams are
+		//  split from one generator, so a fixed seed gives the same streams.
+		FastRandoms streams = (randomSeed == -1) ? new FastRandoms() : new FastRandoms(randomSeed);
+
 		int docsPerThread = data.size() / numThreads;
 		int offset = 0;
 
 		if (numThreads > 1) {
+
+			// Enough locks that two threads rarely wait for each other
+			//  on different types
+			ReentrantLock[] typeLocks = null;
+			if (sharedCounts) {
+				typeLocks = new ReentrantLock[ Integer.highestOneBit(Math.max(1, Math.min(numTypes, 64 * numThreads))) ];
+				for (int i = 0; i < typeLocks.length; i++) {
+					typeLocks[i] = new ReentrantLock();
+				}
+			}
 		
 			for (int thread = 0; thread < numThreads; thread++) {
 				int[] runnableTotals = new int[numTopics];
 				System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
 				
-				int[][] runnableCounts = new int[numTypes][];
-				for (int type = 0; type < numTypes; type++) {
-					int[] counts = new int[typeTopicCounts[type].length];
-					System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-					runnableCounts[type] = counts;
+				CountTable runnableCounts = typeTopicCounts;
+				if (! sharedCounts) {
+					runnableCounts = typeTopicCounts.copy();
 				}
 				
 				// some docs may be missing at the end due to integer division
@@ -601,21 +840,16 @@ public class ParallelTopicModel implements Serializable {
 					docsPerThread = data.size() - offset;
 				}
 				
-				Randoms random = null;
-				if (randomSeed == -1) {
-					random = new Randoms();
-				}
-				else {
-					random = new Randoms(randomSeed);
-				}
-
 				runnables[thread] = new WorkerRunnable(numTopics,
 													   alpha, alphaSum, beta,
-													   random, data,
+													   streams.split(), data,
 													   runnableCounts, runnableTotals,
 													   offset, docsPerThread);
 				
 				runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
+				if (sharedCounts) {
+					runnables[thread].shareTypeTopicCounts(typeLocks);
+				}
 				
 				offset += docsPerThread;
 			
@@ -626,17 +860,9 @@ public class ParallelTopicModel implements Serializable {
 			// If there is only one thread, copy the typeTopicCounts
 			//  arrays directly, rather than allocating new memory.
 
-			Randoms random = null;
-			if (randomSeed == -1) {
-				random = new Randoms();
-			}
-			else {
-				random = new Randoms(randomSeed);
-			}
-
 			runnables[0] = new WorkerRunnable(numTopics,
 											  alpha, alphaSum, beta,
-											  random, data,
+											  streams.split(), data,
 											  typeTopicCounts, tokensPerTopic,
 											  offset, docsPerThread);
 
@@ -649,12 +875,59 @@ public class ParallelTopicModel implements Serializable {
 			runnables[0].makeOnlyThread();
 		}
 
-		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		// The random streams and the alpha statistics continue where they stopped,
+		//  unless the documents are now split over a different number of workers.
+		if (savedWorkers.size() == numThreads) {
+			for (int thread = 0; thread < numThreads; thread++) {
+				savedWorkers.get(thread).restore(runnables[thread]);
+			}
+		}
+
+		ExecutorService executor = null;
+		if (numThreads > 1) {
+			executor = SweepTimer.newExecutor(numThreads);
+		}
+		List<Callable<Long>> tasks = SweepTimer.timed(runnables);
+		List<Callable<Object>> mergeTasks = createMergeTasks(runnables);
+		SweepTimer timer = new SweepTimer();
+
+		SamplerMetrics metrics = null;
+		if (metricsSinks != null && ! metricsSinks.isEmpty()) {
+			long[] workerTokens = new long[numThreads];
+			for (int thread = 0; thread < numThreads; thread++) {
+				WorkerRunnable runnable = runnables[thread];
+				for (int doc = runnable.startDoc; doc < runnable.startDoc + runnable.numDocs; doc++) {
+					workerTokens[thread] += ((FeatureSequence) data.get(doc).instance.getData()).getTotalCount();
+				}
+			}
+			metrics = new SamplerMetrics("lda-" + numTopics, workerTokens, metricsSinks);
+		}
+
+		ThetaPhiWriter outputWriter = null;
+		if (thetaOutput != null) {
+			String[] typeNames = new String[numTypes];
+			for (int type = 0; type < numTypes; type++) {
+				typeNames[type] = alphabet.lookupObject(type).toString();
+			}
+			outputWriter = new ThetaPhiWriter(thetaOutput, phiOutput, outputFormat, typeNames,
+											  data.size(), numTopics);
+		}
 	
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
+		ConvergenceMonitor monitor = null;
+		if (convergenceTolerance > 0) {
+			monitor = new ConvergenceMonitor(convergenceTolerance, convergenceWindow);
+		}
+		int lastIteration = numIterations;
+		int lastWrittenIteration = -1;
+
+		for (int iteration = startIteration; iteration <= numIterations; iteration++) {
 
 			long iterationStart = System.currentTimeMillis();
+			if (metrics != null) {
+				metrics.startIteration(iteration);
+			}
 
+			long outputStart = System.nanoTime();
 			if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
 				this.printState(new File(stateFilename + '.' + iteration));
 			}
@@ -662,113 +935,70 @@ public class ParallelTopicModel implements Serializable {
 			if (saveModelInterval != 0 && iteration % saveModelInterval == 0) {
 				this.write(new File(modelFilename + '.' + iteration));
 			}
+			if (metrics != null) {
+				metrics.addOutputNanos(System.nanoTime() - outputStart);
+			}
 
-			if (numThreads > 1) {
-			
-				// Submit runnables to thread pool
-				
-				for (int thread = 0; thread < numThreads; thread++) {
-					if (iteration > burninPeriod && optimizeInterval != 0 &&
-						iteration % saveSampleInterval == 0) {
-						runnables[thread].collectAlphaStatistics();
-					}
-					
-					logger.fine("submitting thread " + thread);
-					executor.submit(runnables[thread]);
-					//runnables[thread].run();
-				}
-				
-				// I'm getting some problems that look like 
-				//  a thread hasn't started yet when it is first
-				//  polled, so it appears to be finished. 
-				// This only occurs in very short corpora.
-				try {
-					Thread.sleep(20);
-				} catch (InterruptedException e) {
-					
-				}
-				
-				boolean finished = false;
-				while (! finished) {
-					
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						
-					}
-					
-					finished = true;
-					
-					// Are all the threads done?
-					for (int thread = 0; thread < numThreads; thread++) {
-						//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-						finished = finished && runnables[thread].isFinished;
-					}
-					
+			for (int thread = 0; thread < numThreads; thread++) {
+				if (iteration > burninPeriod && optimizeInterval != 0 &&
+					iteration % saveSampleInterval == 0) {
+					runnables[thread].collectAlphaStatistics();
 				}
-				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-				
-				sumTypeTopicCounts(runnables);
-				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-				
+			}
+
+			boolean printLikelihood = printLogLikelihood && iteration % 10 == 0;
+			boolean checkConvergence = monitor != null && iteration > burninPeriod &&
+				iteration % likelihoodInterval == 0;
+			if (printLikelihood || checkConvergence) {
 				for (int thread = 0; thread < numThreads; thread++) {
-					int[] runnableTotals = runnables[thread].getTokensPerTopic();
-					System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-					
-					int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-					for (int type = 0; type < numTypes; type++) {
-						int[] targetCounts = runnableCounts[type];
-						int[] sourceCounts = typeTopicCounts[type];
-						
-						int index = 0;
-						while (index < sourceCounts.length) {
-							
-							if (sourceCounts[index] != 0) {
-								targetCounts[index] = sourceCounts[index];
-							}
-							else if (targetCounts[index] != 0) {
-								targetCounts[index] = 0;
-							}
-							else {
-								break;
-							}
-							
-							index++;
-						}
-						//System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-					}
+					runnables[thread].collectLogLikelihood();
 				}
 			}
-			else {
-				if (iteration > burninPeriod && optimizeInterval != 0 &&
-					iteration % saveSampleInterval == 0) {
-					runnables[0].collectAlphaStatistics();
-				}
-				runnables[0].run();
+			boolean optimized = false;
+
+			// Blocks until every runnable has finished its share of the documents
+			timer.runSweep(executor, tasks);
+
+			if (numThreads > 1 && sharedCounts) {
+				mergeTokensPerTopic(runnables);
+			}
+			else if (numThreads > 1) {
+				mergeAndDistributeCounts(runnables, executor, mergeTasks);
 			}
+			timer.mergeFinished();
 
 			long elapsedMillis = System.currentTimeMillis() - iterationStart;
 			if (elapsedMillis < 1000) {
-				logger.fine(elapsedMillis + "ms ");
+				logger.fine(elapsedMillis + "ms " + timer.lastIteration());
 			}
 			else {
-				logger.fine((elapsedMillis/1000) + "s ");
+				logger.fine((elapsedMillis/1000) + "s " + timer.lastIteration());
 			}   
 
 			if (iteration > burninPeriod && optimizeInterval != 0 &&
 				iteration % optimizeInterval == 0) {
 
+				long optimizeStart = System.nanoTime();
 				optimizeAlpha(runnables);
 				optimizeBeta(runnables);
+				optimized = true;
+				if (metrics != null) {
+					metrics.addOptimizeNanos(System.nanoTime() - optimizeStart);
+				}
 				
 				logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
 			}
 			
+			// The document terms collected during the sweep used the
+			//  hyperparameters from before the optimization
+			double logLikelihood = Double.NaN;
+			if (printLikelihood || checkConvergence) {
+				logLikelihood = (optimized ? modelLogLikelihood() : sweepLogLikelihood(runnables)) / totalTokens;
+			}
+
 			if (iteration % 10 == 0) {
 				if (printLogLikelihood) {
-					logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+					logger.info ("<" + iteration + "> LL/token: " + formatter.format(logLikelihood));
 				}
 				else {
 					logger.info ("<" + iteration + ">");
@@ -776,24 +1006,48 @@ public class ParallelTopicModel implements Serializable {
 
 			}
 
-			if (iteration % writeFileInterval == 0) {
+			outputStart = System.nanoTime();
+			if (outputWriter != null && writeFileInterval != 0 && iteration % writeFileInterval == 0) {
 
-				// ファイルに記録
-				PrintWriter pw1 = new PrintWriter(this.thetaOutput);
-				for (int i = 0; i < data.size(); i++) {
-					pw1.println(PAM4L.distToString(this.getTheta()[i]));
-				}
-				pw1.close();
+				// ファイルに記録 (書き込みはバックグラウンドで行う)
+				outputWriter.snapshot(data, typeTopicCounts, topicMask, topicBits, alpha, iteration);
+				lastWrittenIteration = iteration;
+			}
 
-				PrintWriter pw2 = new PrintWriter(this.phiOutput);
-				for (int i = 0; i < this.typeTopicCounts.length; i++) {
-					pw2.println(PAM4L.distToString(typeTopicCounts[i]));
+			if (checkpointFile != null && checkpointInterval != 0 && iteration % checkpointInterval == 0) {
+				long checkpointStart = System.currentTimeMillis();
+				writeCheckpoint(checkpointFile, runnables, iteration + 1);
+				logger.fine("[checkpoint " + (System.currentTimeMillis() - checkpointStart) + "ms]");
+			}
+			if (metrics != null) {
+				metrics.addOutputNanos(System.nanoTime() - outputStart);
+				metrics.finishIteration(timer, logLikelihood);
+			}
+
+			if (checkConvergence) {
+				if (monitor.add(logLikelihood)) {
+					logger.info("Converged after " + iteration + " iterations (change " +
+								monitor.getLastChange() + " < " + convergenceTolerance + ")");
+					lastIteration = iteration;
+					break;
 				}
-				pw2.close();
 			}
 		}
 
-		executor.shutdownNow();
+		if (outputWriter != null) {
+			// The final state, also after early stopping, unless it was just written
+			if (lastWrittenIteration != lastIteration) {
+				outputWriter.snapshot(data, typeTopicCounts, topicMask, topicBits, alpha, lastIteration);
+			}
+			outputWriter.close();
+		}
+
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (metrics != null) {
+			metrics.close();
+		}
 	
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
 		long minutes = seconds / 60;	seconds %= 60;
@@ -808,12 +1062,7 @@ public class ParallelTopicModel implements Serializable {
 		timeReport.append(seconds); timeReport.append(" seconds");
 		
 		logger.info(timeReport.toString());
-	}
-
-	private double[][] getTheta() {
-		return java.util.stream.IntStream.rangeClosed(0, this.data.size()-1).mapToObj(
-				(n) -> this.getTopicProbabilities(n)
-		).toArray(double[][]::new);
+		logger.info(timer.summary());
 	}
 
 
@@ -833,9 +1082,10 @@ public class ParallelTopicModel implements Serializable {
 		}
 
 		// Collect counts
+		int[] rowBuffer = new int[numTopics];
 		for (int type = 0; type < numTypes; type++) {
 
-			int[] topicCounts = typeTopicCounts[type];
+			int[] topicCounts = typeTopicCounts.getRow(type, rowBuffer);
 
 			int index = 0;
 			while (index < topicCounts.length &&
@@ -903,19 +1153,19 @@ public class ParallelTopicModel implements Serializable {
 		for (int topic = 0; topic < numTopics; topic++) {
 			for (int type = 0; type < numTypes; type++) {
 
-				int[] topicCounts = typeTopicCounts[type];
-				
 				double weight = beta;
 
+				// Read the entries in place rather than copying the row for every topic
 				int index = 0;
-				while (index < topicCounts.length &&
-					   topicCounts[index] > 0) {
+				int packed;
+				while (index < numTopics &&
+					   (packed = typeTopicCounts.get(type, index)) > 0) {
 
-					int currentTopic = topicCounts[index] & topicMask;
+					int currentTopic = packed & topicMask;
 					
 					
 					if (currentTopic == topic) {
-						weight += topicCounts[index] >> topicBits;
+						weight += packed >> topicBits;
 						break;
 					}
 
@@ -932,7 +1182,8 @@ public class ParallelTopicModel implements Serializable {
 	 */
 	public double[] getTopicProbabilities(int instanceID) {
 		LabelSequence topics = data.get(instanceID).topicSequence;
-		return getTopicProbabilities(topics);
+		FeatureSequence tokens = (FeatureSequence) data.get(instanceID).instance.getData();
+		return getTopicProbabilities(topics, tokens);
 	}
 
 	/** Get the smoothed distribution over topics for a topic sequence, 
@@ -940,12 +1191,19 @@ public class ParallelTopicModel implements Serializable {
 	 * assigned by an inferencer.
 	 */
 	public double[] getTopicProbabilities(LabelSequence topics) {
+		return getTopicProbabilities(topics, topics);
+	}
+
+	/** Get the smoothed distribution over topics for a topic sequence, 
+	 * weighting each position by the number of tokens it holds in <code>tokens</code>.
+	 */
+	private double[] getTopicProbabilities(LabelSequence topics, FeatureSequence tokens) {
 		double[] topicDistribution = new double[numTopics];
 
 		// Loop over the tokens in the document, counting the current topic
 		//  assignments.
 		for (int position = 0; position < topics.getLength(); position++) {
-			topicDistribution[ topics.getIndexAtPosition(position) ]++;
+			topicDistribution[ topics.getIndexAtPosition(position) ] += tokens.getCountAtPosition(position);
 		}
 
 		// Add the smoothing parameters and normalize
@@ -1148,47 +1406,91 @@ public class ParallelTopicModel implements Serializable {
 		// Do the documents first
 
 		int[] topicCounts = new int[numTopics];
-		double[] topicLogGammas = new double[numTopics];
 		int[] docTopics;
 
+		// The counts are integers, so logGamma(parameter + count) comes from
+		//  tables that are kept between calls until the parameter is optimized
+		if (alphaTables == null || alphaTables.length != numTopics) {
+			alphaTables = new LogGammaTable[numTopics];
+		}
 		for (int topic=0; topic < numTopics; topic++) {
-			topicLogGammas[ topic ] = Dirichlet.logGammaStirling( alpha[topic] );
+			alphaTables[topic] = LogGammaTable.forOffset(alphaTables[topic], alpha[topic]);
 		}
+		alphaSumTable = LogGammaTable.forOffset(alphaSumTable, alphaSum);
 	
 		for (int doc=0; doc < data.size(); doc++) {
 			LabelSequence topicSequence =	(LabelSequence) data.get(doc).topicSequence;
+			FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
 
 			docTopics = topicSequence.getFeatures();
 
-			for (int token=0; token < docTopics.length; token++) {
-				topicCounts[ docTopics[token] ]++;
+			for (int token=0; token < topicSequence.getLength(); token++) {
+				topicCounts[ docTopics[token] ] += tokens.getCountAtPosition(token);
 			}
 
 			for (int topic=0; topic < numTopics; topic++) {
 				if (topicCounts[topic] > 0) {
-					logLikelihood += (Dirichlet.logGammaStirling(alpha[topic] + topicCounts[topic]) -
-									  topicLogGammas[ topic ]);
+					logLikelihood += (alphaTables[topic].logGamma(topicCounts[topic]) -
+									  alphaTables[topic].logGamma(0));
 				}
 			}
 
 			// subtract the (count + parameter) sum term
-			logLikelihood -= Dirichlet.logGammaStirling(alphaSum + docTopics.length);
+			logLikelihood -= alphaSumTable.logGamma(tokens.getTotalCount());
 
 			Arrays.fill(topicCounts, 0);
 		}
 
 		// add the parameter sum term
-		logLikelihood += data.size() * Dirichlet.logGammaStirling(alphaSum);
+		logLikelihood += data.size() * alphaSumTable.logGamma(0);
 
 		// And the topics
+		logLikelihood += typeTopicLogLikelihood();
+
+		if (Double.isNaN(logLikelihood)) {
+			logger.info("at the end");
+		}
+		else if (Double.isInfinite(logLikelihood)) {
+			logger.info("Infinite value beta " + beta + " * " + numTypes);
+			return 0;
+		}
+
+		return logLikelihood;
+	}
+
+	/**
+	 *  The log-likelihood at the end of a sweep in which every worker was
+	 *   asked to {@link WorkerRunnable#collectLogLikelihood}. The workers
+	 *   added up the document terms as they finished each document, so only
+	 *   the type-topic terms are left to compute here.
+	 */
+	private double sweepLogLikelihood(WorkerRunnable[] runnables) {
+		double logLikelihood = 0.0;
+		for (WorkerRunnable runnable : runnables) {
+			logLikelihood += runnable.getDocumentLogLikelihood();
+		}
+		logLikelihood += typeTopicLogLikelihood();
+
+		if (Double.isNaN(logLikelihood) || Double.isInfinite(logLikelihood)) {
+			logger.warning("invalid log likelihood " + logLikelihood);
+			return 0;
+		}
+		return logLikelihood;
+	}
+
+	/** The Dirichlet-multinomials over types, one for each topic. */
+	private double typeTopicLogLikelihood() {
+		double logLikelihood = 0.0;
+		int[] topicCounts;
+
+		betaTable = LogGammaTable.forOffset(betaTable, beta);
 
 		// Count the number of type-topic pairs that are not just (logGamma(beta) - logGamma(beta))
 		int nonZeroTypeTopics = 0;
+		int[] rowBuffer = new int[numTopics];
 
 		for (int type=0; type < numTypes; type++) {
-			// reuse this array as a pointer
-
-			topicCounts = typeTopicCounts[type];
+			topicCounts = typeTopicCounts.getRow(type, rowBuffer);
 
 			int index = 0;
 			while (index < topicCounts.length &&
@@ -1197,15 +1499,15 @@ public class ParallelTopicModel implements Serializable {
 				int count = topicCounts[index] >> topicBits;
 				
 				nonZeroTypeTopics++;
-				logLikelihood += Dirichlet.logGammaStirling(beta + count);
+				logLikelihood += betaTable.logGamma(count);
 
 				if (Double.isNaN(logLikelihood)) {
 					logger.warning("NaN in log likelihood calculation");
-					return 0;
+					return logLikelihood;
 				}
 				else if (Double.isInfinite(logLikelihood)) {
 					logger.warning("infinite log likelihood");
-					return 0;
+					return logLikelihood;
 				}
 
 				index++;
@@ -1219,11 +1521,11 @@ public class ParallelTopicModel implements Serializable {
 
 			if (Double.isNaN(logLikelihood)) {
 				logger.info("NaN after topic " + topic + " " + tokensPerTopic[ topic ]);
-				return 0;
+				return logLikelihood;
 			}
 			else if (Double.isInfinite(logLikelihood)) {
 				logger.info("Infinite value after topic " + topic + " " + tokensPerTopic[ topic ]);
-				return 0;
+				return logLikelihood;
 			}
 
 		}
@@ -1234,15 +1536,7 @@ public class ParallelTopicModel implements Serializable {
 
 		// logGamma(beta) for all type/topic pairs with non-zero count
 		logLikelihood -=
-			Dirichlet.logGammaStirling(beta) * nonZeroTypeTopics;
-
-		if (Double.isNaN(logLikelihood)) {
-			logger.info("at the end");
-		}
-		else if (Double.isInfinite(logLikelihood)) {
-			logger.info("Infinite value beta " + beta + " * " + numTypes);
-			return 0;
-		}
+			betaTable.logGamma(0) * nonZeroTypeTopics;
 
 		return logLikelihood;
 	}
@@ -1250,11 +1544,29 @@ public class ParallelTopicModel implements Serializable {
 
 	/** Return a tool for estimating topic distributions for new documents */
 	public TopicInferencer getInferencer() {
-		return new TopicInferencer(typeTopicCounts, tokensPerTopic,
+		return new TopicInferencer(packedRows(), tokensPerTopic,
 								   data.get(0).instance.getDataAlphabet(),
 								   alpha, beta, betaSum);
 	}
 
+	/**
+	 * Copy the type/topic counts into one array per type that holds only its
+	 *  non-zero entries, the form {@link TopicInferencer} and serialization use.
+	 */
+	int[][] packedRows() {
+		int[][] rows = new int[numTypes][];
+		int[] rowBuffer = new int[numTopics];
+		for (int type = 0; type < numTypes; type++) {
+			int[] topicCounts = typeTopicCounts.getRow(type, rowBuffer);
+			int length = 0;
+			while (length < topicCounts.length && topicCounts[length] > 0) {
+				length++;
+			}
+			rows[type] = Arrays.copyOf(topicCounts, length);
+		}
+		return rows;
+	}
+
 	// Serialization
 
 	private static final long serialVersionUID = 1;
@@ -1279,7 +1591,7 @@ public class ParallelTopicModel implements Serializable {
 		out.writeDouble(beta);
 		out.writeDouble(betaSum);
 
-		out.writeObject(typeTopicCounts);
+		out.writeObject(packedRows());
 		out.writeObject(tokensPerTopic);
 
 		out.writeObject(docLengthCounts);
@@ -1325,7 +1637,16 @@ public class ParallelTopicModel implements Serializable {
 		beta = in.readDouble();
 		betaSum = in.readDouble();
 		
-		typeTopicCounts = (int[][]) in.readObject();
+		// Rows may be shorter than the number of topics; the rest are zeros
+		int[][] rows = (int[][]) in.readObject();
+		countStorage = CountTable.Storage.HEAP;
+		typeTopicCounts = countStorage.create(numTypes, numTopics);
+		int[] rowBuffer = new int[numTopics];
+		for (int type = 0; type < numTypes; type++) {
+			Arrays.fill(rowBuffer, 0);
+			System.arraycopy(rows[type], 0, rowBuffer, 0, rows[type].length);
+			typeTopicCounts.setRow(type, rowBuffer);
+		}
 		tokensPerTopic = (int[]) in.readObject();
 		
 		docLengthCounts = (int[]) in.readObject();
@@ -1351,6 +1672,138 @@ public class ParallelTopicModel implements Serializable {
 		numThreads = in.readInt();
 	}
 
+	/**
+	 * Save everything needed to continue sampling from <code>nextIteration</code>:
+	 *  the topic assignments, the packed count tables, the hyperparameters and
+	 *  each worker's random stream and alpha statistics. Unlike {@link #write},
+	 *  the documents themselves are not saved. Must be called while no sampler
+	 *  is running, when the workers' counts have been merged.
+	 */
+	void writeCheckpoint (File file, WorkerRunnable[] runnables, int nextIteration) throws IOException {
+		try (CheckpointOutput out = new CheckpointOutput(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION)) {
+			out.writeInt(data.size());
+			out.writeInt(numTypes);
+			out.writeInt(numTopics);
+			out.writeInt(nextIteration);
+
+			out.writeDoubles(alpha);
+			out.writeDouble(alphaSum);
+			out.writeDouble(beta);
+			out.writeDouble(betaSum);
+
+			for (TopicAssignment document: data) {
+				out.writeInts(document.topicSequence.getFeatures());
+			}
+			for (int[] topicCounts: packedRows()) {
+				out.writeInts(topicCounts);
+			}
+			out.writeInts(tokensPerTopic);
+
+			out.writeInt(runnables.length);
+			for (WorkerRunnable runnable: runnables) {
+				out.writeObject(runnable.getRandom());
+				out.writeInts(runnable.getDocLengthCounts());
+				for (int[] counts: runnable.getTopicDocCounts()) {
+					out.writeInts(counts);
+				}
+			}
+			out.commit();
+		}
+	}
+
+	/**
+	 * Load a state saved by {@link #writeCheckpoint} in place of the current one.
+	 *
+	 * @param workers Receives the saved state of each worker
+	 * @return The iteration to continue from
+	 */
+	int readCheckpoint (File file, List<WorkerCheckpoint> workers) throws IOException {
+		try (CheckpointInput in = new CheckpointInput(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION)) {
+			in.expectInt(data.size(), "number of documents");
+			in.expectInt(numTypes, "number of types");
+			in.expectInt(numTopics, "number of topics");
+			int nextIteration = in.readInt();
+
+			in.readDoubles(alpha);
+			alphaSum = in.readDouble();
+			beta = in.readDouble();
+			betaSum = in.readDouble();
+
+			for (int doc = 0; doc < data.size(); doc++) {
+				int[] topics = data.get(doc).topicSequence.getFeatures();
+				in.readInts(topics);
+				for (int topic: topics) {
+					if (topic < 0 || topic >= numTopics) {
+						throw new IOException("Invalid topic assignment in document " + doc + " of " + file);
+					}
+				}
+			}
+			// Only the non-zero entries of each row are saved
+			int[] rowBuffer = new int[numTopics];
+			for (int type = 0; type < numTypes; type++) {
+				int[] topicCounts = in.readInts();
+				if (topicCounts.length > numTopics) {
+					throw new IOException("Checkpoint " + file + " has " + topicCounts.length +
+										  " topic counts for type " + type + ", expected at most " + numTopics);
+				}
+				for (int packed: topicCounts) {
+					if (packed <= 0 || (packed & topicMask) >= numTopics) {
+						throw new IOException("Invalid topic count for type " + type + " in " + file);
+					}
+				}
+				Arrays.fill(rowBuffer, 0);
+				System.arraycopy(topicCounts, 0, rowBuffer, 0, topicCounts.length);
+				typeTopicCounts.setRow(type, rowBuffer);
+			}
+			in.readInts(tokensPerTopic);
+
+			int numWorkers = in.readInt();
+			for (int thread = 0; thread < numWorkers; thread++) {
+				WorkerCheckpoint worker = new WorkerCheckpoint();
+				worker.file = file;
+				worker.random = (Randoms) in.readObject();
+				worker.docLengthCounts = in.readInts();
+				worker.topicDocCounts = new int[numTopics][];
+				for (int topic = 0; topic < numTopics; topic++) {
+					worker.topicDocCounts[topic] = in.readInts();
+				}
+				workers.add(worker);
+			}
+			return nextIteration;
+		}
+	}
+
+	/** The per-worker part of a checkpoint. */
+	static class WorkerCheckpoint {
+		File file;
+		Randoms random;
+		int[] docLengthCounts;
+		int[][] topicDocCounts;
+
+		/** Copy the saved statistics into a worker, whose arrays must be the same size. */
+		void restore (WorkerRunnable runnable) throws IOException {
+			if (docLengthCounts.length != runnable.getDocLengthCounts().length) {
+				throw new IOException("Checkpoint " + file + " has document length counts up to " +
+									  (docLengthCounts.length - 1) + ", expected " +
+									  (runnable.getDocLengthCounts().length - 1));
+			}
+			for (int topic = 0; topic < topicDocCounts.length; topic++) {
+				if (topicDocCounts[topic].length != runnable.getTopicDocCounts()[topic].length) {
+					throw new IOException("Checkpoint " + file + " has topic " + topic + " counts up to " +
+										  (topicDocCounts[topic].length - 1) + ", expected " +
+										  (runnable.getTopicDocCounts()[topic].length - 1));
+				}
+			}
+
+			runnable.setRandom(random);
+			System.arraycopy(docLengthCounts, 0, runnable.getDocLengthCounts(), 0, docLengthCounts.length);
+			for (int topic = 0; topic < topicDocCounts.length; topic++) {
+				System.arraycopy(topicDocCounts[topic], 0, runnable.getTopicDocCounts()[topic], 0,
+								 topicDocCounts[topic].length);
+			}
+		}
+	}
+
 	public void write (File serializedModelFile) {
 		try {
 			ObjectOutputStream oos = new ObjectOutputStream (new FileOutputStream(serializedModelFile));
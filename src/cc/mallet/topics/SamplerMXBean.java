@@ -0,0 +1,36 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * The attributes {@link JmxMetricsSink} publishes: the {@link SamplerMetrics}
+ *  of the latest iteration of one sampling run.
+ */
+
+public interface SamplerMXBean {
+	String getName ();
+	int getIteration ();
+	double getSecondsSinceLastIteration ();
+	double getIterationMillis ();
+	double getSampleMillis ();
+	double getWaitMillis ();
+	double getMergeMillis ();
+	double getOptimizeMillis ();
+	double getOutputMillis ();
+	double getTokensPerSecond ();
+	double[] getWorkerTokensPerSecond ();
+	/** The most recently computed value, NaN before the first */
+	double getLogLikelihoodPerToken ();
+	/** The iteration of {@link #getLogLikelihoodPerToken}, -1 before the first */
+	int getLogLikelihoodIteration ();
+	long getHeapUsed ();
+	long getHeapCommitted ();
+	double getAllocationRate ();
+	long getGcCount ();
+	long getGcMillis ();
+}
@@ -0,0 +1,216 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.IOException;
+import java.lang.management.*;
+import java.util.List;
+
+/**
+ * What one iteration of a sampling run cost, passed to every {@link MetricsSink}:
+ * <ul>
+ * <li>time spent sampling (the slowest worker, as in {@link SweepTimer}), waiting
+ *  for the slowest worker, merging counts, optimizing hyperparameters, and writing
+ *  output files and checkpoints;</li>
+ * <li>tokens sampled per second, overall and by each worker;</li>
+ * <li>heap use, and the bytes allocated and garbage collections since the previous
+ *  iteration;</li>
+ * <li>the log-likelihood per token, in the iterations that compute it.</li>
+ * </ul>
+ * The models only measure these when a sink is installed. Reading the JVM
+ *  counters costs a few microseconds per iteration.
+ */
+
+public class SamplerMetrics {
+
+	static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+	static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	String name;
+	long[] workerTokens; // indexed by <worker>, the tokens in each worker's documents
+	long totalTokens;
+	List<MetricsSink> sinks;
+
+	int iteration;
+	long timestamp; // System.currentTimeMillis() at the end of the iteration
+	long iterationStart;
+	long iterationNanos, sampleNanos, waitNanos, mergeNanos, optimizeNanos, outputNanos;
+	double tokensPerSecond;
+	double[] workerTokensPerSecond;
+	double logLikelihoodPerToken;
+
+	long heapUsed, heapCommitted, heapMax;
+	long allocatedBytes; // since the previous iteration, -1 if the JVM does not count allocations
+	double allocationRate; // bytes per second
+	long gcCount, gcMillis; // since the previous iteration
+
+	long previousAllocatedBytes = -1, previousGcCount, previousGcMillis;
+	long previousEnd;
+
+	/**
+	 * @param name Identifies the run in the output, e.g. the model and its topic counts
+	 * @param workerTokens The number of tokens each worker samples in a sweep
+	 */
+	public SamplerMetrics (String name, long[] workerTokens, List<MetricsSink> sinks) {
+		this.name = name;
+		this.workerTokens = workerTokens;
+		this.sinks = sinks;
+		for (long tokens : workerTokens) {
+			totalTokens += tokens;
+		}
+		workerTokensPerSecond = new double[workerTokens.length];
+
+		previousAllocatedBytes = totalAllocatedBytes();
+		previousGcCount = totalGcCount();
+		previousGcMillis = totalGcMillis();
+		previousEnd = System.nanoTime();
+	}
+
+	void startIteration (int iteration) {
+		this.iteration = iteration;
+		iterationStart = System.nanoTime();
+		optimizeNanos = 0;
+		outputNanos = 0;
+	}
+
+	void addOptimizeNanos (long nanos) {
+		optimizeNanos += nanos;
+	}
+
+	void addOutputNanos (long nanos) {
+		outputNanos += nanos;
+	}
+
+	/**
+	 * Read the sweep times from <code>timer</code> and the JVM counters,
+	 *  then hand the metrics to every sink.
+	 *
+	 * @param logLikelihoodPerToken NaN if it was not computed in this iteration
+	 */
+	void finishIteration (SweepTimer timer, double logLikelihoodPerToken) throws IOException {
+		long end = System.nanoTime();
+		timestamp = System.currentTimeMillis();
+		iterationNanos = end - iterationStart;
+
+		sampleNanos = timer.lastComputeNanos;
+		waitNanos = timer.lastWaitNanos;
+		mergeNanos = timer.lastMergeNanos;
+		tokensPerSecond = perSecond(totalTokens, sampleNanos);
+		for (int worker = 0; worker < workerTokens.length; worker++) {
+			workerTokensPerSecond[worker] = perSecond(workerTokens[worker], timer.workerNanos[worker]);
+		}
+		this.logLikelihoodPerToken = logLikelihoodPerToken;
+
+		MemoryUsage heap = MEMORY.getHeapMemoryUsage();
+		heapUsed = heap.getUsed();
+		heapCommitted = heap.getCommitted();
+		heapMax = heap.getMax();
+
+		long allocated = totalAllocatedBytes();
+		if (allocated >= 0 && previousAllocatedBytes >= 0) {
+			// Threads that have ended no longer count, so the total can drop
+			allocatedBytes = Math.max(0, allocated - previousAllocatedBytes);
+			allocationRate = perSecond(allocatedBytes, end - previousEnd);
+		}
+		else {
+			allocatedBytes = -1;
+			allocationRate = Double.NaN;
+		}
+		previousAllocatedBytes = allocated;
+
+		long count = totalGcCount();
+		long millis = totalGcMillis();
+		gcCount = count - previousGcCount;
+		gcMillis = millis - previousGcMillis;
+		previousGcCount = count;
+		previousGcMillis = millis;
+		previousEnd = end;
+
+		for (MetricsSink sink : sinks) {
+			sink.record(this);
+		}
+	}
+
+	void close () throws IOException {
+		for (MetricsSink sink : sinks) {
+			sink.close();
+		}
+	}
+
+	static double perSecond (long amount, long nanos) {
+		return (nanos > 0) ? amount * 1e9 / nanos : Double.NaN;
+	}
+
+	/** The bytes allocated by all live threads so far, or -1 if the JVM does not count them. */
+	static long totalAllocatedBytes () {
+		if (! (THREADS instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+		if (! threads.isThreadAllocatedMemorySupported() || ! threads.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	static long totalGcCount () {
+		long total = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, collector.getCollectionCount());
+		}
+		return total;
+	}
+
+	static long totalGcMillis () {
+		long total = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, collector.getCollectionTime());
+		}
+		return total;
+	}
+
+	public String getName () { return name; }
+	public int getIteration () { return iteration; }
+	/** System.currentTimeMillis() at the end of the iteration */
+	public long getTimestamp () { return timestamp; }
+	public int getNumWorkers () { return workerTokens.length; }
+
+	public double getIterationMillis () { return iterationNanos / 1e6; }
+	/** The sampling time of the slowest worker */
+	public double getSampleMillis () { return sampleNanos / 1e6; }
+	/** The time an average worker waited for the slowest one */
+	public double getWaitMillis () { return waitNanos / 1e6; }
+	public double getMergeMillis () { return mergeNanos / 1e6; }
+	public double getOptimizeMillis () { return optimizeNanos / 1e6; }
+	/** Writing output files and checkpoints */
+	public double getOutputMillis () { return outputNanos / 1e6; }
+
+	public double getTokensPerSecond () { return tokensPerSecond; }
+	public double getWorkerTokensPerSecond (int worker) { return workerTokensPerSecond[worker]; }
+	/** NaN unless the log-likelihood was computed in this iteration */
+	public double getLogLikelihoodPerToken () { return logLikelihoodPerToken; }
+
+	public long getHeapUsed () { return heapUsed; }
+	public long getHeapCommitted () { return heapCommitted; }
+	/** -1 if the maximum is undefined */
+	public long getHeapMax () { return heapMax; }
+	/** -1 if the JVM does not count allocations */
+	public long getAllocatedBytes () { return allocatedBytes; }
+	/** Bytes per second, NaN if the JVM does not count allocations */
+	public double getAllocationRate () { return allocationRate; }
+	public long getGcCount () { return gcCount; }
+	public long getGcMillis () { return gcMillis; }
+
+}
@@ -0,0 +1,85 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ * Base class for writers that copy the sampler state while the samplers are
+ *  idle and then write the copy to disk on a background thread, so that
+ *  sampling continues during the write.
+ * <p>
+ * Subclasses copy the state into their own buffers and call {@link #startWriting}.
+ *  Only one write is in flight at a time, so the buffers can be reused:
+ *  a subclass must call {@link #finish} or check {@link #isWriting} before
+ *  touching its buffers again.
+ */
+
+abstract class SnapshotWriter {
+
+	String threadName;
+	ExecutorService executor;
+	Future<?> pending;
+
+	public SnapshotWriter (String threadName) {
+		this.threadName = threadName;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread (Runnable runnable) {
+					Thread thread = new Thread(runnable, SnapshotWriter.this.threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/** Write the buffered snapshot. Called on the background thread. */
+	abstract void write () throws IOException;
+
+	protected void startWriting () {
+		pending = executor.submit(new Callable<Object>() {
+				public Object call () throws IOException {
+					write();
+					return null;
+				}
+			});
+	}
+
+	/** True while a previous snapshot is still being written. */
+	public boolean isWriting () {
+		return pending != null && ! pending.isDone();
+	}
+
+	/** Wait for the write in progress, if any, and report its failure. */
+	public void finish () throws IOException {
+		if (pending == null) { return; }
+
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted in " + threadName);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed in " + threadName, e.getCause());
+		} finally {
+			pending = null;
+		}
+	}
+
+	public void close () throws IOException {
+		try {
+			finish();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
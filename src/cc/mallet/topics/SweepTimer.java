@@ -0,0 +1,152 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs one sampling sweep of a set of workers and keeps track of where
+ *  the time went.
+ * <p>
+ * For each iteration, <i>compute</i> is the time of the slowest worker,
+ *  <i>wait</i> is the time an average worker spent idle at the end of the
+ *  sweep, waiting for the slowest one, and <i>merge</i> is the time spent
+ *  combining the workers' counts afterwards.
+ */
+
+class SweepTimer {
+
+	long iterations = 0;
+	long totalComputeNanos = 0, totalWaitNanos = 0, totalMergeNanos = 0;
+	long lastComputeNanos, lastWaitNanos, lastMergeNanos;
+
+	long sweepStart, mergeStart;
+	long[] workerNanos;
+
+	/**
+	 * Run one sweep with {@link #runAll}.
+	 *  The tasks must return their own running time in nanoseconds,
+	 *  as the tasks from {@link #timed} do.
+	 */
+	void runSweep (ExecutorService executor, List<Callable<Long>> tasks) {
+		if (workerNanos == null || workerNanos.length != tasks.size()) {
+			workerNanos = new long[tasks.size()];
+		}
+
+		sweepStart = System.nanoTime();
+
+		List<Long> results = runAll(executor, tasks);
+		for (int i = 0; i < results.size(); i++) {
+			workerNanos[i] = results.get(i);
+		}
+
+		long sweepNanos = System.nanoTime() - sweepStart;
+
+		lastComputeNanos = 0;
+		lastWaitNanos = 0;
+		for (long nanos: workerNanos) {
+			lastComputeNanos = Math.max(lastComputeNanos, nanos);
+			lastWaitNanos += Math.max(0, sweepNanos - nanos);
+		}
+		lastWaitNanos /= workerNanos.length;
+		lastMergeNanos = 0;
+
+		mergeStart = System.nanoTime();
+		iterations++;
+		totalComputeNanos += lastComputeNanos;
+		totalWaitNanos += lastWaitNanos;
+	}
+
+	/**
+	 * A pool for the sampling workers. Its threads are daemons, so a run
+	 *  that ends with a worker's exception does not leave them waiting.
+	 */
+	static ExecutorService newExecutor (int numThreads) {
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				int count = 0;
+				public synchronized Thread newThread (Runnable runnable) {
+					Thread thread = new Thread(runnable, "sampler-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Run all tasks on the executor, or in this thread if there is no executor,
+	 *  and return their results once every one of them has finished.
+	 */
+	static <T> List<T> runAll (ExecutorService executor, List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+
+		try {
+			if (executor == null) {
+				for (Callable<T> task: tasks) {
+					results.add(task.call());
+				}
+			}
+			else {
+				for (Future<T> future: executor.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sampling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Sampling worker failed", e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Sampling worker failed", e);
+		}
+
+		return results;
+	}
+
+	/** Call after the workers' counts have been merged following {@link #runSweep}. */
+	void mergeFinished () {
+		lastMergeNanos = System.nanoTime() - mergeStart;
+		totalMergeNanos += lastMergeNanos;
+	}
+
+	/** Wrap a runnable as a task that returns its running time in nanoseconds. */
+	static Callable<Long> timed (final Runnable runnable) {
+		return new Callable<Long>() {
+			public Long call () {
+				long start = System.nanoTime();
+				runnable.run();
+				return System.nanoTime() - start;
+			}
+		};
+	}
+
+	static List<Callable<Long>> timed (Runnable[] runnables) {
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(runnables.length);
+		for (Runnable runnable: runnables) {
+			tasks.add(timed(runnable));
+		}
+		return tasks;
+	}
+
+	/** The times for the most recent iteration. */
+	String lastIteration () {
+		return "[compute " + millis(lastComputeNanos) + "ms, wait " + millis(lastWaitNanos) +
+			"ms, merge " + millis(lastMergeNanos) + "ms]";
+	}
+
+	/** The times summed over all iterations so far. */
+	String summary () {
+		return "Sampling time over " + iterations + " iterations: compute " + millis(totalComputeNanos) +
+			"ms, wait " + millis(totalWaitNanos) + "ms, merge " + millis(totalMergeNanos) + "ms";
+	}
+
+	static long millis (long nanos) {
+		return Math.round(nanos / 1e6);
+	}
+}
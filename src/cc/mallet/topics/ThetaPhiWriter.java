@@ -0,0 +1,175 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.*;
+
+import cc.mallet.types.*;
+import cc.mallet.util.BinaryMatrixWriter;
+
+/**
+ * Writes the document/topic (theta) and type/topic (phi) distributions of
+ *  a {@link ParallelTopicModel} on a background thread.
+ * <p>
+ * {@link #snapshot} copies the counts while the samplers are idle, and the
+ *  files are then written from the copy while sampling continues. A new
+ *  snapshot first waits for the previous write to finish.
+ * <p>
+ * Theta has one row per document with the smoothed topic proportions.
+ *  Phi has one row per type with the number of tokens assigned to each topic.
+ *  In binary output, theta is float32 and phi is int32 with the type names
+ *  as row names.
+ */
+
+class ThetaPhiWriter extends SnapshotWriter {
+
+	File thetaFile, phiFile;
+	OutputFormat format;
+	String[] typeNames;
+	int numTopics;
+	int iteration;
+
+	int[][] docTopicCounts; // indexed by <document index, topic index>
+	int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	double[] alpha;
+
+	public ThetaPhiWriter (File thetaFile, File phiFile, OutputFormat format, String[] typeNames,
+						   int numDocs, int numTopics) {
+		super("theta-phi-writer");
+
+		this.thetaFile = thetaFile;
+		this.phiFile = phiFile;
+		this.format = format;
+		this.typeNames = typeNames;
+		this.numTopics = numTopics;
+		int numTypes = typeNames.length;
+
+		docTopicCounts = new int[numDocs][numTopics];
+		typeTopicCounts = new int[numTypes][numTopics];
+		alpha = new double[numTopics];
+	}
+
+	/**
+	 * Copy the current state and start writing it in the background.
+	 *  Must be called while no sampler is running.
+	 *
+	 * @param packedTypeTopicCounts Type/topic counts packed as in {@link ParallelTopicModel}
+	 */
+	public void snapshot (ArrayList<TopicAssignment> data, CountTable packedTypeTopicCounts,
+						  int topicMask, int topicBits, double[] alpha, int iteration) throws IOException {
+
+		finish();
+
+		this.iteration = iteration;
+
+		for (int doc = 0; doc < data.size(); doc++) {
+			int[] counts = docTopicCounts[doc];
+			Arrays.fill(counts, 0);
+
+			LabelSequence topics = data.get(doc).topicSequence;
+			FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
+			for (int position = 0; position < topics.getLength(); position++) {
+				counts[ topics.getIndexAtPosition(position) ] += tokens.getCountAtPosition(position);
+			}
+		}
+
+		int[] rowBuffer = new int[packedTypeTopicCounts.getNumColumns()];
+		for (int type = 0; type < packedTypeTopicCounts.getNumRows(); type++) {
+			int[] counts = typeTopicCounts[type];
+			Arrays.fill(counts, 0);
+
+			int[] topicCounts = packedTypeTopicCounts.getRow(type, rowBuffer);
+			int index = 0;
+			while (index < topicCounts.length &&
+				   topicCounts[index] > 0) {
+				counts[ topicCounts[index] & topicMask ] = topicCounts[index] >> topicBits;
+				index++;
+			}
+		}
+
+		System.arraycopy(alpha, 0, this.alpha, 0, numTopics);
+
+		startWriting();
+	}
+
+	void write () throws IOException {
+		if (format.writesText()) {
+			writeText();
+		}
+		if (format.writesBinary()) {
+			writeBinary();
+		}
+	}
+
+	void writeText () throws IOException {
+		StringBuilder line = new StringBuilder();
+
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(thetaFile)))) {
+			double[] topicDistribution = new double[numTopics];
+			for (int[] counts: docTopicCounts) {
+
+				// Add the smoothing parameters and normalize,
+				//  as in ParallelTopicModel.getTopicProbabilities()
+				double sum = 0.0;
+				for (int topic = 0; topic < numTopics; topic++) {
+					topicDistribution[topic] = counts[topic] + alpha[topic];
+					sum += topicDistribution[topic];
+				}
+
+				line.setLength(0);
+				for (int topic = 0; topic < numTopics; topic++) {
+					if (topic > 0) { line.append(','); }
+					line.append(topicDistribution[topic] / sum);
+				}
+				out.println(line);
+			}
+			if (out.checkError()) { throw new IOException("Failed to write " + thetaFile); }
+		}
+
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(phiFile)))) {
+			for (int[] counts: typeTopicCounts) {
+				line.setLength(0);
+				for (int topic = 0; topic < numTopics; topic++) {
+					if (topic > 0) { line.append(','); }
+					line.append(counts[topic]);
+				}
+				out.println(line);
+			}
+			if (out.checkError()) { throw new IOException("Failed to write " + phiFile); }
+		}
+	}
+
+	void writeBinary () throws IOException {
+		try (BinaryMatrixWriter out = new BinaryMatrixWriter(OutputFormat.binaryFile(thetaFile),
+															  BinaryMatrixWriter.FLOAT32,
+															  docTopicCounts.length, numTopics,
+															  iteration, null)) {
+			for (int[] counts: docTopicCounts) {
+				double sum = 0.0;
+				for (int topic = 0; topic < numTopics; topic++) {
+					sum += counts[topic] + alpha[topic];
+				}
+				for (int topic = 0; topic < numTopics; topic++) {
+					out.writeFloat((float) ((counts[topic] + alpha[topic]) / sum));
+				}
+			}
+		}
+
+		try (BinaryMatrixWriter out = new BinaryMatrixWriter(OutputFormat.binaryFile(phiFile),
+															  BinaryMatrixWriter.INT32,
+															  typeTopicCounts.length, numTopics,
+															  iteration, typeNames)) {
+			for (int[] counts: typeTopicCounts) {
+				out.writeRow(counts, numTopics);
+			}
+		}
+	}
+
+}
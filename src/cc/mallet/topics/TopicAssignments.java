@@ -0,0 +1,147 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.FlatCorpus;
+
+/**
+ * The super-topic and sub-topic of every position of every document in a
+ *  {@link PAM4L} model, packed into one value per position: the sub-topic
+ *  in the low bits and the super-topic above it. The values of all documents
+ *  are stored one after the other in a single flat array, and document
+ *  <code>doc</code> starts at <code>getOffset(doc)</code>, the same index
+ *  as in the {@link FlatCorpus} of the documents.
+ * <p>
+ * When both topics fit in 16 bits (e.g. up to 16 super-topics with 4096
+ *  sub-topics) the array is a <code>short[]</code>, otherwise an <code>int[]</code>.
+ *  Compared with two <code>int[][]</code> arrays this stores 2 or 4 bytes rather
+ *  than 8 per position, without an array header per document, and a sweep
+ *  reads the documents sequentially from one block of memory.
+ */
+
+public class TopicAssignments {
+
+	int numSuperTopics, numSubTopics;
+	int subTopicBits;
+	int subTopicMask;
+
+	int[] docOffsets; // indexed by <document index>, one extra entry for the end of the last document
+
+	// Exactly one of these is non-null
+	short[] shortValues; // indexed by <docOffsets[doc] + sequence index>
+	int[] intValues;
+
+	/**
+	 * Allocate the assignments for the documents of <code>corpus</code>, one value
+	 *  per position. All topics start at 0.
+	 */
+	public TopicAssignments (FlatCorpus corpus, int numSuperTopics, int numSubTopics) {
+		this(docLengths(corpus), numSuperTopics, numSubTopics);
+	}
+
+	/**
+	 * @param docLengths The number of positions in each document
+	 */
+	public TopicAssignments (int[] docLengths, int numSuperTopics, int numSubTopics) {
+		this.numSuperTopics = numSuperTopics;
+		this.numSubTopics = numSubTopics;
+
+		subTopicBits = bits(numSubTopics);
+		subTopicMask = (1 << subTopicBits) - 1;
+		int totalBits = subTopicBits + bits(numSuperTopics);
+		if (totalBits > 31) {
+			throw new IllegalArgumentException("Cannot pack " + numSuperTopics + " super-topics and " +
+											   numSubTopics + " sub-topics into 31 bits");
+		}
+
+		docOffsets = new int[docLengths.length + 1];
+		long total = 0;
+		for (int doc = 0; doc < docLengths.length; doc++) {
+			total += docLengths[doc];
+			if (total > Integer.MAX_VALUE - 8) {
+				throw new IllegalArgumentException("Too many positions for one array: more than " + total);
+			}
+			docOffsets[doc + 1] = (int) total;
+		}
+
+		if (totalBits <= 16) {
+			shortValues = new short[(int) total];
+		}
+		else {
+			intValues = new int[(int) total];
+		}
+	}
+
+	static int[] docLengths (FlatCorpus corpus) {
+		int[] lengths = new int[corpus.getNumDocs()];
+		for (int doc = 0; doc < lengths.length; doc++) {
+			lengths[doc] = corpus.getLength(doc);
+		}
+		return lengths;
+	}
+
+	/** The number of bits needed to store the numbers 0 .. n-1 */
+	static int bits (int n) {
+		return (n <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	public int getNumDocs () { return docOffsets.length - 1; }
+	public int getNumSuperTopics () { return numSuperTopics; }
+	public int getNumSubTopics () { return numSubTopics; }
+	/** The total number of positions in all documents */
+	public int size () { return docOffsets[docOffsets.length - 1]; }
+	/** True if the values are stored as shorts */
+	public boolean isShort () { return shortValues != null; }
+
+	/** The index of the first position of the document in the flat array */
+	public int getOffset (int doc) { return docOffsets[doc]; }
+	public int getLength (int doc) { return docOffsets[doc + 1] - docOffsets[doc]; }
+
+	/**
+	 * The packed super-topic and sub-topic at <code>index</code>, which is
+	 *  <code>getOffset(doc)</code> plus the sequence index.
+	 *  Decode it with {@link #superTopic(int)} and {@link #subTopic(int)}.
+	 */
+	public final int get (int index) {
+		if (shortValues != null) {
+			return shortValues[index] & 0xffff;
+		}
+		return intValues[index];
+	}
+
+	public final int superTopic (int packed) { return packed >>> subTopicBits; }
+	public final int subTopic (int packed) { return packed & subTopicMask; }
+
+	public final int getSuperTopic (int index) { return superTopic(get(index)); }
+	public final int getSubTopic (int index) { return subTopic(get(index)); }
+
+	public final void set (int index, int superTopic, int subTopic) {
+		int packed = (superTopic << subTopicBits) | subTopic;
+		if (shortValues != null) {
+			shortValues[index] = (short) packed;
+		}
+		else {
+			intValues[index] = packed;
+		}
+	}
+
+	/** Copy the assignments of a model with the same documents and topic counts. */
+	public void copyFrom (TopicAssignments other) {
+		if (other.size() != size() || other.numSuperTopics != numSuperTopics ||
+			other.numSubTopics != numSubTopics) {
+			throw new IllegalArgumentException("The assignments have a different shape");
+		}
+		if (shortValues != null) {
+			System.arraycopy(other.shortValues, 0, shortValues, 0, shortValues.length);
+		}
+		else {
+			System.arraycopy(other.intValues, 0, intValues, 0, intValues.length);
+		}
+	}
+
+}
@@ -9,6 +9,7 @@ package cc.mallet.topics;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.zip.*;
 
@@ -49,15 +50,35 @@ public class WorkerRunnable implements Runnable {
 	protected double smoothingOnlyMass = 0.0;
 	protected double[] cachedCoefficients;
 
-	protected int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	// Scratch space for sampling runs of several tokens, indexed by <topic index>
+	protected int[] runTypeCounts;
+	protected double[] runWeights;
+
+	// Packed (count << topicBits) + topic entries, see ParallelTopicModel
+	protected CountTable typeTopicCounts; // indexed by <feature index, position>
 	protected int[] tokensPerTopic; // indexed by <topic index>
 
+	// Holds a copy of a row when the counts are not on the heap
+	protected int[] rowBuffer;
+
+	// If the type/topic counts are shared with other workers, the row of
+	//  type t is guarded by typeLocks[t & typeLockMask]. Null otherwise.
+	ReentrantLock[] typeLocks;
+	int typeLockMask;
+
 	// for dirichlet estimation
 	protected int[] docLengthCounts; // histogram of document sizes
 	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
 
 	boolean shouldSaveState = false;
 	boolean shouldBuildLocalCounts = true;
+
+	// The log-likelihood of this worker's documents, added up during a sweep
+	//  as each document is finished (see ParallelTopicModel.modelLogLikelihood())
+	boolean shouldComputeLikelihood = false;
+	LogGammaTable[] alphaTables;
+	LogGammaTable alphaSumTable;
+	double documentLogLikelihood = 0.0;
 	
 	protected Randoms random;
 	
@@ -67,14 +88,14 @@ public class WorkerRunnable implements Runnable {
 						   double[] alpha, double alphaSum,
 						   double beta, Randoms random,
 						   ArrayList<TopicAssignment> data,
-						   int[][] typeTopicCounts, 
+						   CountTable typeTopicCounts, 
 						   int[] tokensPerTopic,
 						   int startDoc, int numDocs) {
 
 		this.data = data;
 
 		this.numTopics = numTopics;
-		this.numTypes = typeTopicCounts.length;
+		this.numTypes = typeTopicCounts.getNumRows();
 
 		if (Integer.bitCount(numTopics) == 1) {
 			// exact power of 2
@@ -100,6 +121,9 @@ public class WorkerRunnable implements Runnable {
 		this.numDocs = numDocs;
 
 		cachedCoefficients = new double[ numTopics ];
+		runTypeCounts = new int[ numTopics ];
+		runWeights = new double[ numTopics ];
+		rowBuffer = new int[ numTopics ];
 
 		//System.err.println("WorkerRunnable Thread: " + numTopics + " topics, " + topicBits + " topic bits, " + 
 		//				   Integer.toBinaryString(topicMask) + " topic mask");
@@ -116,11 +140,27 @@ public class WorkerRunnable implements Runnable {
 		shouldBuildLocalCounts = false;
 	}
 
+	/**
+	 *  Sample against type/topic counts shared with the other workers,
+	 *   rather than a copy of them: each row is read and updated while
+	 *   holding the lock of its type, and no local counts are built after
+	 *   a sweep. The topic totals are still this worker's own.
+	 *
+	 *  @param typeLocks A power of two number of locks, shared by all workers
+	 */
+	public void shareTypeTopicCounts(ReentrantLock[] typeLocks) {
+		this.typeLocks = typeLocks;
+		this.typeLockMask = typeLocks.length - 1;
+		shouldBuildLocalCounts = false;
+	}
+
 	public int[] getTokensPerTopic() { return tokensPerTopic; }
-	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+	public CountTable getTypeTopicCounts() { return typeTopicCounts; }
 
 	public int[] getDocLengthCounts() { return docLengthCounts; }
 	public int[][] getTopicDocCounts() { return topicDocCounts; }
+	public Randoms getRandom() { return random; }
+	public void setRandom(Randoms random) { this.random = random; }
 
 	public void initializeAlphaStatistics(int size) {
 		docLengthCounts = new int[size];
@@ -131,6 +171,14 @@ public class WorkerRunnable implements Runnable {
 		shouldSaveState = true;
 	}
 
+	/** Add up the log-likelihood of the documents during the next sweep. */
+	public void collectLogLikelihood() {
+		shouldComputeLikelihood = true;
+	}
+
+	/** The document terms of the log-likelihood after a sweep with {@link #collectLogLikelihood}. */
+	public double getDocumentLogLikelihood() { return documentLogLikelihood; }
+
 	public void resetBeta(double beta, double betaSum) {
 		this.beta = beta;
 		this.betaSum = betaSum;
@@ -150,9 +198,9 @@ public class WorkerRunnable implements Runnable {
 		// Clear the type/topic counts, only 
 		//  looking at the entries before the first 0 entry.
 
-		for (int type = 0; type < typeTopicCounts.length; type++) {
+		for (int type = 0; type < numTypes; type++) {
 
-			int[] topicCounts = typeTopicCounts[type];
+			int[] topicCounts = typeTopicCounts.getRow(type, rowBuffer);
 			
 			int position = 0;
 			while (position < topicCounts.length && 
@@ -160,6 +208,7 @@ public class WorkerRunnable implements Runnable {
 				topicCounts[position] = 0;
 				position++;
 			}
+			typeTopicCounts.setRow(type, topicCounts);
 		}
 
         for (int doc = startDoc;
@@ -178,7 +227,10 @@ public class WorkerRunnable implements Runnable {
 
 				if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) { continue; }
 
-				tokensPerTopic[topic]++;
+				// Run-length sequences hold several tokens per position
+				int count = tokens.getCountAtPosition(position);
+
+				tokensPerTopic[topic] += count;
 				
 				// The format for these arrays is 
 				//  the topic in the rightmost bits
@@ -189,7 +241,7 @@ public class WorkerRunnable implements Runnable {
 				
 				int type = tokens.getIndexAtPosition(position);
 
-				int[] currentTypeTopicCounts = typeTopicCounts[ type ];
+				int[] currentTypeTopicCounts = typeTopicCounts.getRow(type, rowBuffer);
 				
 				// Start by assuming that the array is either empty
 				//  or is in sorted (descending) order.
@@ -212,15 +264,15 @@ public class WorkerRunnable implements Runnable {
 				currentValue = currentTypeTopicCounts[index] >> topicBits;
 				
 				if (currentValue == 0) {
-					// new value is 1, so we don't have to worry about sorting
-					//  (except by topic suffix, which doesn't matter)
+					// this is the first entry for the topic, so we don't have
+					//  to worry about sorting (except by topic suffix, which doesn't matter)
 					
 					currentTypeTopicCounts[index] =
-						(1 << topicBits) + topic;
+						(count << topicBits) + topic;
 				}
 				else {
 					currentTypeTopicCounts[index] =
-						((currentValue + 1) << topicBits) + topic;
+						((currentValue + count) << topicBits) + topic;
 					
 					// Now ensure that the array is still sorted by 
 					//  bubbling this value up.
@@ -233,6 +285,8 @@ public class WorkerRunnable implements Runnable {
 						index--;
 					}
 				}
+
+				typeTopicCounts.setRow(type, currentTypeTopicCounts);
 			}
 		}
 
@@ -258,6 +312,20 @@ public class WorkerRunnable implements Runnable {
 				smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
 				cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
 			}
+
+			if (shouldComputeLikelihood) {
+				if (alphaTables == null) {
+					alphaTables = new LogGammaTable[numTopics];
+				}
+				// alpha is shared with the model and optimized in place, alphaSum is not updated
+				double currentAlphaSum = 0.0;
+				for (int topic=0; topic < numTopics; topic++) {
+					alphaTables[topic] = LogGammaTable.forOffset(alphaTables[topic], alpha[topic]);
+					currentAlphaSum += alpha[topic];
+				}
+				alphaSumTable = LogGammaTable.forOffset(alphaSumTable, currentAlphaSum);
+				documentLogLikelihood = 0.0;
+			}
 			
 			for (int doc = startDoc;
 				 doc < data.size() && doc < startDoc + numDocs;
@@ -283,11 +351,12 @@ public class WorkerRunnable implements Runnable {
 			}
 
 			shouldSaveState = false;
-			isFinished = true;
+			shouldComputeLikelihood = false;
 
-		} catch (Exception e) {
+		} finally {
+			// A failure propagates to the caller, through the Future when
+			//  the worker runs on an executor
 			isFinished = true;
-			e.printStackTrace();
 		}
 	}
 	
@@ -298,7 +367,7 @@ public class WorkerRunnable implements Runnable {
 		int[] oneDocTopics = topicSequence.getFeatures();
 
 		int[] currentTypeTopicCounts;
-		int type, oldTopic, newTopic;
+		int type, oldTopic, newTopic, count;
 		double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
@@ -308,7 +377,7 @@ public class WorkerRunnable implements Runnable {
 		//		populate topic counts
 		for (int position = 0; position < docLength; position++) {
 			if (oneDocTopics[position] == ParallelTopicModel.UNASSIGNED_TOPIC) { continue; }
-			localTopicCounts[oneDocTopics[position]]++;
+			localTopicCounts[oneDocTopics[position]] += tokenSequence.getCountAtPosition(position);
 		}
 
 		// Build an array that densely lists the topics that
@@ -349,13 +418,14 @@ public class WorkerRunnable implements Runnable {
 		int i;
 		double score;
 
-		//	Iterate over the positions (words) in the document 
+		//	Iterate over the positions (words) in the document.
+		//	For run-length sequences each position is a run of identical
+		//	tokens, which is removed and reassigned as a block.
 		for (int position = 0; position < docLength; position++) {
 			type = tokenSequence.getIndexAtPosition(position);
+			count = tokenSequence.getCountAtPosition(position);
 			oldTopic = oneDocTopics[position];
 
-			currentTypeTopicCounts = typeTopicCounts[type];
-
 			if (oldTopic != ParallelTopicModel.UNASSIGNED_TOPIC) {
 				//	Remove this token from all counts. 
 				
@@ -368,7 +438,7 @@ public class WorkerRunnable implements Runnable {
 				
 				// Decrement the local doc/topic counts
 				
-				localTopicCounts[oldTopic]--;
+				localTopicCounts[oldTopic] -= count;
 				
 				// Maintain the dense index, if we are deleting
 				//  the old topic
@@ -398,7 +468,7 @@ public class WorkerRunnable implements Runnable {
 				}
 
 				// Decrement the global topic count totals
-				tokensPerTopic[oldTopic]--;
+				tokensPerTopic[oldTopic] -= count;
 				assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
 			
 
@@ -416,179 +486,207 @@ public class WorkerRunnable implements Runnable {
 			}
 
 
-			// Now go over the type/topic counts, decrementing
-			//  where appropriate, and calculating the score
-			//  for each topic at the same time.
+			double sample, origSample;
 
-			int index = 0;
-			int currentTopic, currentValue;
+			// With shared counts, other workers may be changing this
+			//  type's row: hold its lock while reading and updating it.
+			ReentrantLock typeLock = null;
+			if (typeLocks != null) {
+				typeLock = typeLocks[type & typeLockMask];
+				typeLock.lock();
+			}
+			try {
+				currentTypeTopicCounts = typeTopicCounts.getRow(type, rowBuffer);
 
-			boolean alreadyDecremented = (oldTopic == ParallelTopicModel.UNASSIGNED_TOPIC);
+				// Now go over the type/topic counts, decrementing
+				//  where appropriate, and calculating the score
+				//  for each topic at the same time.
 
-			topicTermMass = 0.0;
+				int index = 0;
+				int currentTopic, currentValue;
 
-			while (index < currentTypeTopicCounts.length && 
-				   currentTypeTopicCounts[index] > 0) {
-				currentTopic = currentTypeTopicCounts[index] & topicMask;
-				currentValue = currentTypeTopicCounts[index] >> topicBits;
+				boolean alreadyDecremented = (oldTopic == ParallelTopicModel.UNASSIGNED_TOPIC);
 
-				if (! alreadyDecremented && 
-					currentTopic == oldTopic) {
+				topicTermMass = 0.0;
 
-					// We're decrementing and adding up the 
-					//  sampling weights at the same time, but
-					//  decrementing may require us to reorder
-					//  the topics, so after we're done here,
-					//  look at this cell in the array again.
+				while (index < currentTypeTopicCounts.length && 
+					   currentTypeTopicCounts[index] > 0) {
+					currentTopic = currentTypeTopicCounts[index] & topicMask;
+					currentValue = currentTypeTopicCounts[index] >> topicBits;
 
-					currentValue --;
-					if (currentValue == 0) {
-						currentTypeTopicCounts[index] = 0;
-					}
-					else {
-						currentTypeTopicCounts[index] =
-							(currentValue << topicBits) + oldTopic;
-					}
+					if (! alreadyDecremented && 
+						currentTopic == oldTopic) {
+
+						// We're decrementing and adding up the 
+						//  sampling weights at the same time, but
+						//  decrementing may require us to reorder
+						//  the topics, so after we're done here,
+						//  look at this cell in the array again.
+
+						currentValue -= count;
+						if (currentValue == 0) {
+							currentTypeTopicCounts[index] = 0;
+						}
+						else {
+							currentTypeTopicCounts[index] =
+								(currentValue << topicBits) + oldTopic;
+						}
 					
-					// Shift the reduced value to the right, if necessary.
-
-					int subIndex = index;
-					while (subIndex < currentTypeTopicCounts.length - 1 && 
-						   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
-						int temp = currentTypeTopicCounts[subIndex];
-						currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
-						currentTypeTopicCounts[subIndex + 1] = temp;
+						// Shift the reduced value to the right, if necessary.
+
+						int subIndex = index;
+						while (subIndex < currentTypeTopicCounts.length - 1 && 
+							   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
+							int temp = currentTypeTopicCounts[subIndex];
+							currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
+							currentTypeTopicCounts[subIndex + 1] = temp;
 						
-						subIndex++;
-					}
+							subIndex++;
+						}
 
-					alreadyDecremented = true;
-				}
-				else {
-					score = 
-						cachedCoefficients[currentTopic] * currentValue;
-					topicTermMass += score;
-					topicTermScores[index] = score;
+						alreadyDecremented = true;
+					}
+					else {
+						score = 
+							cachedCoefficients[currentTopic] * currentValue;
+						topicTermMass += score;
+						topicTermScores[index] = score;
 
-					index++;
+						index++;
+					}
 				}
-			}
 			
-			double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-			double origSample = sample;
+				// A run of several tokens is drawn from its block conditional
+				//  below, which does not split into the three buckets
+				sample = 0.0;
+				if (count == 1) {
+					sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+				}
+				origSample = sample;
 
-			//	Make sure it actually gets set
-			newTopic = -1;
+				//	Make sure it actually gets set
+				newTopic = -1;
 
-			if (sample < topicTermMass) {
-				//topicTermCount++;
+				if (count == 1 && sample < topicTermMass) {
+					//topicTermCount++;
 
-				i = -1;
-				while (sample > 0) {
-					i++;
-					sample -= topicTermScores[i];
-				}
+					i = -1;
+					while (sample > 0) {
+						i++;
+						sample -= topicTermScores[i];
+					}
 
-				newTopic = currentTypeTopicCounts[i] & topicMask;
-				currentValue = currentTypeTopicCounts[i] >> topicBits;
+					newTopic = currentTypeTopicCounts[i] & topicMask;
+					currentValue = currentTypeTopicCounts[i] >> topicBits;
 				
-				currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+					currentTypeTopicCounts[i] = ((currentValue + count) << topicBits) + newTopic;
 
-				// Bubble the new value up, if necessary
+					// Bubble the new value up, if necessary
 				
-				while (i > 0 &&
-					   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
-					int temp = currentTypeTopicCounts[i];
-					currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
-					currentTypeTopicCounts[i - 1] = temp;
+					while (i > 0 &&
+						   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+						int temp = currentTypeTopicCounts[i];
+						currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+						currentTypeTopicCounts[i - 1] = temp;
 
-					i--;
-				}
+						i--;
+					}
 
-			}
-			else {
-				sample -= topicTermMass;
+				}
+				else {
+					sample -= topicTermMass;
 
-				if (sample < topicBetaMass) {
-					//betaTopicCount++;
+					if (count > 1) {
+						newTopic = sampleRunTopic(currentTypeTopicCounts, localTopicCounts, count);
+					}
+					else if (sample < topicBetaMass) {
+						//betaTopicCount++;
 
-					sample /= beta;
+						sample /= beta;
 
-					for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-						int topic = localTopicIndex[denseIndex];
+						for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+							int topic = localTopicIndex[denseIndex];
 
-						sample -= localTopicCounts[topic] /
-							(tokensPerTopic[topic] + betaSum);
+							sample -= localTopicCounts[topic] /
+								(tokensPerTopic[topic] + betaSum);
 
-						if (sample <= 0.0) {
-							newTopic = topic;
-							break;
+							if (sample <= 0.0) {
+								newTopic = topic;
+								break;
+							}
 						}
-					}
 
-				}
-				else {
-					//smoothingOnlyCount++;
-
-					sample -= topicBetaMass;
+					}
+					else {
+						//smoothingOnlyCount++;
 
-					sample /= beta;
+						sample -= topicBetaMass;
 
-					newTopic = 0;
-					sample -= alpha[newTopic] /
-						(tokensPerTopic[newTopic] + betaSum);
+						sample /= beta;
 
-					while (sample > 0.0) {
-						newTopic++;
-						sample -= alpha[newTopic] / 
+						newTopic = 0;
+						sample -= alpha[newTopic] /
 							(tokensPerTopic[newTopic] + betaSum);
-					}
+
+						while (sample > 0.0) {
+							newTopic++;
+							sample -= alpha[newTopic] / 
+								(tokensPerTopic[newTopic] + betaSum);
+						}
 					
-				}
+					}
 
-				// Move to the position for the new topic,
-				//  which may be the first empty position if this
-				//  is a new topic for this word.
+					// Move to the position for the new topic,
+					//  which may be the first empty position if this
+					//  is a new topic for this word.
 				
-				index = 0;
-				while (currentTypeTopicCounts[index] > 0 &&
-					   (currentTypeTopicCounts[index] & topicMask) != newTopic) {
-					index++;
-					if (index == currentTypeTopicCounts.length) {
-						System.err.println("type: " + type + " new topic: " + newTopic);
-						for (int k=0; k<currentTypeTopicCounts.length; k++) {
-							System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" + 
-											 (currentTypeTopicCounts[k] >> topicBits) + " ");
-						}
-						System.err.println();
+					index = 0;
+					while (currentTypeTopicCounts[index] > 0 &&
+						   (currentTypeTopicCounts[index] & topicMask) != newTopic) {
+						index++;
+						if (index == currentTypeTopicCounts.length) {
+							System.err.println("type: " + type + " new topic: " + newTopic);
+							for (int k=0; k<currentTypeTopicCounts.length; k++) {
+								System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" + 
+												 (currentTypeTopicCounts[k] >> topicBits) + " ");
+							}
+							System.err.println();
 
+						}
 					}
-				}
 
 
-				// index should now be set to the position of the new topic,
-				//  which may be an empty cell at the end of the list.
+					// index should now be set to the position of the new topic,
+					//  which may be an empty cell at the end of the list.
 
-				if (currentTypeTopicCounts[index] == 0) {
-					// inserting a new topic, guaranteed to be in
-					//  order w.r.t. count, if not topic.
-					currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
-				}
-				else {
-					currentValue = currentTypeTopicCounts[index] >> topicBits;
-					currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
+					if (currentTypeTopicCounts[index] == 0) {
+						// inserting a new topic, guaranteed to be in
+						//  order w.r.t. count, if not topic.
+						currentTypeTopicCounts[index] = (count << topicBits) + newTopic;
+					}
+					else {
+						currentValue = currentTypeTopicCounts[index] >> topicBits;
+						currentTypeTopicCounts[index] = ((currentValue + count) << topicBits) + newTopic;
 
-					// Bubble the increased value left, if necessary
-					while (index > 0 &&
-						   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-						int temp = currentTypeTopicCounts[index];
-						currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-						currentTypeTopicCounts[index - 1] = temp;
+						// Bubble the increased value left, if necessary
+						while (index > 0 &&
+							   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+							int temp = currentTypeTopicCounts[index];
+							currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+							currentTypeTopicCounts[index - 1] = temp;
 
-						index--;
+							index--;
+						}
 					}
+
 				}
 
+				typeTopicCounts.setRow(type, currentTypeTopicCounts);
+			}
+			finally {
+				if (typeLock != null) {
+					typeLock.unlock();
+				}
 			}
 
 			if (newTopic == -1) {
@@ -607,11 +705,11 @@ public class WorkerRunnable implements Runnable {
 			topicBetaMass -= beta * localTopicCounts[newTopic] /
 				(tokensPerTopic[newTopic] + betaSum);
 
-			localTopicCounts[newTopic]++;
+			localTopicCounts[newTopic] += count;
 
 			// If this is a new topic for this document,
 			//  add the topic to the dense index.
-			if (localTopicCounts[newTopic] == 1) {
+			if (localTopicCounts[newTopic] == count) {
 				
 				// First find the point where we 
 				//  should insert the new topic by going to
@@ -633,7 +731,7 @@ public class WorkerRunnable implements Runnable {
 				nonZeroTopics++;
 			}
 
-			tokensPerTopic[newTopic]++;
+			tokensPerTopic[newTopic] += count;
 
 			//	update the coefficients for the non-zero topics
 			cachedCoefficients[newTopic] =
@@ -650,7 +748,7 @@ public class WorkerRunnable implements Runnable {
 		if (shouldSaveState) {
 			// Update the document-topic count histogram,
 			//  for dirichlet estimation
-			docLengthCounts[ docLength ]++;
+			docLengthCounts[ tokenSequence.getTotalCount() ]++;
 
 			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
 				int topic = localTopicIndex[denseIndex];
@@ -659,6 +757,19 @@ public class WorkerRunnable implements Runnable {
 			}
 		}
 
+		if (shouldComputeLikelihood) {
+			// The same terms as ParallelTopicModel.modelLogLikelihood(),
+			//  from the document's final topic counts for this sweep
+			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+
+				documentLogLikelihood += alphaTables[topic].logGamma(localTopicCounts[topic]) -
+					alphaTables[topic].logGamma(0);
+			}
+			documentLogLikelihood += alphaSumTable.logGamma(0) -
+				alphaSumTable.logGamma(tokenSequence.getTotalCount());
+		}
+
 		//	Clean up our mess: reset the coefficients to values with only
 		//	smoothing. The next doc will update its own non-zero topics...
 
@@ -671,4 +782,46 @@ public class WorkerRunnable implements Runnable {
 
 	}
 
+	/**
+	 *  Sample the topic of a run of <code>count</code> tokens of one type that
+	 *   share one assignment, once the run has been removed from all counts.
+	 *   The probability that all of them take topic t is proportional to the
+	 *   rising factorials
+	 *   (alpha_t + n_t|d)^(count) (beta + n_w|t)^(count) / (betaSum + n_t)^(count),
+	 *   rather than the single-token weight raised to the count. This does not
+	 *   split into the sparse buckets, so every topic is scored.
+	 */
+	protected int sampleRunTopic (int[] currentTypeTopicCounts, int[] localTopicCounts, int count) {
+
+		Arrays.fill(runTypeCounts, 0);
+		for (int index = 0; index < currentTypeTopicCounts.length && currentTypeTopicCounts[index] > 0; index++) {
+			runTypeCounts[ currentTypeTopicCounts[index] & topicMask ] = currentTypeTopicCounts[index] >> topicBits;
+		}
+
+		// In log space, since the products overflow for long runs
+		double maxWeight = Double.NEGATIVE_INFINITY;
+		for (int topic = 0; topic < numTopics; topic++) {
+			runWeights[topic] =
+				LogGammaTable.logRisingFactorial(alpha[topic] + localTopicCounts[topic], count) +
+				LogGammaTable.logRisingFactorial(beta + runTypeCounts[topic], count) -
+				LogGammaTable.logRisingFactorial(betaSum + tokensPerTopic[topic], count);
+			maxWeight = Math.max(maxWeight, runWeights[topic]);
+		}
+
+		double totalWeight = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			runWeights[topic] = Math.exp(runWeights[topic] - maxWeight);
+			totalWeight += runWeights[topic];
+		}
+
+		double sample = random.nextUniform() * totalWeight;
+		int topic = 0;
+		sample -= runWeights[topic];
+		while (sample > 0.0 && topic < numTopics - 1) {
+			topic++;
+			sample -= runWeights[topic];
+		}
+		return topic;
+	}
+
 }
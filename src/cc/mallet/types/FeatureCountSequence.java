@@ -0,0 +1,183 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ *   A run-length encoded {@link FeatureSequence}. Each position holds a
+ *   feature index together with the number of times it occurs, so a
+ *   document of N occurrences over M distinct features takes O(M) space
+ *   rather than O(N).
+ *
+ *   Code that only knows about {@link FeatureSequence} sees one position
+ *   per run; count-aware code should use {@link #getCountAtPosition(int)}
+ *   and {@link #getTotalCount()}.
+ */
+
+public class FeatureCountSequence extends FeatureSequence implements Serializable
+{
+	int[] counts;
+	int totalCount;
+
+	/**
+	 *  @param dict A dictionary that maps objects in the sequence
+	 *     to numeric indices.
+	 *  @param features features[i] gives the index in dict of the ith run.
+	 *  @param counts counts[i] gives the number of occurrences in the ith run.
+	 *  @param len The number of runs to copy.
+	 */
+	public FeatureCountSequence (Alphabet dict, int[] features, int[] counts, int len)
+	{
+		this (dict, len);
+		for (int i = 0; i < len; i++)
+			add (features[i], counts[i]);
+	}
+
+	public FeatureCountSequence (Alphabet dict, int capacity)
+	{
+		super (dict, capacity);
+		counts = new int[this.features.length];
+		totalCount = 0;
+	}
+
+	public int[] getCounts() { return counts; }
+
+	public final int getCountAtPosition (int pos)
+	{
+		return counts[pos];
+	}
+
+	public final int getTotalCount ()
+	{
+		return totalCount;
+	}
+
+	protected void growIfNecessary ()
+	{
+		super.growIfNecessary ();
+		if (counts.length < features.length) {
+			int[] newCounts = new int[features.length];
+			System.arraycopy (counts, 0, newCounts, 0, length);
+			counts = newCounts;
+		}
+	}
+
+	/** Add a single occurrence of a feature as a run of length one. */
+	public void add (int featureIndex)
+	{
+		add (featureIndex, 1);
+	}
+
+	/** Add a run of <code>count</code> occurrences of a feature. */
+	public void add (int featureIndex, int count)
+	{
+		if (count <= 0) {
+			throw new IllegalArgumentException ("Run length must be positive: " + count);
+		}
+		growIfNecessary ();
+		assert (featureIndex < dictionary.size());
+		counts[length] = count;
+		features[length++] = featureIndex;
+		totalCount += count;
+	}
+
+	public void addFeatureWeightsTo (double[] weights)
+	{
+		for (int i = 0; i < length; i++)
+			weights[features[i]] += counts[i];
+	}
+
+	public void addFeatureWeightsTo (double[] weights, double scale)
+	{
+		for (int i = 0; i < length; i++)
+			weights[features[i]] += scale * counts[i];
+	}
+
+	/**
+	 *  Remove the runs whose feature is not in <code>newAlphabet</code>
+	 *  and swap in the new alphabet, keeping the counts of the other runs.
+	 */
+	public void prune (Alphabet newAlphabet)
+	{
+		boolean[] keepers = new boolean[length];
+		for (int i = 0; i < length; i++)
+			keepers[i] = newAlphabet.contains (dictionary.lookupObject (features[i]));
+		pruneRuns (keepers, newAlphabet);
+	}
+
+	/**
+	 *  Remove the runs whose feature occurs fewer than <code>cutoff</code>
+	 *  times in the corpus, as given by <code>featureCounts</code>, and swap
+	 *  in the new alphabet, keeping the counts of the other runs.
+	 */
+	public void prune (double[] featureCounts, Alphabet newAlphabet, int cutoff)
+	{
+		boolean[] keepers = new boolean[length];
+		for (int i = 0; i < length; i++)
+			keepers[i] = featureCounts[features[i]] >= cutoff;
+		pruneRuns (keepers, newAlphabet);
+	}
+
+	/** Keep the runs marked in <code>keepers</code>, remapped into <code>newAlphabet</code>. */
+	private void pruneRuns (boolean[] keepers, Alphabet newAlphabet)
+	{
+		int newLength = 0;
+		for (int i = 0; i < length; i++)
+			if (keepers[i])
+				newLength++;
+
+		int[] newFeatures = new int[newLength];
+		int[] newCounts = new int[newLength];
+		int newIndex = 0;
+		totalCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (keepers[i]) {
+				newFeatures[newIndex] = newAlphabet.lookupIndex (dictionary.lookupObject (features[i]));
+				newCounts[newIndex] = counts[i];
+				totalCount += counts[i];
+				newIndex++;
+			}
+		}
+
+		features = newFeatures;
+		counts = newCounts;
+		length = newLength;
+		dictionary = newAlphabet;
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeInt (length);
+		for (int i = 0; i < length; i++)
+			out.writeInt (counts[i]);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		if (version != CURRENT_SERIAL_VERSION)
+			throw new ClassNotFoundException ("Mismatched FeatureCountSequence versions: wanted " +
+											  CURRENT_SERIAL_VERSION + ", got " + version);
+		int countsLength = in.readInt ();
+		counts = new int[Math.max(countsLength, features.length)];
+		totalCount = 0;
+		for (int i = 0; i < countsLength; i++) {
+			counts[i] = in.readInt ();
+			totalCount += counts[i];
+		}
+	}
+
+}
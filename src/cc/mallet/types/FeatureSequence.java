@@ -86,6 +86,20 @@ public class FeatureSequence implements Sequence, Serializable, AlphabetCarrying
 		return features[pos];
 	}
 
+	/** The number of occurrences represented by position <code>pos</code>.
+	 *  Every position of a plain feature sequence is a single occurrence;
+	 *  run-length sequences such as {@link FeatureCountSequence} override this. */
+	public int getCountAtPosition (int pos)
+	{
+		return 1;
+	}
+
+	/** The total number of occurrences in the sequence, summed over positions. */
+	public int getTotalCount ()
+	{
+		return length;
+	}
+
 	public Object getObjectAtPosition (int pos)
 	{
 		return dictionary.lookupObject (features[pos]);
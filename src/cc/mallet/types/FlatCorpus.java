@@ -0,0 +1,164 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.util.Arrays;
+
+/**
+ *   The feature sequences of a whole corpus in a few flat arrays: the
+ *   feature index of every position of every document one after the other,
+ *   with an offsets array marking where each document starts. Position
+ *   <code>pos</code> of document <code>doc</code> is at index
+ *   <code>getOffset(doc) + pos</code>.
+ *
+ *   For run-length encoded documents (as in {@link FeatureCountSequence})
+ *   a parallel array holds the number of occurrences of each position;
+ *   otherwise every position is a single occurrence and no counts are stored.
+ *
+ *   Compared with an {@link InstanceList} of {@link FeatureSequence}s this
+ *   avoids an Instance, a sequence and an array (with spare capacity) per
+ *   document, and a sampler reads the corpus sequentially from one block of
+ *   memory. The documents are immutable once the corpus is built.
+ *   {@link #fromInstances} and {@link #toInstanceList} convert for code that
+ *   works on instance lists.
+ */
+
+public class FlatCorpus
+{
+	Alphabet dataAlphabet;
+	int[] docOffsets;   // indexed by <document index>, one extra entry for the end of the last document
+	int[] features;     // indexed by <docOffsets[doc] + position>
+	int[] counts;       // indexed like features; null if every position is one occurrence
+	int[] totalCounts;  // indexed by <document index>, the number of occurrences
+	long numTokens;
+
+	/**
+	 *  @param dataAlphabet The alphabet of the feature indices.
+	 *  @param docOffsets docOffsets[doc] gives the index in features of the
+	 *     first position of the document, and docOffsets[numDocs] the number of positions.
+	 *  @param features The feature index of each position.
+	 *  @param counts The number of occurrences of each position,
+	 *     or null if each position is one occurrence.
+	 */
+	public FlatCorpus (Alphabet dataAlphabet, int[] docOffsets, int[] features, int[] counts)
+	{
+		if (docOffsets.length == 0 || docOffsets[0] != 0 || docOffsets[docOffsets.length - 1] != features.length)
+			throw new IllegalArgumentException ("The offsets do not cover the " + features.length + " positions");
+		if (counts != null && counts.length != features.length)
+			throw new IllegalArgumentException ("There are " + counts.length + " counts for " + features.length + " positions");
+
+		this.dataAlphabet = dataAlphabet;
+		this.docOffsets = docOffsets;
+		this.features = features;
+		this.counts = counts;
+
+		int numDocs = docOffsets.length - 1;
+		totalCounts = new int[numDocs];
+		for (int doc = 0; doc < numDocs; doc++) {
+			if (docOffsets[doc + 1] < docOffsets[doc])
+				throw new IllegalArgumentException ("Document " + doc + " has a negative length");
+			if (counts == null)
+				totalCounts[doc] = docOffsets[doc + 1] - docOffsets[doc];
+			else {
+				for (int i = docOffsets[doc]; i < docOffsets[doc + 1]; i++) {
+					if (counts[i] <= 0)
+						throw new IllegalArgumentException ("Run length must be positive: " + counts[i]);
+					totalCounts[doc] += counts[i];
+				}
+			}
+			numTokens += totalCounts[doc];
+		}
+	}
+
+	/**
+	 *  Copy the documents of an instance list, whose data fields must
+	 *   hold {@link FeatureSequence}s. Counts are kept if any position
+	 *   occurs more than once.
+	 */
+	public static FlatCorpus fromInstances (InstanceList ilist)
+	{
+		int numDocs = ilist.size();
+		int[] docOffsets = new int[numDocs + 1];
+		boolean runLength = false;
+		for (int doc = 0; doc < numDocs; doc++) {
+			FeatureSequence fs = (FeatureSequence) ilist.get(doc).getData();
+			long end = (long) docOffsets[doc] + fs.getLength();
+			if (end > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException ("Too many positions for one array: more than " + end);
+			docOffsets[doc + 1] = (int) end;
+			runLength |= fs.getTotalCount() != fs.getLength();
+		}
+
+		int[] features = new int[docOffsets[numDocs]];
+		int[] counts = runLength ? new int[features.length] : null;
+		for (int doc = 0; doc < numDocs; doc++) {
+			FeatureSequence fs = (FeatureSequence) ilist.get(doc).getData();
+			int offset = docOffsets[doc];
+			for (int pos = 0; pos < fs.getLength(); pos++) {
+				features[offset + pos] = fs.getIndexAtPosition(pos);
+				if (counts != null)
+					counts[offset + pos] = fs.getCountAtPosition(pos);
+			}
+		}
+		return new FlatCorpus (ilist.getDataAlphabet(), docOffsets, features, counts);
+	}
+
+	/**
+	 *  A new instance list with one {@link FeatureSequence} (or
+	 *   {@link FeatureCountSequence} if the corpus has counts) per document,
+	 *   for code that needs one. The instances have no name, target or source.
+	 */
+	public InstanceList toInstanceList ()
+	{
+		InstanceList ilist = new InstanceList (dataAlphabet, null);
+		for (int doc = 0; doc < getNumDocs(); doc++) {
+			int offset = docOffsets[doc];
+			int length = getLength(doc);
+			FeatureSequence fs;
+			if (counts != null)
+				fs = new FeatureCountSequence (dataAlphabet, Arrays.copyOfRange(features, offset, offset + length),
+				                               Arrays.copyOfRange(counts, offset, offset + length), length);
+			else
+				fs = new FeatureSequence (dataAlphabet, Arrays.copyOfRange(features, offset, offset + length));
+			ilist.add (new Instance (fs, null, null, null));
+		}
+		return ilist;
+	}
+
+	public Alphabet getDataAlphabet () { return dataAlphabet; }
+
+	public int getNumDocs () { return docOffsets.length - 1; }
+
+	/** The total number of positions in all documents. */
+	public int size () { return features.length; }
+
+	/** The total number of occurrences in all documents. */
+	public long getNumTokens () { return numTokens; }
+
+	/** True if positions can hold more than one occurrence. */
+	public boolean hasCounts () { return counts != null; }
+
+	/** The index of the first position of the document in the flat arrays. */
+	public final int getOffset (int doc) { return docOffsets[doc]; }
+
+	/** The number of positions in the document. */
+	public final int getLength (int doc) { return docOffsets[doc + 1] - docOffsets[doc]; }
+
+	/** The number of occurrences in the document. */
+	public final int getTotalCount (int doc) { return totalCounts[doc]; }
+
+	/** The feature at <code>index = getOffset(doc) + pos</code>. */
+	public final int getFeature (int index) { return features[index]; }
+
+	/** The number of occurrences at <code>index = getOffset(doc) + pos</code>. */
+	public final int getCount (int index)
+	{
+		return (counts == null) ? 1 : counts[index];
+	}
+
+}
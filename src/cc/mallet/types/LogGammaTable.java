@@ -0,0 +1,93 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.util.Arrays;
+
+/**
+ *	logGamma(offset + n) for integer counts n, as needed for the likelihood
+ *	 of a Dirichlet-multinomial with parameter <code>offset</code>.
+ *
+ *	Values are memoized as they are requested, using the recurrence
+ *	 logGamma(z + 1) = logGamma(z) + log(z), so each new entry costs one
+ *	 <code>Math.log</code> instead of a full Stirling approximation.
+ *	Counts of {@link #MAX_TABLE_SIZE} and above are computed directly.
+ *	A table is only valid for one offset: use {@link #forOffset} to keep it
+ *	 while a hyperparameter does not change.
+ *
+ *	@see Dirichlet#logGammaStirling(double)
+ */
+
+public class LogGammaTable {
+
+	public static final int MAX_TABLE_SIZE = 1 << 16;
+
+	final double offset;
+	double[] values;
+	int size; // values[0 .. size-1] are filled
+
+	public LogGammaTable (double offset) {
+		this.offset = offset;
+		values = new double[16];
+		values[0] = Dirichlet.logGammaStirling(offset);
+		size = 1;
+	}
+
+	/** Returns <code>table</code> if it was built for <code>offset</code>, otherwise a new table. */
+	public static LogGammaTable forOffset (LogGammaTable table, double offset) {
+		if (table != null && table.offset == offset) {
+			return table;
+		}
+		return new LogGammaTable(offset);
+	}
+
+	public double getOffset () {
+		return offset;
+	}
+
+	/**
+	 *	log((x)(x+1)...(x+n-1)) = logGamma(x + n) - logGamma(x), the log of the
+	 *	 rising factorial, for <code>x</code> &gt; 0 and <code>n</code> &ge; 0.
+	 *	The first factors are multiplied directly, since the Stirling series is
+	 *	 only accurate for larger arguments and the difference of two large
+	 *	 logGammas loses precision.
+	 */
+	public static double logRisingFactorial (double x, int n) {
+		double product = 1.0;
+		int i = 0;
+		while (i < n && (i < 16 || x + i < 10)) {
+			product *= x + i;
+			i++;
+		}
+		double result = Math.log(product);
+		if (i < n) {
+			result += Dirichlet.logGammaStirling(x + n) - Dirichlet.logGammaStirling(x + i);
+		}
+		return result;
+	}
+
+	/** logGamma(offset + count), for <code>count</code> &ge; 0 */
+	public double logGamma (int count) {
+		if (count < size) {
+			return values[count];
+		}
+		if (count >= MAX_TABLE_SIZE) {
+			return Dirichlet.logGammaStirling(offset + count);
+		}
+
+		if (count >= values.length) {
+			values = Arrays.copyOf(values, Math.min(MAX_TABLE_SIZE, Math.max(count + 1, values.length * 2)));
+		}
+		while (size <= count) {
+			values[size] = values[size - 1] + Math.log(offset + size - 1);
+			size++;
+		}
+		return values[count];
+	}
+
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.util.Arrays;
+
+/**
+ *  Walker's alias method (with Vose's construction) for drawing from a fixed,
+ *   unnormalized discrete distribution in O(1) time after O(n) setup.
+ *
+ *  The outcomes are arbitrary integers, so a table can cover only the
+ *   non-zero entries of a sparse distribution. The outcomes must be given in
+ *   increasing order so that {@link #getWeight(int)} can look them up.
+ */
+
+public class AliasTable {
+
+	int size;
+	int[] outcomes;
+	double[] weights; // the unnormalized weights the table was built from
+	double[] probabilities;
+	int[] aliases;
+	double mass;
+
+	// scratch space for construction
+	int[] small, large;
+
+	public AliasTable (int capacity) {
+		allocate (Math.max(capacity, 1));
+	}
+
+	private void allocate (int capacity) {
+		outcomes = new int[capacity];
+		weights = new double[capacity];
+		probabilities = new double[capacity];
+		aliases = new int[capacity];
+		small = new int[capacity];
+		large = new int[capacity];
+	}
+
+	/**
+	 *  Rebuild the table for a new distribution.
+	 *  @param outcomes The outcome for each entry, in increasing order.
+	 *  @param weights Non-negative unnormalized weights, parallel to outcomes.
+	 *  @param size The number of entries to use.
+	 */
+	public void build (int[] outcomes, double[] weights, int size) {
+		if (size > this.outcomes.length) {
+			allocate (size);
+		}
+		this.size = size;
+		System.arraycopy (outcomes, 0, this.outcomes, 0, size);
+		System.arraycopy (weights, 0, this.weights, 0, size);
+
+		mass = 0.0;
+		for (int i = 0; i < size; i++) {
+			mass += weights[i];
+		}
+		if (size == 0 || mass <= 0.0) {
+			mass = 0.0;
+			return;
+		}
+
+		int numSmall = 0, numLarge = 0;
+		for (int i = 0; i < size; i++) {
+			probabilities[i] = weights[i] * size / mass;
+			if (probabilities[i] < 1.0) {
+				small[numSmall++] = i;
+			}
+			else {
+				large[numLarge++] = i;
+			}
+		}
+
+		while (numSmall > 0 && numLarge > 0) {
+			int less = small[--numSmall];
+			int more = large[--numLarge];
+
+			aliases[less] = more;
+			probabilities[more] = (probabilities[more] + probabilities[less]) - 1.0;
+
+			if (probabilities[more] < 1.0) {
+				small[numSmall++] = more;
+			}
+			else {
+				large[numLarge++] = more;
+			}
+		}
+
+		// Whatever is left is 1 up to rounding error
+		while (numLarge > 0) {
+			probabilities[large[--numLarge]] = 1.0;
+		}
+		while (numSmall > 0) {
+			probabilities[small[--numSmall]] = 1.0;
+		}
+	}
+
+	/** Build a table over the outcomes 0 .. size-1. */
+	public void build (double[] weights, int size) {
+		if (size > outcomes.length) {
+			allocate (size);
+		}
+		for (int i = 0; i < size; i++) {
+			outcomes[i] = i;
+		}
+		build (outcomes, weights, size);
+	}
+
+	/** The sum of the weights the table was built from. */
+	public double getMass () { return mass; }
+
+	public int size () { return size; }
+
+	/** Draw an outcome with probability proportional to its weight. */
+	public int sample (Randoms random) {
+		double u = random.nextUniform () * size;
+		int index = (int) u;
+		if (index >= size) {
+			index = size - 1;
+		}
+		if (u - index < probabilities[index]) {
+			return outcomes[index];
+		}
+		return outcomes[aliases[index]];
+	}
+
+	/** The weight the table was built with for an outcome, or 0 if it is not in the table. */
+	public double getWeight (int outcome) {
+		int index = Arrays.binarySearch (outcomes, 0, size, outcome);
+		return index >= 0 ? weights[index] : 0.0;
+	}
+
+}
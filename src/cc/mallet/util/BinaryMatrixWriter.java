@@ -0,0 +1,148 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Writes a dense matrix as a little-endian binary file through a {@link FileChannel}.
+ *
+ *  The file starts with a header, followed by the values in row-major order
+ *   at <code>dataOffset</code>, which is a multiple of 8 so that readers can
+ *   memory-map the values directly (e.g. <code>numpy.memmap</code>):
+ *  <pre>
+ *   offset  size  field
+ *        0     4  magic "GMAT"
+ *        4     4  int32   format version (1)
+ *        8     4  int32   value type: 1 = int32, 2 = float32, 3 = float64
+ *       12     4  int32   number of rows
+ *       16     4  int32   number of columns
+ *       20     4  int32   sampling iteration of the values
+ *       24     8  int64   dataOffset
+ *       32     4  int32   number of row names: 0 or the number of rows
+ *       36        row names, each an int32 byte length and UTF-8 bytes
+ *                 zero padding up to dataOffset
+ *  </pre>
+ */
+
+public class BinaryMatrixWriter implements Closeable {
+
+	public static final byte[] MAGIC = { 'G', 'M', 'A', 'T' };
+	public static final int VERSION = 1;
+
+	public static final int INT32 = 1;
+	public static final int FLOAT32 = 2;
+	public static final int FLOAT64 = 3;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	FileChannel channel;
+	ByteBuffer buffer;
+	int valueType;
+	long remainingValues;
+
+	/**
+	 *  @param rowNames The name of each row, or null
+	 */
+	public BinaryMatrixWriter (File file, int valueType, int numRows, int numColumns,
+							   int iteration, String[] rowNames) throws IOException {
+		this.valueType = valueType;
+		this.remainingValues = (long) numRows * numColumns;
+
+		byte[][] names = new byte[rowNames == null ? 0 : rowNames.length][];
+		long headerSize = 36;
+		for (int row = 0; row < names.length; row++) {
+			names[row] = rowNames[row].getBytes(StandardCharsets.UTF_8);
+			headerSize += 4 + names[row].length;
+		}
+		long dataOffset = (headerSize + 7) & ~7L;
+
+		buffer = ByteBuffer.allocateDirect((int) Math.max(BUFFER_SIZE, dataOffset));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(valueType);
+		buffer.putInt(numRows);
+		buffer.putInt(numColumns);
+		buffer.putInt(iteration);
+		buffer.putLong(dataOffset);
+		buffer.putInt(names.length);
+		for (byte[] name: names) {
+			buffer.putInt(name.length);
+			buffer.put(name);
+		}
+		while (buffer.position() < dataOffset) {
+			buffer.put((byte) 0);
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+								   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	public void writeInt (int value) throws IOException {
+		checkType(INT32, 4);
+		buffer.putInt(value);
+	}
+
+	public void writeFloat (float value) throws IOException {
+		checkType(FLOAT32, 4);
+		buffer.putFloat(value);
+	}
+
+	public void writeDouble (double value) throws IOException {
+		checkType(FLOAT64, 8);
+		buffer.putDouble(value);
+	}
+
+	public void writeRow (int[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) { writeInt(values[i]); }
+	}
+
+	public void writeRow (double[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) { writeDouble(values[i]); }
+	}
+
+	private void checkType (int type, int bytes) throws IOException {
+		if (type != valueType) {
+			throw new IllegalStateException("Matrix holds value type " + valueType + ", not " + type);
+		}
+		if (remainingValues == 0) {
+			throw new IllegalStateException("Too many values for the matrix dimensions");
+		}
+		remainingValues--;
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush () throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	public void close () throws IOException {
+		try {
+			flush();
+			if (remainingValues != 0) {
+				throw new IOException(remainingValues + " values missing from the matrix");
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *  Reads a checkpoint written by {@link CheckpointOutput}.
+ *
+ *  The array readers fill arrays that the caller has already allocated,
+ *   and fail if the stored length differs, so a checkpoint of a different
+ *   model or data set is rejected rather than partially loaded.
+ */
+
+public class CheckpointInput implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 20;
+
+	File file;
+	FileChannel channel;
+	ByteBuffer buffer;
+
+	public CheckpointInput (File file, byte[] magic, int version) throws IOException {
+		this.file = file;
+
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			fill(magic.length + 4);
+			byte[] fileMagic = new byte[magic.length];
+			buffer.get(fileMagic);
+			if (!Arrays.equals(fileMagic, magic)) {
+				throw new IOException(file + " is not a " + new String(magic, "US-ASCII") + " checkpoint");
+			}
+			int fileVersion = buffer.getInt();
+			if (fileVersion != version) {
+				throw new IOException("Unsupported checkpoint version " + fileVersion + " in " + file);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int readInt () throws IOException {
+		fill(4);
+		return buffer.getInt();
+	}
+
+	public double readDouble () throws IOException {
+		fill(8);
+		return buffer.getDouble();
+	}
+
+	/** Read an int that must equal <code>expected</code>, e.g. a dimension of the model. */
+	public void expectInt (int expected, String name) throws IOException {
+		int value = readInt();
+		if (value != expected) {
+			throw new IOException("Checkpoint " + file + " has " + name + " " + value + ", expected " + expected);
+		}
+	}
+
+	public void readInts (int[] values) throws IOException {
+		expectInt(values.length, "an array of length");
+		readIntValues(values);
+	}
+
+	/** Read an array whose length is only known from the checkpoint. */
+	public int[] readInts () throws IOException {
+		int length = readInt();
+		if (length < 0) {
+			throw new IOException("Invalid array length " + length + " in " + file);
+		}
+		int[] values = new int[length];
+		readIntValues(values);
+		return values;
+	}
+
+	private void readIntValues (int[] values) throws IOException {
+		int read = 0;
+		while (read < values.length) {
+			fill(4);
+			IntBuffer ints = buffer.asIntBuffer();
+			int length = Math.min(ints.remaining(), values.length - read);
+			ints.get(values, read, length);
+			buffer.position(buffer.position() + 4 * length);
+			read += length;
+		}
+	}
+
+	public void readDoubles (double[] values) throws IOException {
+		expectInt(values.length, "an array of length");
+		int read = 0;
+		while (read < values.length) {
+			fill(8);
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			int length = Math.min(doubles.remaining(), values.length - read);
+			doubles.get(values, read, length);
+			buffer.position(buffer.position() + 8 * length);
+			read += length;
+		}
+	}
+
+	public Object readObject () throws IOException {
+		int length = readInt();
+		if (length < 0) {
+			throw new IOException("Invalid object length " + length + " in " + file);
+		}
+		byte[] serialized = new byte[length];
+		int read = 0;
+		while (read < length) {
+			fill(1);
+			int n = Math.min(buffer.remaining(), length - read);
+			buffer.get(serialized, read, n);
+			read += n;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read an object from " + file, e);
+		}
+	}
+
+	/** Read from the file until at least <code>bytes</code> bytes are buffered. */
+	private void fill (int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < bytes) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Unexpected end of checkpoint " + file);
+			}
+		}
+		buffer.flip();
+	}
+
+	public void close () throws IOException {
+		channel.close();
+	}
+
+}
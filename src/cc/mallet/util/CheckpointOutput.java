@@ -0,0 +1,141 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Writes a sampler checkpoint as little-endian binary, read back by {@link CheckpointInput}.
+ *
+ *  The values go to a temporary file next to the checkpoint, which replaces
+ *   the checkpoint only in {@link #commit}. A crash while writing therefore
+ *   leaves the previous checkpoint intact.
+ *  Arrays are written as an int32 length followed by the values, and objects
+ *   (e.g. a {@link Randoms}) with Java serialization.
+ */
+
+public class CheckpointOutput implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 20;
+
+	File file, tempFile;
+	FileChannel channel;
+	ByteBuffer buffer;
+	boolean committed = false;
+
+	public CheckpointOutput (File file, byte[] magic, int version) throws IOException {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+								   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.put(magic);
+		buffer.putInt(version);
+	}
+
+	public void writeInt (int value) throws IOException {
+		ensure(4);
+		buffer.putInt(value);
+	}
+
+	public void writeDouble (double value) throws IOException {
+		ensure(8);
+		buffer.putDouble(value);
+	}
+
+	public void writeInts (int[] values) throws IOException {
+		writeInt(values.length);
+		int written = 0;
+		while (written < values.length) {
+			ensure(4);
+			IntBuffer ints = buffer.asIntBuffer();
+			int length = Math.min(ints.remaining(), values.length - written);
+			ints.put(values, written, length);
+			buffer.position(buffer.position() + 4 * length);
+			written += length;
+		}
+	}
+
+	public void writeDoubles (double[] values) throws IOException {
+		writeInt(values.length);
+		int written = 0;
+		while (written < values.length) {
+			ensure(8);
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			int length = Math.min(doubles.remaining(), values.length - written);
+			doubles.put(values, written, length);
+			buffer.position(buffer.position() + 8 * length);
+			written += length;
+		}
+	}
+
+	public void writeObject (Serializable object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		byte[] serialized = bytes.toByteArray();
+		writeInt(serialized.length);
+		int written = 0;
+		while (written < serialized.length) {
+			ensure(1);
+			int length = Math.min(buffer.remaining(), serialized.length - written);
+			buffer.put(serialized, written, length);
+			written += length;
+		}
+	}
+
+	private void ensure (int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush () throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/** Write out the remaining values and replace the checkpoint with the new file. */
+	public void commit () throws IOException {
+		flush();
+		channel.force(false);
+		channel.close();
+		try {
+			Files.move(tempFile.toPath(), file.toPath(),
+					   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		committed = true;
+	}
+
+	/** Discards the temporary file unless {@link #commit} succeeded. */
+	public void close () throws IOException {
+		if (!committed) {
+			channel.close();
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+/**
+ *  A {@link Randoms} backed by xoshiro256** instead of the linear congruential
+ *   generator of <code>java.util.Random</code>, for use by one thread at a time.
+ *
+ *  The methods the samplers call for every token ({@link #nextUniform()},
+ *   {@link #nextInt(int)}, {@link #nextDiscrete(double[])}, ...) are not
+ *   synchronized and do not go through an <code>AtomicLong</code>. All other
+ *   methods of <code>Randoms</code> draw their bits from the same generator,
+ *   so a <code>FastRandoms</code> can be passed wherever a <code>Randoms</code>
+ *   is expected, but must not be shared between threads.
+ *
+ *  The state is seeded from a 64-bit seed with SplitMix64. {@link #split()}
+ *   hands out independent streams for parallel workers: the new stream starts
+ *   at the current state and this one jumps 2^128 values ahead, so streams
+ *   split from the same seed are reproducible and never overlap.
+ *
+ *  @see <a href="https://prng.di.unimi.it/">xoshiro / xoroshiro generators</a>
+ */
+
+public class FastRandoms extends Randoms {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long[] JUMP = {
+		0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL, 0xa9582618e03fc9aaL, 0x39abdc4529b1661cL
+	};
+
+	// No initializers: Random's constructor calls setSeed() before they would run
+	long s0, s1, s2, s3;
+
+	public FastRandoms (long seed) {
+		super(0);
+		setSeed(seed);
+	}
+
+	/** Seeded from the clock, as <code>new Randoms()</code>. */
+	public FastRandoms () {
+		this(System.nanoTime() ^ System.currentTimeMillis() * 0x9e3779b97f4a7c15L);
+	}
+
+	private FastRandoms (long s0, long s1, long s2, long s3) {
+		super(0);
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+
+	/** Reset the state from <code>seed</code> with SplitMix64. */
+	@Override
+	public void setSeed (long seed) {
+		long x = seed;
+		x += 0x9e3779b97f4a7c15L; s0 = mix(x);
+		x += 0x9e3779b97f4a7c15L; s1 = mix(x);
+		x += 0x9e3779b97f4a7c15L; s2 = mix(x);
+		x += 0x9e3779b97f4a7c15L; s3 = mix(x);
+	}
+
+	private static long mix (long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 *  Return a new generator that continues from the current state, and
+	 *   advance this one by 2^128 values. Calling split() n times gives n
+	 *   non-overlapping streams, e.g. one per worker thread.
+	 */
+	public FastRandoms split () {
+		FastRandoms child = new FastRandoms(s0, s1, s2, s3);
+		jump();
+		return child;
+	}
+
+	private void jump () {
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		for (long jump : JUMP) {
+			for (int b = 0; b < 64; b++) {
+				if ((jump & (1L << b)) != 0) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				nextLong();
+			}
+		}
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+	}
+
+	@Override
+	public long nextLong () {
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return result;
+	}
+
+	/** The source of bits for the methods inherited from <code>Randoms</code>. */
+	@Override
+	protected int next (int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public int nextInt () {
+		return (int) (nextLong() >>> 32);
+	}
+
+	@Override
+	public int nextInt (int bound) {
+		if (bound <= 0) {
+			throw new IllegalArgumentException("bound must be positive: " + bound);
+		}
+		// Unbiased, as java.util.Random.nextInt(int)
+		int r = next(31);
+		int m = bound - 1;
+		if ((bound & m) == 0) {
+			return (int) ((bound * (long) r) >> 31);
+		}
+		for (int u = r; u - (r = u % bound) + m < 0; u = next(31));
+		return r;
+	}
+
+	@Override
+	public boolean nextBoolean () {
+		return nextLong() < 0;
+	}
+
+	/** A double in [0, 1) with 53 random bits. */
+	@Override
+	public double nextDouble () {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public double nextUniform () {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public double nextUniform (double a, double b) {
+		return a + (b - a) * nextUniform();
+	}
+
+	@Override
+	public int nextDiscrete (double[] a) {
+		return nextDiscrete(a, 1.0);
+	}
+
+	@Override
+	public int nextDiscrete (double[] a, double sum) {
+		double b = 0, r = nextUniform() * sum;
+		for (int i = 0; i < a.length; i++) {
+			b += a[i];
+			if (b > r) {
+				return i;
+			}
+		}
+		return a.length - 1;
+	}
+
+}